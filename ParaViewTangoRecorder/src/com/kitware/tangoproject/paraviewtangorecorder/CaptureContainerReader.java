@@ -0,0 +1,325 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped reader of the capture containers written by
+ * {@link CaptureContainerWriter}. Any frame is reached in constant time since
+ * the records have a fixed size. When the index is missing, because the
+ * writer was never closed, it is rebuilt by scanning the records and stops at
+ * the first incomplete one.
+ *
+ * The file is mapped in segments of whole records, so containers larger than
+ * 2 GB can be read too.
+ */
+public class CaptureContainerReader {
+
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final int BYTES_PER_POINT = 12;
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final int mRecordSize;
+    private final int mMaxPoints;
+    private final double[] mIntrinsics;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRecordsPerSegment;
+    private final MappedByteBuffer[] mSegments;
+    private int mFrameCount;
+    private double[] mTimestamps;
+    private int[] mPointCounts;
+    private boolean mIsRecovered;
+
+    public CaptureContainerReader(File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        try {
+            ByteBuffer header = read(0, CaptureContainerWriter.FILE_HEADER_SIZE);
+            if (header.getLong() != CaptureContainerWriter.FILE_MAGIC) {
+                throw new IOException(file + " is not a capture container");
+            }
+            int version = header.getInt();
+            if (version != CaptureContainerWriter.VERSION) {
+                throw new IOException("Unsupported version " + version
+                        + " of " + file);
+            }
+            mRecordSize = header.getInt();
+            mMaxPoints = header.getInt();
+            mWidth = header.getInt();
+            mHeight = header.getInt();
+            mIntrinsics = new double[4];
+            for (int i = 0; i < mIntrinsics.length; i++) {
+                mIntrinsics[i] = header.getDouble();
+            }
+            mRecordsPerSegment = Math.max(1, SEGMENT_SIZE / mRecordSize);
+
+            if (!readIndex()) {
+                recoverIndex();
+            }
+            int segmentCount = (mFrameCount + mRecordsPerSegment - 1)
+                    / mRecordsPerSegment;
+            mSegments = new MappedByteBuffer[segmentCount];
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+
+    /**
+     * @return true if the index was rebuilt from the records, because the
+     *         container was not closed properly.
+     */
+    public boolean isRecovered() {
+        return mIsRecovered;
+    }
+
+    /**
+     * Reads the intrinsics of the depth camera of the session.
+     *
+     * @param dst
+     *            receives fx, fy, cx and cy.
+     * @return false if the container has no intrinsics, dst is then left
+     *         unchanged.
+     */
+    public boolean getIntrinsics(double[] dst) {
+        if (mWidth <= 0 || mHeight <= 0) {
+            return false;
+        }
+        System.arraycopy(mIntrinsics, 0, dst, 0, mIntrinsics.length);
+        return true;
+    }
+
+    /**
+     * @return the width of the depth images, 0 if unknown.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the height of the depth images, 0 if unknown.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public double getTimestamp(int frame) {
+        checkFrame(frame);
+        return mTimestamps[frame];
+    }
+
+    public int getPointCount(int frame) {
+        checkFrame(frame);
+        return mPointCounts[frame];
+    }
+
+    /**
+     * @return a read-only little-endian view of the xyz floats of a frame,
+     *         backed by the mapped file.
+     */
+    public synchronized ByteBuffer getPoints(int frame) throws IOException {
+        ByteBuffer points = getRecord(frame);
+        int position = points.position()
+                + CaptureContainerWriter.RECORD_HEADER_SIZE;
+        points.position(position);
+        points.limit(position + mPointCounts[frame] * BYTES_PER_POINT);
+        return points.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads the matrix placing a frame in the world.
+     *
+     * @param dst
+     *            receives the column-major 4x4 matrix from the depth camera
+     *            to the world.
+     * @return false if the pose of the frame was not recorded, dst is then
+     *         left unchanged.
+     */
+    public synchronized boolean getModelMatrix(int frame, float[] dst)
+            throws IOException {
+        ByteBuffer record = getRecord(frame).order(ByteOrder.LITTLE_ENDIAN);
+        int start = record.position();
+        if (record.getInt(start + CaptureContainerWriter.MATRIX_FLAG_OFFSET)
+                == 0) {
+            return false;
+        }
+        for (int i = 0; i < CaptureContainerWriter.MATRIX_SIZE; i++) {
+            dst[i] = record.getFloat(start
+                    + CaptureContainerWriter.MATRIX_OFFSET + i * BYTES_PER_FLOAT);
+        }
+        return true;
+    }
+
+    /**
+     * @return a view of the mapped segment holding a frame, positioned at
+     *         the start of its record.
+     */
+    private ByteBuffer getRecord(int frame) throws IOException {
+        checkFrame(frame);
+        int segment = frame / mRecordsPerSegment;
+        if (mSegments[segment] == null) {
+            long start = CaptureContainerWriter.recordOffset(mRecordSize,
+                    segment * mRecordsPerSegment);
+            int records = Math.min(mRecordsPerSegment, mFrameCount - segment
+                    * mRecordsPerSegment);
+            // The last record of an unclosed container can lack its padding
+            long length = Math.min((long) records * mRecordSize,
+                    mChannel.size() - start);
+            mSegments[segment] = mChannel.map(FileChannel.MapMode.READ_ONLY,
+                    start, length);
+        }
+        ByteBuffer record = mSegments[segment].duplicate();
+        record.position((frame % mRecordsPerSegment) * mRecordSize);
+        return record;
+    }
+
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    private void checkFrame(int frame) {
+        if (frame < 0 || frame >= mFrameCount) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " of "
+                    + mFrameCount);
+        }
+    }
+
+    private boolean readIndex() throws IOException {
+        long size = mChannel.size();
+        if (size < CaptureContainerWriter.FILE_HEADER_SIZE
+                + CaptureContainerWriter.TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer trailer = read(size - CaptureContainerWriter.TRAILER_SIZE,
+                CaptureContainerWriter.TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        int frameCount = trailer.getInt();
+        trailer.getInt();
+        if (trailer.getLong() != CaptureContainerWriter.INDEX_MAGIC
+                || frameCount < 0
+                || indexOffset + (long) frameCount
+                        * CaptureContainerWriter.INDEX_ENTRY_SIZE
+                        + CaptureContainerWriter.TRAILER_SIZE != size) {
+            return false;
+        }
+        ByteBuffer index = read(indexOffset, frameCount
+                * CaptureContainerWriter.INDEX_ENTRY_SIZE);
+        mTimestamps = new double[frameCount];
+        mPointCounts = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            index.getLong();
+            mTimestamps[i] = index.getDouble();
+            mPointCounts[i] = index.getInt();
+            index.getInt();
+        }
+        mFrameCount = frameCount;
+        mIsRecovered = false;
+        return true;
+    }
+
+    private void recoverIndex() throws IOException {
+        long size = mChannel.size();
+        // The last record may end before its page alignment padding
+        int capacity = (int) Math.max(0,
+                (size - CaptureContainerWriter.FILE_HEADER_SIZE + mRecordSize - 1)
+                        / mRecordSize);
+        mTimestamps = new double[capacity];
+        mPointCounts = new int[capacity];
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[mMaxPoints * BYTES_PER_POINT];
+        int frame = 0;
+        for (; frame < capacity; frame++) {
+            long offset = CaptureContainerWriter.recordOffset(mRecordSize,
+                    frame);
+            ByteBuffer header;
+            ByteBuffer points;
+            try {
+                header = read(offset,
+                        CaptureContainerWriter.RECORD_HEADER_SIZE);
+            } catch (IOException e) {
+                break;
+            }
+            int pointCount;
+            if (header.getInt() != CaptureContainerWriter.RECORD_MAGIC
+                    || header.getInt() != frame
+                    || (pointCount = header.getInt()) < 0
+                    || pointCount > mMaxPoints) {
+                break;
+            }
+            int expectedCrc = header.getInt();
+            double timestamp = header.getDouble();
+            try {
+                points = read(offset
+                        + CaptureContainerWriter.RECORD_HEADER_SIZE,
+                        pointCount * BYTES_PER_POINT);
+            } catch (IOException e) {
+                break;
+            }
+            points.get(payload, 0, pointCount * BYTES_PER_POINT);
+            crc.reset();
+            crc.update(payload, 0, pointCount * BYTES_PER_POINT);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            mTimestamps[frame] = timestamp;
+            mPointCounts[frame] = pointCount;
+        }
+        mFrameCount = frame;
+        mIsRecovered = true;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(
+                ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        if (buffer.remaining() < length) {
+            throw new IOException("Unexpected end of " + mFile);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Appends the frames of a whole session to a single capture container file
+ * (.tgc), read back with {@link CaptureContainerReader}.
+ *
+ * Layout, all values little-endian:
+ * <ul>
+ * <li>a 64 byte file header: magic, version, record size, max points, and
+ * the width, height, fx, fy, cx, cy of the depth camera, a width of 0 when
+ * they are unknown;</li>
+ * <li>fixed-size frame records, page aligned: a 96 byte record header (magic,
+ * frame index, point count, CRC32 of the payload, timestamp, a flag telling
+ * whether the column-major model matrix of the frame follows, the matrix)
+ * followed by the raw xyz floats;</li>
+ * <li>an index with the offset, timestamp and point count of every frame;</li>
+ * <li>a 24 byte trailer: index offset, frame count and magic.</li>
+ * </ul>
+ *
+ * The records are forced to storage every few frames. If the application is
+ * killed before {@link #close()} writes the index, the reader rebuilds it by
+ * scanning the records, and only the frames since the last sync are lost.
+ */
+public class CaptureContainerWriter {
+
+    static final long FILE_MAGIC = 0x3150414347544b50L; // "PKTGCAP1"
+    static final long INDEX_MAGIC = 0x3158444e47544b50L; // "PKTGNDX1"
+    static final int RECORD_MAGIC = 0x454d5246; // "FRME"
+    static final int VERSION = 2;
+    static final int FILE_HEADER_SIZE = 64;
+    static final int INTRINSICS_OFFSET = 20;
+    static final int RECORD_HEADER_SIZE = 96;
+    static final int MATRIX_FLAG_OFFSET = 24;
+    static final int MATRIX_OFFSET = 32;
+    static final int MATRIX_SIZE = 16;
+    static final int INDEX_ENTRY_SIZE = 24;
+    static final int TRAILER_SIZE = 24;
+    static final int PAGE_SIZE = 4096;
+    private static final int BYTES_PER_POINT = 12;
+
+    /** Default number of frames written between two syncs to storage. */
+    public static final int DEFAULT_SYNC_INTERVAL = 16;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final int mMaxPoints;
+    private final int mRecordSize;
+    private final ByteBuffer mRecordHeader;
+    private final CRC32 mCrc;
+    private final byte[] mCrcScratch;
+    private int mSyncInterval;
+    private int mFrameCount;
+    private double[] mTimestamps;
+    private int[] mPointCounts;
+    private boolean mIsClosed;
+
+    /**
+     * Creates a new container, overwriting any existing file.
+     *
+     * @param file
+     *            the .tgc file.
+     * @param maxPoints
+     *            the largest number of points of a frame, which sets the
+     *            record size.
+     * @param preallocatedFrames
+     *            number of records to reserve on storage up front, 0 to grow
+     *            the file as frames are appended.
+     */
+    public CaptureContainerWriter(File file, int maxPoints,
+            int preallocatedFrames) throws IOException {
+        mFile = file;
+        mMaxPoints = maxPoints;
+        mRecordSize = recordSize(maxPoints);
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        if (preallocatedFrames > 0) {
+            mRandomAccessFile.setLength(FILE_HEADER_SIZE + (long) mRecordSize
+                    * preallocatedFrames);
+        }
+        mChannel = mRandomAccessFile.getChannel();
+        mRecordHeader = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE).order(
+                ByteOrder.LITTLE_ENDIAN);
+        mCrc = new CRC32();
+        mCrcScratch = new byte[16 * 1024];
+        mSyncInterval = DEFAULT_SYNC_INTERVAL;
+        mFrameCount = 0;
+        mTimestamps = new double[256];
+        mPointCounts = new int[256];
+        mIsClosed = false;
+
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(
+                ByteOrder.LITTLE_ENDIAN);
+        header.putLong(FILE_MAGIC);
+        header.putInt(VERSION);
+        header.putInt(mRecordSize);
+        header.putInt(maxPoints);
+        header.clear();
+        writeFully(header, 0);
+    }
+
+    /**
+     * Records the intrinsics of the depth camera in the file header, for
+     * the tools projecting the frames back to depth images.
+     */
+    public synchronized void setIntrinsics(int width, int height, double fx,
+            double fy, double cx, double cy) throws IOException {
+        ByteBuffer intrinsics = ByteBuffer.allocate(
+                FILE_HEADER_SIZE - INTRINSICS_OFFSET).order(
+                ByteOrder.LITTLE_ENDIAN);
+        intrinsics.putInt(width);
+        intrinsics.putInt(height);
+        intrinsics.putDouble(fx);
+        intrinsics.putDouble(fy);
+        intrinsics.putDouble(cx);
+        intrinsics.putDouble(cy);
+        intrinsics.flip();
+        writeFully(intrinsics, INTRINSICS_OFFSET);
+    }
+
+    static int recordSize(int maxPoints) {
+        int size = RECORD_HEADER_SIZE + maxPoints * BYTES_PER_POINT;
+        return (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    static long recordOffset(int recordSize, int frame) {
+        return FILE_HEADER_SIZE + (long) recordSize * frame;
+    }
+
+    /**
+     * Sets how many frames are appended between two syncs to storage, 0 to
+     * only sync when closing.
+     */
+    public void setSyncInterval(int frames) {
+        mSyncInterval = frames;
+    }
+
+    /**
+     * Appends a frame read from a buffer, starting at its position, with
+     * the matrix placing it in the world. The position of the buffer is left
+     * unchanged.
+     *
+     * @param xyz
+     *            the raw little-endian xyz floats as read from the Tango
+     *            service.
+     * @param pointCount
+     *            number of points, at most the maxPoints of the container.
+     * @param timestamp
+     *            timestamp of the frame.
+     * @param modelMatrix
+     *            column-major 4x4 matrix from the depth camera to the world,
+     *            or null if the pose of the frame is not known.
+     */
+    public synchronized void appendFrame(ByteBuffer xyz, int pointCount,
+            double timestamp, float[] modelMatrix) throws IOException {
+        checkFrame(pointCount);
+        ByteBuffer payload = xyz.duplicate();
+        payload.limit(payload.position() + pointCount * BYTES_PER_POINT);
+        // CRC32 only takes arrays before API 26, so go through a scratch one
+        mCrc.reset();
+        ByteBuffer source = payload.duplicate();
+        while (source.hasRemaining()) {
+            int count = Math.min(mCrcScratch.length, source.remaining());
+            source.get(mCrcScratch, 0, count);
+            mCrc.update(mCrcScratch, 0, count);
+        }
+        appendRecord(payload, pointCount, timestamp, modelMatrix);
+    }
+
+    private void checkFrame(int pointCount) throws IOException {
+        if (mIsClosed) {
+            throw new IOException("Container " + mFile + " is closed");
+        }
+        if (pointCount > mMaxPoints) {
+            throw new IOException("Frame of " + pointCount
+                    + " points exceeds the " + mMaxPoints
+                    + " points records of " + mFile);
+        }
+    }
+
+    private void appendRecord(ByteBuffer payload, int pointCount,
+            double timestamp, float[] modelMatrix) throws IOException {
+        mRecordHeader.clear();
+        mRecordHeader.putInt(RECORD_MAGIC);
+        mRecordHeader.putInt(mFrameCount);
+        mRecordHeader.putInt(pointCount);
+        mRecordHeader.putInt((int) mCrc.getValue());
+        mRecordHeader.putDouble(timestamp);
+        mRecordHeader.putInt(modelMatrix != null ? 1 : 0);
+        mRecordHeader.putInt(0);
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            mRecordHeader.putFloat(modelMatrix != null ? modelMatrix[i] : 0);
+        }
+        mRecordHeader.clear();
+
+        long recordOffset = recordOffset(mRecordSize, mFrameCount);
+        writeFully(mRecordHeader, recordOffset);
+        writeFully(payload, recordOffset + RECORD_HEADER_SIZE);
+
+        if (mFrameCount == mTimestamps.length) {
+            double[] timestamps = new double[2 * mFrameCount];
+            System.arraycopy(mTimestamps, 0, timestamps, 0, mFrameCount);
+            mTimestamps = timestamps;
+            int[] pointCounts = new int[2 * mFrameCount];
+            System.arraycopy(mPointCounts, 0, pointCounts, 0, mFrameCount);
+            mPointCounts = pointCounts;
+        }
+        mTimestamps[mFrameCount] = timestamp;
+        mPointCounts[mFrameCount] = pointCount;
+        mFrameCount++;
+
+        if (mSyncInterval > 0 && mFrameCount % mSyncInterval == 0) {
+            mChannel.force(false);
+        }
+    }
+
+    /**
+     * Writes the index and trailer after the last frame, trims the
+     * preallocated space that was not used and closes the file.
+     */
+    public synchronized void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        try {
+            long indexOffset = recordOffset(mRecordSize, mFrameCount);
+            ByteBuffer index = ByteBuffer.allocateDirect(
+                    mFrameCount * INDEX_ENTRY_SIZE + TRAILER_SIZE).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < mFrameCount; i++) {
+                index.putLong(recordOffset(mRecordSize, i));
+                index.putDouble(mTimestamps[i]);
+                index.putInt(mPointCounts[i]);
+                index.putInt(0);
+            }
+            index.putLong(indexOffset);
+            index.putInt(mFrameCount);
+            index.putInt(0);
+            index.putLong(INDEX_MAGIC);
+            index.flip();
+            writeFully(index, indexOffset);
+            mChannel.truncate(indexOffset + index.capacity());
+            mChannel.force(true);
+        } finally {
+            mRandomAccessFile.close();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getRecordSize() {
+        return mRecordSize;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
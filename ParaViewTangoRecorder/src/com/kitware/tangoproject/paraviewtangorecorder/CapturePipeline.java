@@ -0,0 +1,344 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Moves the depth frames to be saved from the Tango callback thread to a
+ * single long-lived writer thread.
+ *
+ * The callback reads each frame straight into a slot of a
+ * {@link FrameRingBuffer} between {@link #beginOffer()} and
+ * {@link #commitOffer(int, double, float[])}, which wakes the writer without
+ * taking any lock. The writer drains the ring into
+ * a {@link FrameSink}. The depth of the queue, the time spent enqueuing and
+ * the frames dropped because the ring was full are recorded, see the
+ * getters.
+ */
+public class CapturePipeline {
+
+    private static final String TAG = CapturePipeline.class.getSimpleName();
+    // The writer also polls, so a wake-up lost to a race only delays it
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(20);
+
+    /**
+     * Destination of the frames, called on the writer thread only.
+     */
+    public interface FrameSink {
+        /**
+         * @param points
+         *            the little-endian xyz floats, from position 0 to the
+         *            limit. Only valid during the call.
+         * @param modelMatrix
+         *            the model matrix given with the frame, or null. Only
+         *            valid during the call.
+         */
+        void writeFrame(ByteBuffer points, int pointCount, double timestamp,
+                float[] modelMatrix);
+    }
+
+    private final FrameRingBuffer mRing;
+    private final FrameSink mSink;
+    private final Object mFlushLock;
+    // Only used by the writer thread
+    private final float[] mModelMatrix;
+    private volatile Runnable mIdleTask;
+    private volatile Thread mWriterThread;
+    private volatile boolean mIsRunning;
+
+    // Producer side statistics, only updated by the callback thread
+    private volatile long mOfferedCount;
+    // Offers whose enqueue time was measured, which leaves out the slots
+    // beginOffer() could not reserve and the aborted ones
+    private volatile long mEnqueueCount;
+    private volatile long mEnqueueNanosTotal;
+    private volatile long mEnqueueNanosMax;
+    private volatile int mMaxQueueDepth;
+    // Consumer side statistics. The written count only grows, as flush()
+    // waits on it, so the counts of the current recording are taken from
+    // baselines saved by resetStatistics()
+    private final AtomicLong mWrittenCount;
+    private volatile long mWriteNanosTotal;
+    private volatile long mWrittenBase;
+    private volatile long mWriteNanosBase;
+    private volatile long mDroppedBase;
+
+    public CapturePipeline(FrameRingBuffer ring, FrameSink sink) {
+        mRing = ring;
+        mSink = sink;
+        mFlushLock = new Object();
+        mModelMatrix = new float[16];
+        mWrittenCount = new AtomicLong(0);
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public synchronized void start() {
+        if (mWriterThread != null) {
+            return;
+        }
+        mIsRunning = true;
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "CaptureWriter");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Writes the frames still queued then stops the writer thread.
+     */
+    public synchronized void stop() {
+        Thread writer = mWriterThread;
+        if (writer == null) {
+            return;
+        }
+        mIsRunning = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        mWriterThread = null;
+        Log.i(TAG, getStatistics());
+    }
+
+    /**
+     * Sets a task run by the writer thread after each pass over the queue,
+     * for other data saved along with the frames. It should return quickly
+     * when it has nothing to do.
+     */
+    public void setIdleTask(Runnable task) {
+        mIdleTask = task;
+    }
+
+    /**
+     * Reserves the next slot of the ring, for the callback to read a frame
+     * into it without a copy. The slot must then be published with
+     * {@link #commitOffer(int, double, float[])} or given back with
+     * {@link #abortOffer()}.
+     *
+     * @return the point storage of the slot, cleared, or null if the ring
+     *         was full and the frame is dropped.
+     */
+    public ByteBuffer beginOffer() {
+        mOfferedCount++;
+        return mRing.beginWrite();
+    }
+
+    /**
+     * Queues the frame read into the slot of {@link #beginOffer()}.
+     *
+     * @see FrameRingBuffer#commitWrite(int, double, float[])
+     */
+    public void commitOffer(int pointCount, double timestamp,
+            float[] modelMatrix) {
+        long start = System.nanoTime();
+        mRing.commitWrite(pointCount, timestamp, modelMatrix);
+        wakeWriter();
+        recordEnqueue(start);
+    }
+
+    /**
+     * Gives back the slot of {@link #beginOffer()}, the frame is not queued.
+     */
+    public void abortOffer() {
+        mRing.abortWrite();
+    }
+
+    private void wakeWriter() {
+        Thread writer = mWriterThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void recordEnqueue(long start) {
+        long elapsed = System.nanoTime() - start;
+        mEnqueueCount++;
+        mEnqueueNanosTotal += elapsed;
+        if (elapsed > mEnqueueNanosMax) {
+            mEnqueueNanosMax = elapsed;
+        }
+        int depth = mRing.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    /**
+     * Waits until every frame queued so far has been written.
+     */
+    public void flush() throws InterruptedException {
+        long target = mRing.getWrittenCount();
+        synchronized (mFlushLock) {
+            while (mWrittenCount.get() < target) {
+                Thread writer = mWriterThread;
+                if (writer == null) {
+                    // Nobody to write them, do it here
+                    drain();
+                    break;
+                }
+                if (!writer.isAlive()) {
+                    Log.e(TAG, "Writer thread died, "
+                            + (target - mWrittenCount.get())
+                            + " frames not written");
+                    break;
+                }
+                LockSupport.unpark(writer);
+                mFlushLock.wait(IDLE_PARK_NANOS / 1000000);
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames waiting to be written.
+     */
+    public int getQueueDepth() {
+        return mRing.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return mRing.getCapacity();
+    }
+
+    public long getOfferedFrameCount() {
+        return mOfferedCount;
+    }
+
+    public long getWrittenFrameCount() {
+        return mWrittenCount.get() - mWrittenBase;
+    }
+
+    public long getDroppedFrameCount() {
+        return mRing.getDroppedCount() - mDroppedBase;
+    }
+
+    /**
+     * @return the mean time spent in
+     *         {@link #commitOffer(int, double, float[])} by the callback
+     *         thread, in microseconds.
+     */
+    public double getAverageEnqueueLatencyUs() {
+        long count = mEnqueueCount;
+        return count == 0 ? 0 : mEnqueueNanosTotal / 1000.0 / count;
+    }
+
+    public double getMaxEnqueueLatencyUs() {
+        return mEnqueueNanosMax / 1000.0;
+    }
+
+    /**
+     * @return the mean time the sink took to write a frame, in milliseconds.
+     */
+    public double getAverageWriteLatencyMs() {
+        long count = getWrittenFrameCount();
+        return count <= 0 ? 0 : (mWriteNanosTotal - mWriteNanosBase)
+                / 1000000.0 / count;
+    }
+
+    /**
+     * Clears the statistics, for instance when a new recording starts.
+     */
+    public void resetStatistics() {
+        mOfferedCount = 0;
+        mEnqueueCount = 0;
+        mEnqueueNanosTotal = 0;
+        mEnqueueNanosMax = 0;
+        mMaxQueueDepth = 0;
+        mWriteNanosBase = mWriteNanosTotal;
+        mWrittenBase = mWrittenCount.get();
+        mDroppedBase = mRing.getDroppedCount();
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames offered, %d written, %d dropped, "
+                + "queue depth %d (max %d of %d), enqueue %.1f us (max %.1f us), "
+                + "write %.1f ms", getOfferedFrameCount(),
+                getWrittenFrameCount(), getDroppedFrameCount(),
+                getQueueDepth(), getMaxQueueDepth(), getQueueCapacity(),
+                getAverageEnqueueLatencyUs(), getMaxEnqueueLatencyUs(),
+                getAverageWriteLatencyMs());
+    }
+
+    private void writerLoop() {
+        while (mIsRunning) {
+            int written = drain();
+            Runnable idleTask = mIdleTask;
+            if (idleTask != null) {
+                try {
+                    idleTask.run();
+                } catch (Throwable e) {
+                    // An Error, e.g. running out of memory, must not stop
+                    // the writer either, or flush() would never return
+                    Log.e(TAG, "Idle task failed", e);
+                }
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        // Frames queued before stop() was called
+        drain();
+    }
+
+    private int drain() {
+        int count = 0;
+        ByteBuffer points;
+        while ((points = mRing.beginRead()) != null) {
+            long start = System.nanoTime();
+            try {
+                mSink.writeFrame(points, mRing.getReadPointCount(),
+                        mRing.getReadTimestamp(),
+                        mRing.getReadModelMatrix(mModelMatrix) ? mModelMatrix
+                                : null);
+            } catch (Throwable e) {
+                // Counted as written, flush() waits for the frame to be
+                // done with
+                Log.e(TAG, "Frame not written", e);
+            }
+            mRing.endRead();
+            mWriteNanosTotal += System.nanoTime() - start;
+            mWrittenCount.incrementAndGet();
+            count++;
+        }
+        if (count > 0) {
+            synchronized (mFlushLock) {
+                mFlushLock.notifyAll();
+            }
+        }
+        return count;
+    }
+}
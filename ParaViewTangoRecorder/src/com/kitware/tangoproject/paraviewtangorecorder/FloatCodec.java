@@ -0,0 +1,385 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless codec for the xyz float arrays of the point clouds.
+ *
+ * Deflate finds few repeated byte strings in raw IEEE floats. The points of a
+ * Tango frame come in scan order though, so each component is predicted by
+ * extrapolating the two previous points. Floats of the same sign and
+ * exponent compare like integers, so the prediction is done on their bits and
+ * the residual, zigzag encoded, usually has its sign, exponent and high
+ * mantissa bits at zero. The residuals are then split in four byte planes, so
+ * that the mostly zero high bytes end up next to each other, and the planes
+ * are deflated. Integer wrap-around keeps the whole thing lossless for any
+ * bit pattern, NaNs included.
+ *
+ * An encoded frame (.xyzc) is a 24 byte little-endian header: magic, point
+ * count, timestamp, payload length, reserved; followed by the deflate stream.
+ *
+ * An instance keeps scratch buffers and must only be used from one thread at
+ * a time. {@link #release()} frees the native zlib state.
+ */
+public class FloatCodec {
+
+    static final int MAGIC = 0x435a5958; // "XYZC"
+    /** Size of the header of an encoded frame. */
+    public static final int HEADER_SIZE = 24;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+
+    private final int mDeflaterLevel;
+    private final Deflater mDeflater;
+    private final Inflater mInflater;
+    private byte[] mPlanes;
+    private byte[] mOutput;
+    private double mDecodedTimestamp;
+    private boolean mBenchmark;
+    private FloatCodec mBenchmarkDecoder;
+    private Deflater mBaselineDeflater;
+    private ByteBuffer mBenchmarkBuffer;
+
+    // Statistics
+    private long mRawBytes;
+    private long mEncodedBytes;
+    private long mEncodeNanos;
+    private long mFrameCount;
+    private long mBaselineBytes;
+    private long mBaselineNanos;
+    private long mMismatchCount;
+
+    /**
+     * @param maxPoints
+     *            the largest number of points of a frame.
+     * @param compression
+     *            one of the ZipWriter.COMPRESSION_* modes, STORED is not
+     *            supported.
+     */
+    public FloatCodec(int maxPoints, int compression) {
+        mDeflaterLevel = ZipWriter.deflateLevel(compression);
+        mDeflater = new Deflater(mDeflaterLevel, true);
+        mInflater = new Inflater(true);
+        allocate(maxPoints);
+    }
+
+    /**
+     * Encodes a frame.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, read from its position, which
+     *            is left unchanged.
+     * @return the encoded frame, valid until the next call.
+     */
+    public ByteBuffer encode(ByteBuffer xyz, int pointCount, double timestamp) {
+        long start = System.nanoTime();
+        int valueCount = pointCount * POINT_TO_XYZ;
+        if (valueCount * BYTES_PER_FLOAT > mPlanes.length) {
+            allocate(pointCount);
+        }
+        ByteBuffer source = xyz.duplicate();
+        source.limit(source.position() + valueCount * BYTES_PER_FLOAT);
+        IntBuffer values = source.slice().order(ByteOrder.LITTLE_ENDIAN)
+                .asIntBuffer();
+
+        byte[] planes = mPlanes;
+        for (int i = 0; i < valueCount; i++) {
+            shuffle(planes, valueCount, i, zigzag(values.get(i)
+                    - predict(values, i)));
+        }
+
+        mDeflater.reset();
+        mDeflater.setInput(planes, 0, valueCount * BYTES_PER_FLOAT);
+        mDeflater.finish();
+        int length = HEADER_SIZE;
+        while (!mDeflater.finished()) {
+            if (length == mOutput.length) {
+                byte[] output = new byte[2 * mOutput.length];
+                System.arraycopy(mOutput, 0, output, 0, length);
+                mOutput = output;
+            }
+            length += mDeflater.deflate(mOutput, length, mOutput.length
+                    - length);
+        }
+
+        ByteBuffer encoded = ByteBuffer.wrap(mOutput, 0, length).order(
+                ByteOrder.LITTLE_ENDIAN);
+        encoded.putInt(0, MAGIC);
+        encoded.putInt(4, pointCount);
+        encoded.putDouble(8, timestamp);
+        encoded.putInt(16, length - HEADER_SIZE);
+        encoded.putInt(20, 0);
+
+        mRawBytes += valueCount * BYTES_PER_FLOAT;
+        mEncodedBytes += length;
+        mEncodeNanos += System.nanoTime() - start;
+        mFrameCount++;
+        if (mBenchmark) {
+            benchmark(source.slice(), pointCount, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Enables the comparison of each encoded frame with plain deflate, as
+     * done for the archive entries, and the check that it decodes back to
+     * the same bytes. This more than doubles the encoding time.
+     */
+    public void setBenchmark(boolean benchmark) {
+        mBenchmark = benchmark;
+    }
+
+    /**
+     * Deflates the raw frame with the same level as the codec, then decodes
+     * the encoded frame and compares it with the raw one.
+     */
+    private void benchmark(ByteBuffer raw, int pointCount, ByteBuffer encoded) {
+        int length = raw.remaining();
+        if (mBenchmarkDecoder == null) {
+            mBenchmarkDecoder = new FloatCodec(pointCount,
+                    ZipWriter.COMPRESSION_DEFAULT);
+            mBaselineDeflater = new Deflater(mDeflaterLevel, true);
+        }
+        if (mBenchmarkBuffer == null || mBenchmarkBuffer.capacity() < length) {
+            mBenchmarkBuffer = ByteBuffer.allocate(length);
+        }
+
+        // Reuse the planes of the codec as deflate input and output
+        byte[] input = mPlanes;
+        raw.duplicate().get(input, 0, length);
+        long start = System.nanoTime();
+        mBaselineDeflater.reset();
+        mBaselineDeflater.setInput(input, 0, length);
+        mBaselineDeflater.finish();
+        byte[] output = mBenchmarkBuffer.array();
+        while (!mBaselineDeflater.finished()) {
+            mBaselineBytes += mBaselineDeflater.deflate(output);
+        }
+        mBaselineNanos += System.nanoTime() - start;
+
+        mBenchmarkBuffer.clear();
+        try {
+            mBenchmarkDecoder.decode(encoded.duplicate(), mBenchmarkBuffer);
+            mBenchmarkBuffer.flip();
+            if (!mBenchmarkBuffer.equals(raw.duplicate())) {
+                mMismatchCount++;
+            }
+        } catch (IOException e) {
+            mMismatchCount++;
+        }
+    }
+
+    /**
+     * Decodes a frame.
+     *
+     * @param encoded
+     *            the encoded frame, from its position.
+     * @param xyz
+     *            receives the little-endian xyz floats at its position, which
+     *            is moved past them.
+     * @return the number of points.
+     */
+    public int decode(ByteBuffer encoded, ByteBuffer xyz) throws IOException {
+        ByteBuffer header = encoded.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = header.position();
+        if (header.remaining() < HEADER_SIZE
+                || header.getInt(start) != MAGIC) {
+            throw new IOException("Not an encoded point cloud");
+        }
+        int pointCount = header.getInt(start + 4);
+        mDecodedTimestamp = header.getDouble(start + 8);
+        int payloadLength = header.getInt(start + 16);
+        int valueCount = pointCount * POINT_TO_XYZ;
+        if (valueCount * BYTES_PER_FLOAT > mPlanes.length) {
+            allocate(pointCount);
+        }
+        if (payloadLength > mOutput.length) {
+            mOutput = new byte[payloadLength];
+        }
+        header.position(start + HEADER_SIZE);
+        header.get(mOutput, 0, payloadLength);
+
+        mInflater.reset();
+        mInflater.setInput(mOutput, 0, payloadLength);
+        int length = valueCount * BYTES_PER_FLOAT;
+        int inflated = 0;
+        try {
+            while (inflated < length) {
+                int count = mInflater.inflate(mPlanes, inflated, length
+                        - inflated);
+                if (count == 0 && (mInflater.finished()
+                        || mInflater.needsInput())) {
+                    break;
+                }
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted point cloud: " + e.getMessage());
+        }
+        if (inflated != length) {
+            throw new IOException("Truncated point cloud");
+        }
+
+        IntBuffer values = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asIntBuffer();
+        byte[] planes = mPlanes;
+        for (int i = 0; i < valueCount; i++) {
+            values.put(i, unzigzag(unshuffle(planes, valueCount, i))
+                    + predict(values, i));
+        }
+        xyz.position(xyz.position() + length);
+        return pointCount;
+    }
+
+    /**
+     * @return the timestamp of the last decoded frame.
+     */
+    public double getDecodedTimestamp() {
+        return mDecodedTimestamp;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /**
+     * @return the encoded size over the raw size of all the frames.
+     */
+    public double getRatio() {
+        return mRawBytes == 0 ? 1 : (double) mEncodedBytes / mRawBytes;
+    }
+
+    /**
+     * @return the encoding throughput in MB/s of raw floats.
+     */
+    public double getThroughput() {
+        return mEncodeNanos == 0 ? 0 : mRawBytes * 1000.0 / mEncodeNanos;
+    }
+
+    /**
+     * @return the plain deflate size over the raw size of the frames, when
+     *         benchmarking.
+     */
+    public double getBaselineRatio() {
+        return mRawBytes == 0 ? 1 : (double) mBaselineBytes / mRawBytes;
+    }
+
+    /**
+     * @return the plain deflate throughput in MB/s, when benchmarking.
+     */
+    public double getBaselineThroughput() {
+        return mBaselineNanos == 0 ? 0 : mRawBytes * 1000.0 / mBaselineNanos;
+    }
+
+    /**
+     * @return the number of frames that did not decode back to the same
+     *         bytes, when benchmarking.
+     */
+    public long getMismatchCount() {
+        return mMismatchCount;
+    }
+
+    public String getStatistics() {
+        String statistics = String.format("%d frames, %.1f%% of %d bytes at "
+                + "%.1f MB/s", mFrameCount, 100 * getRatio(), mRawBytes,
+                getThroughput());
+        if (mBenchmark) {
+            statistics += String.format(", deflate alone %.1f%% at %.1f MB/s, "
+                    + "%d round trip mismatches", 100 * getBaselineRatio(),
+                    getBaselineThroughput(), mMismatchCount);
+        }
+        return statistics;
+    }
+
+    public void resetStatistics() {
+        mRawBytes = 0;
+        mEncodedBytes = 0;
+        mEncodeNanos = 0;
+        mFrameCount = 0;
+        mBaselineBytes = 0;
+        mBaselineNanos = 0;
+        mMismatchCount = 0;
+    }
+
+    public void release() {
+        mDeflater.end();
+        mInflater.end();
+        if (mBenchmarkDecoder != null) {
+            mBenchmarkDecoder.release();
+            mBaselineDeflater.end();
+        }
+    }
+
+    private void allocate(int maxPoints) {
+        int length = maxPoints * POINT_TO_XYZ * BYTES_PER_FLOAT;
+        mPlanes = new byte[length];
+        mOutput = new byte[HEADER_SIZE + length + length / 1000 + 64];
+    }
+
+    private static void shuffle(byte[] planes, int planeSize, int index,
+            int value) {
+        planes[index] = (byte) value;
+        planes[planeSize + index] = (byte) (value >>> 8);
+        planes[2 * planeSize + index] = (byte) (value >>> 16);
+        planes[3 * planeSize + index] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Linear extrapolation of value i from the same component of the two
+     * previous points.
+     */
+    private static int predict(IntBuffer values, int i) {
+        if (i >= 2 * POINT_TO_XYZ) {
+            return 2 * values.get(i - POINT_TO_XYZ)
+                    - values.get(i - 2 * POINT_TO_XYZ);
+        }
+        return i >= POINT_TO_XYZ ? values.get(i - POINT_TO_XYZ) : 0;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int unshuffle(byte[] planes, int planeSize, int index) {
+        return (planes[index] & 0xff)
+                | (planes[planeSize + index] & 0xff) << 8
+                | (planes[2 * planeSize + index] & 0xff) << 16
+                | (planes[3 * planeSize + index] & 0xff) << 24;
+    }
+}
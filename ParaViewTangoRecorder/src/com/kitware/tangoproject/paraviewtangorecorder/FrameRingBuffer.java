@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-capacity ring of depth frames stored outside of the Java heap, either
+ * in direct memory or in a memory-mapped spill file. It sits between the
+ * depth callback, the single producer, and the thread writing the frames to
+ * storage, the single consumer, and absorbs the bursts where storage stalls
+ * without growing the heap.
+ *
+ * Each slot holds the point count, the timestamp, optionally the model matrix
+ * placing the frame in the world, and up to maxPoints xyz floats,
+ * little-endian as delivered by the Tango service. The producer fills a slot
+ * with {@link #beginWrite()} and publishes it with
+ * {@link #commitWrite(int, double, float[])}; the consumer reads it with
+ * {@link #beginRead()} and frees it with {@link #endRead()}. The two cursors
+ * are only advanced by their own side, so no lock is needed.
+ *
+ * What happens to a frame when all the slots are taken is set by
+ * {@link #setFullPolicy(int, long)}. Dropped frames are counted.
+ */
+public class FrameRingBuffer {
+
+    /** Discard the incoming frame right away when the ring is full. */
+    public static final int POLICY_DROP_NEWEST = 0;
+    /**
+     * Wait for the consumer to free a slot, up to a timeout, then discard
+     * the incoming frame.
+     */
+    public static final int POLICY_WAIT = 1;
+
+    // Point count, model matrix flag, timestamp, model matrix
+    private static final int SLOT_HEADER_SIZE = 80;
+    private static final int MATRIX_FLAG_OFFSET = 4;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int MATRIX_OFFSET = 16;
+    private static final int MATRIX_SIZE = 16;
+    private static final int SLOT_ALIGNMENT = 64;
+    private static final int BYTES_PER_POINT = 12;
+    private static final long WAIT_PARK_NANOS = 200000;
+
+    private final int mCapacity;
+    private final int mMaxPoints;
+    private final int mSlotSize;
+    private final ByteBuffer mStorage;
+    private final ByteBuffer[] mSlotPoints;
+    private final RandomAccessFile mSpillFile;
+    // Next slot to write, only advanced by the producer
+    private final AtomicLong mWriteCursor;
+    // Next slot to read, only advanced by the consumer
+    private final AtomicLong mReadCursor;
+    private final AtomicLong mDroppedCount;
+    private volatile int mFullPolicy;
+    private volatile long mWaitTimeoutNanos;
+    private boolean mIsWriting;
+    private boolean mIsReading;
+
+    /**
+     * @param capacity
+     *            number of frame slots.
+     * @param maxPoints
+     *            the largest number of points of a frame.
+     * @param spillFile
+     *            file to map the slots to, or null to keep them in direct
+     *            memory. The file is overwritten.
+     */
+    public FrameRingBuffer(int capacity, int maxPoints, File spillFile)
+            throws IOException {
+        int slotSize = SLOT_HEADER_SIZE + maxPoints * BYTES_PER_POINT;
+        slotSize = (slotSize + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT
+                * SLOT_ALIGNMENT;
+        if (capacity <= 0 || (long) slotSize * capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot hold " + capacity
+                    + " frames of " + maxPoints + " points");
+        }
+        mCapacity = capacity;
+        mMaxPoints = maxPoints;
+        mSlotSize = slotSize;
+
+        if (spillFile != null) {
+            mSpillFile = new RandomAccessFile(spillFile, "rw");
+            try {
+                mSpillFile.setLength(0);
+                mStorage = mSpillFile.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0,
+                        (long) mSlotSize * capacity);
+            } catch (IOException e) {
+                mSpillFile.close();
+                throw e;
+            }
+        } else {
+            mSpillFile = null;
+            mStorage = ByteBuffer.allocateDirect(mSlotSize * capacity);
+        }
+        mStorage.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Views are made once so that moving frames allocates nothing
+        mSlotPoints = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ByteBuffer view = mStorage.duplicate();
+            int start = i * mSlotSize + SLOT_HEADER_SIZE;
+            view.limit(start + maxPoints * BYTES_PER_POINT);
+            view.position(start);
+            mSlotPoints[i] = view.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        mWriteCursor = new AtomicLong(0);
+        mReadCursor = new AtomicLong(0);
+        mDroppedCount = new AtomicLong(0);
+        mFullPolicy = POLICY_DROP_NEWEST;
+        mWaitTimeoutNanos = 0;
+    }
+
+    /**
+     * Sets what to do with an incoming frame when the ring is full.
+     *
+     * @param policy
+     *            one of the POLICY_* values.
+     * @param waitTimeoutMs
+     *            longest time the producer waits for a slot with
+     *            POLICY_WAIT.
+     */
+    public void setFullPolicy(int policy, long waitTimeoutMs) {
+        mFullPolicy = policy;
+        mWaitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(waitTimeoutMs);
+    }
+
+    public int getFullPolicy() {
+        return mFullPolicy;
+    }
+
+    // Producer side
+
+    /**
+     * Reserves the next slot for the producer.
+     *
+     * @return the point storage of the slot, cleared, or null if the ring is
+     *         full and the frame is dropped.
+     */
+    public ByteBuffer beginWrite() {
+        long write = mWriteCursor.get();
+        if (write - mReadCursor.get() >= mCapacity) {
+            if (mFullPolicy != POLICY_WAIT || !awaitFreeSlot(write)) {
+                mDroppedCount.incrementAndGet();
+                return null;
+            }
+        }
+        mIsWriting = true;
+        ByteBuffer points = mSlotPoints[(int) (write % mCapacity)];
+        points.clear();
+        return points;
+    }
+
+    /**
+     * Gives back the slot reserved by {@link #beginWrite()} without
+     * publishing it, for instance when the frame could not be read.
+     */
+    public void abortWrite() {
+        mIsWriting = false;
+    }
+
+    /**
+     * Publishes the slot reserved by {@link #beginWrite()} to the consumer.
+     */
+    public void commitWrite(int pointCount, double timestamp) {
+        commitWrite(pointCount, timestamp, null);
+    }
+
+    /**
+     * Publishes the slot reserved by {@link #beginWrite()} to the consumer.
+     *
+     * @param modelMatrix
+     *            the column-major 4x4 matrix from the depth camera to the
+     *            world at the time of the frame, copied, or null if unknown.
+     */
+    public void commitWrite(int pointCount, double timestamp,
+            float[] modelMatrix) {
+        if (!mIsWriting) {
+            throw new IllegalStateException("No slot reserved for writing");
+        }
+        if (pointCount < 0 || pointCount > mMaxPoints) {
+            throw new IllegalArgumentException(pointCount
+                    + " points do not fit in a slot of " + mMaxPoints);
+        }
+        long write = mWriteCursor.get();
+        int header = (int) (write % mCapacity) * mSlotSize;
+        mStorage.putInt(header, pointCount);
+        mStorage.putDouble(header + TIMESTAMP_OFFSET, timestamp);
+        mStorage.putInt(header + MATRIX_FLAG_OFFSET, modelMatrix != null ? 1
+                : 0);
+        if (modelMatrix != null) {
+            for (int i = 0; i < MATRIX_SIZE; i++) {
+                mStorage.putFloat(header + MATRIX_OFFSET + 4 * i,
+                        modelMatrix[i]);
+            }
+        }
+        mIsWriting = false;
+        // The ordered store makes the slot content visible before the cursor
+        mWriteCursor.lazySet(write + 1);
+    }
+
+    // Consumer side
+
+    /**
+     * @return the points of the oldest published frame, from position 0 to
+     *         the limit, or null if the ring is empty. The slot stays taken
+     *         until {@link #endRead()}.
+     */
+    public ByteBuffer beginRead() {
+        long read = mReadCursor.get();
+        if (read >= mWriteCursor.get()) {
+            return null;
+        }
+        mIsReading = true;
+        ByteBuffer points = mSlotPoints[(int) (read % mCapacity)];
+        points.clear();
+        points.limit(getReadPointCount() * BYTES_PER_POINT);
+        return points;
+    }
+
+    public int getReadPointCount() {
+        return mStorage.getInt((int) (mReadCursor.get() % mCapacity)
+                * mSlotSize);
+    }
+
+    public double getReadTimestamp() {
+        return mStorage.getDouble((int) (mReadCursor.get() % mCapacity)
+                * mSlotSize + TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Copies the model matrix of the frame being read.
+     *
+     * @return false if the frame was published without one, dst is then
+     *         left unchanged.
+     */
+    public boolean getReadModelMatrix(float[] dst) {
+        int header = (int) (mReadCursor.get() % mCapacity) * mSlotSize;
+        if (mStorage.getInt(header + MATRIX_FLAG_OFFSET) == 0) {
+            return false;
+        }
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            dst[i] = mStorage.getFloat(header + MATRIX_OFFSET + 4 * i);
+        }
+        return true;
+    }
+
+    /**
+     * Frees the slot returned by {@link #beginRead()}.
+     */
+    public void endRead() {
+        if (!mIsReading) {
+            throw new IllegalStateException("No slot taken for reading");
+        }
+        mIsReading = false;
+        mReadCursor.lazySet(mReadCursor.get() + 1);
+    }
+
+    // Statistics
+
+    /**
+     * @return the number of frames waiting for the consumer.
+     */
+    public int size() {
+        return (int) (mWriteCursor.get() - mReadCursor.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+
+    /**
+     * @return the number of frames published since the ring was created.
+     */
+    public long getWrittenCount() {
+        return mWriteCursor.get();
+    }
+
+    /**
+     * @return the number of frames discarded because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Releases the spill file, if any. The ring must not be used afterwards.
+     */
+    public void close() throws IOException {
+        if (mSpillFile != null) {
+            mSpillFile.close();
+        }
+    }
+
+    private boolean awaitFreeSlot(long write) {
+        long deadline = System.nanoTime() + mWaitTimeoutNanos;
+        while (write - mReadCursor.get() >= mCapacity) {
+            if (System.nanoTime() - deadline >= 0
+                    || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            LockSupport.parkNanos(WAIT_PARK_NANOS);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Merges the frames of a session into a single world-space point cloud.
+ *
+ * Each frame is moved to the world with its model matrix, the one
+ * ModelMatCalculator.getPointCloudModelMatrixCopy() gives to the renderer,
+ * then its points are binned in voxels of a fixed leaf size. Each voxel keeps
+ * the sum and the number of the points that fell in it, and the merged cloud
+ * holds the centroid of every voxel seen often enough.
+ *
+ * The voxels live in an open-addressed hash table of primitive arrays sized
+ * once for a maximum number of voxels, so the memory used does not grow with
+ * the length of the session. Points falling in a new voxel once the map is
+ * full are dropped and counted.
+ *
+ * An instance must only be used from one thread at a time.
+ */
+public class FusedMapAccumulator {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+
+    private final int mMaxVoxels;
+    private final float mLeafSize;
+    private final long[] mKeys;
+    private final int[] mVoxels;
+    private final int mMask;
+    private final float[] mSums;
+    private final int[] mCounts;
+    private int mVoxelCount;
+    private double mLastTimestamp;
+
+    // Statistics
+    private long mFrameCount;
+    private long mPointCount;
+    private long mRejectedPointCount;
+    private long mAccumulateNanos;
+
+    /**
+     * @param maxVoxels
+     *            the largest number of voxels of the map.
+     * @param leafSize
+     *            the edge of the voxels, in meters.
+     */
+    public FusedMapAccumulator(int maxVoxels, float leafSize) {
+        if (maxVoxels <= 0 || !(leafSize > 0)) {
+            throw new IllegalArgumentException("Cannot hold " + maxVoxels
+                    + " voxels of " + leafSize + " m");
+        }
+        mMaxVoxels = maxVoxels;
+        mLeafSize = leafSize;
+        int capacity = Integer.highestOneBit(maxVoxels * 2) * 2;
+        mKeys = new long[capacity];
+        mVoxels = new int[capacity];
+        mMask = capacity - 1;
+        mSums = new float[maxVoxels * POINT_TO_XYZ];
+        mCounts = new int[maxVoxels];
+        clear();
+    }
+
+    public int getMaxVoxels() {
+        return mMaxVoxels;
+    }
+
+    public float getLeafSize() {
+        return mLeafSize;
+    }
+
+    /**
+     * Forgets all the voxels and the statistics.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, VoxelKeys.EMPTY_KEY);
+        mVoxelCount = 0;
+        mLastTimestamp = 0;
+        mFrameCount = 0;
+        mPointCount = 0;
+        mRejectedPointCount = 0;
+        mAccumulateNanos = 0;
+    }
+
+    /**
+     * Adds the points of a frame to the map.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, in the depth camera frame,
+     *            from its position, which is left unchanged.
+     * @param modelMatrix
+     *            column-major 4x4 matrix from the depth camera to the world.
+     */
+    public void accumulate(ByteBuffer xyz, int pointCount, double timestamp,
+            float[] modelMatrix) {
+        long start = System.nanoTime();
+        FloatBuffer points = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        float m0 = modelMatrix[0], m4 = modelMatrix[4], m8 = modelMatrix[8];
+        float m12 = modelMatrix[12];
+        float m1 = modelMatrix[1], m5 = modelMatrix[5], m9 = modelMatrix[9];
+        float m13 = modelMatrix[13];
+        float m2 = modelMatrix[2], m6 = modelMatrix[6], m10 = modelMatrix[10];
+        float m14 = modelMatrix[14];
+        float inverseLeaf = 1 / mLeafSize;
+        float[] sums = mSums;
+        int[] counts = mCounts;
+        int rejected = 0;
+        for (int p = 0; p < pointCount; p++) {
+            int o = p * POINT_TO_XYZ;
+            float x = points.get(o);
+            float y = points.get(o + 1);
+            float z = points.get(o + 2);
+            float wx = m0 * x + m4 * y + m8 * z + m12;
+            float wy = m1 * x + m5 * y + m9 * z + m13;
+            float wz = m2 * x + m6 * y + m10 * z + m14;
+            if (wx != wx || wy != wy || wz != wz) {
+                rejected++;
+                continue;
+            }
+            int voxel = findVoxel(VoxelKeys.pack(wx * inverseLeaf,
+                    wy * inverseLeaf, wz * inverseLeaf));
+            if (voxel < 0) {
+                rejected++;
+                continue;
+            }
+            int v = voxel * POINT_TO_XYZ;
+            sums[v] += wx;
+            sums[v + 1] += wy;
+            sums[v + 2] += wz;
+            counts[voxel]++;
+        }
+        mLastTimestamp = timestamp;
+        mFrameCount++;
+        mPointCount += pointCount;
+        mRejectedPointCount += rejected;
+        mAccumulateNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return the index of the voxel, created if needed, or -1 if the map
+     *         is full.
+     */
+    private int findVoxel(long key) {
+        int slot = VoxelKeys.hash(key) & mMask;
+        long slotKey;
+        while ((slotKey = mKeys[slot]) != VoxelKeys.EMPTY_KEY) {
+            if (slotKey == key) {
+                return mVoxels[slot];
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (mVoxelCount == mMaxVoxels) {
+            return -1;
+        }
+        int voxel = mVoxelCount++;
+        mKeys[slot] = key;
+        mVoxels[slot] = voxel;
+        int v = voxel * POINT_TO_XYZ;
+        mSums[v] = 0;
+        mSums[v + 1] = 0;
+        mSums[v + 2] = 0;
+        mCounts[voxel] = 0;
+        return voxel;
+    }
+
+    public int getVoxelCount() {
+        return mVoxelCount;
+    }
+
+    /**
+     * @return the timestamp of the last frame added.
+     */
+    public double getLastTimestamp() {
+        return mLastTimestamp;
+    }
+
+    /**
+     * Writes the centroids of the voxels holding at least minCount points,
+     * in the order the voxels were first seen.
+     *
+     * @param dst
+     *            receives the little-endian xyz floats at its position, which
+     *            is moved past them. Must have room for
+     *            {@link #getVoxelCount()} points.
+     * @return the number of points written.
+     */
+    public int export(ByteBuffer dst, int minCount) {
+        FloatBuffer points = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        int written = 0;
+        for (int voxel = 0; voxel < mVoxelCount; voxel++) {
+            int count = mCounts[voxel];
+            if (count < minCount || count == 0) {
+                continue;
+            }
+            int v = voxel * POINT_TO_XYZ;
+            points.put(mSums[v] / count);
+            points.put(mSums[v + 1] / count);
+            points.put(mSums[v + 2] / count);
+            written++;
+        }
+        dst.position(dst.position() + written * POINT_TO_XYZ * BYTES_PER_FLOAT);
+        return written;
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames, %d points merged in %d voxels of "
+                + "%.3f m (max %d), %d points rejected, %.2f ms per frame",
+                mFrameCount, mPointCount - mRejectedPointCount, mVoxelCount,
+                mLeafSize, mMaxVoxels, mRejectedPointCount,
+                mFrameCount == 0 ? 0 : mAccumulateNanos / 1000000.0
+                        / mFrameCount);
+    }
+}
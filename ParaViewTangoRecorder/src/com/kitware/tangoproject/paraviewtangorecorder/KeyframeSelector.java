@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Decides which depth frames of the auto mode are saved: a frame is a
+ * keyframe when the depth camera moved or turned enough since the last
+ * keyframe, or when too much time went by.
+ *
+ * The motion is measured on the model matrices of the frames, from the depth
+ * camera to the world. Frames without a valid pose are only kept on time.
+ *
+ * Deciding and accepting are two steps, so that a keyframe the capture
+ * pipeline could not take does not become the reference of the next ones.
+ * Every accepted keyframe is logged, see {@link #write(OutputStream)}.
+ */
+public class KeyframeSelector {
+
+    /** Not a keyframe. */
+    public static final int REASON_NONE = 0;
+    /** The first frame, or the first with a pose. */
+    public static final int REASON_FIRST = 1;
+    /** The camera moved by the minimum translation. */
+    public static final int REASON_TRANSLATION = 2;
+    /** The camera turned by the minimum rotation. */
+    public static final int REASON_ROTATION = 3;
+    /** The maximum interval went by. */
+    public static final int REASON_INTERVAL = 4;
+
+    private static final String[] REASON_NAMES = { "none", "first",
+            "translation", "rotation", "interval" };
+    private static final int MATRIX_SIZE = 16;
+
+    private float mMinTranslation;
+    private float mMinRotation;
+    private double mMaxInterval;
+
+    // Last keyframe
+    private boolean mHasKeyframe;
+    private double mKeyframeTimestamp;
+    private final float[] mKeyframeMatrix;
+    private boolean mKeyframeHasPose;
+    // Motion from the last keyframe to the last frame checked
+    private float mTranslation;
+    private float mRotation;
+
+    // Log of the accepted keyframes
+    private double[] mLogTimestamps;
+    private int[] mLogReasons;
+    private float[] mLogMotions;
+
+    // Statistics
+    private long mCandidateCount;
+    private final long[] mReasonCounts;
+
+    public KeyframeSelector() {
+        mMinTranslation = 0.1f;
+        mMinRotation = 10;
+        mMaxInterval = 2.0;
+        mKeyframeMatrix = new float[MATRIX_SIZE];
+        mLogTimestamps = new double[256];
+        mLogReasons = new int[256];
+        mLogMotions = new float[2 * 256];
+        mReasonCounts = new long[REASON_NAMES.length];
+    }
+
+    /**
+     * @param meters
+     *            the translation of the camera making a keyframe.
+     */
+    public synchronized void setMinTranslation(float meters) {
+        mMinTranslation = meters;
+    }
+
+    public synchronized float getMinTranslation() {
+        return mMinTranslation;
+    }
+
+    /**
+     * @param degrees
+     *            the rotation of the camera making a keyframe.
+     */
+    public synchronized void setMinRotation(float degrees) {
+        mMinRotation = degrees;
+    }
+
+    public synchronized float getMinRotation() {
+        return mMinRotation;
+    }
+
+    /**
+     * @param seconds
+     *            the time after which a frame is a keyframe even if the
+     *            camera did not move, 0 for no limit.
+     */
+    public synchronized void setMaxInterval(double seconds) {
+        mMaxInterval = seconds;
+    }
+
+    public synchronized double getMaxInterval() {
+        return mMaxInterval;
+    }
+
+    /**
+     * Forgets the last keyframe, the log and the statistics.
+     */
+    public synchronized void reset() {
+        mHasKeyframe = false;
+        mCandidateCount = 0;
+        Arrays.fill(mReasonCounts, 0);
+    }
+
+    /**
+     * Tells whether a frame is a keyframe, without making it the reference
+     * of the next frames, see {@link #accept(double, float[], int)}.
+     *
+     * @param modelMatrix
+     *            column-major 4x4 matrix from the depth camera to the world,
+     *            or null if the pose of the frame is not valid.
+     * @return one of the REASON_* values.
+     */
+    public synchronized int check(double timestamp, float[] modelMatrix) {
+        mCandidateCount++;
+        mTranslation = 0;
+        mRotation = 0;
+        if (!mHasKeyframe || (modelMatrix != null && !mKeyframeHasPose)) {
+            return REASON_FIRST;
+        }
+        if (modelMatrix != null) {
+            float[] k = mKeyframeMatrix;
+            float dx = modelMatrix[12] - k[12];
+            float dy = modelMatrix[13] - k[13];
+            float dz = modelMatrix[14] - k[14];
+            mTranslation = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            // The trace of the relative rotation gives its angle
+            float trace = 0;
+            for (int column = 0; column < 3; column++) {
+                for (int row = 0; row < 3; row++) {
+                    trace += k[column * 4 + row]
+                            * modelMatrix[column * 4 + row];
+                }
+            }
+            mRotation = (float) Math.toDegrees(Math.acos(Math.max(-1,
+                    Math.min(1, (trace - 1) / 2))));
+            if (mTranslation >= mMinTranslation) {
+                return REASON_TRANSLATION;
+            }
+            if (mRotation >= mMinRotation) {
+                return REASON_ROTATION;
+            }
+        }
+        if (mMaxInterval > 0
+                && timestamp - mKeyframeTimestamp >= mMaxInterval) {
+            return REASON_INTERVAL;
+        }
+        return REASON_NONE;
+    }
+
+    /**
+     * Makes the frame last checked the reference of the next ones, once it
+     * was saved.
+     *
+     * @param reason
+     *            the value returned by {@link #check(double, float[])}.
+     */
+    public synchronized void accept(double timestamp, float[] modelMatrix,
+            int reason) {
+        int index = getKeyframeCount();
+        if (index == mLogTimestamps.length) {
+            mLogTimestamps = Arrays.copyOf(mLogTimestamps, 2 * index);
+            mLogReasons = Arrays.copyOf(mLogReasons, 2 * index);
+            mLogMotions = Arrays.copyOf(mLogMotions, 4 * index);
+        }
+        mLogTimestamps[index] = timestamp;
+        mLogReasons[index] = reason;
+        mLogMotions[2 * index] = mTranslation;
+        mLogMotions[2 * index + 1] = mRotation;
+        mReasonCounts[reason]++;
+
+        mHasKeyframe = true;
+        mKeyframeTimestamp = timestamp;
+        mKeyframeHasPose = modelMatrix != null;
+        if (modelMatrix != null) {
+            System.arraycopy(modelMatrix, 0, mKeyframeMatrix, 0, MATRIX_SIZE);
+        }
+    }
+
+    public synchronized int getKeyframeCount() {
+        int count = 0;
+        for (int reason = REASON_FIRST; reason < mReasonCounts.length;
+                reason++) {
+            count += mReasonCounts[reason];
+        }
+        return count;
+    }
+
+    public synchronized long getCandidateCount() {
+        return mCandidateCount;
+    }
+
+    public synchronized String getStatistics() {
+        int keyframeCount = getKeyframeCount();
+        return String.format("%d of %d frames kept (%.1f%%): "
+                + "%d first, %d translation, %d rotation, %d interval",
+                keyframeCount, mCandidateCount, mCandidateCount == 0 ? 0.0
+                        : 100.0 * keyframeCount / mCandidateCount,
+                mReasonCounts[REASON_FIRST], mReasonCounts[REASON_TRANSLATION],
+                mReasonCounts[REASON_ROTATION], mReasonCounts[REASON_INTERVAL]);
+    }
+
+    /**
+     * Writes the thresholds, the statistics and the keyframes as CSV, with
+     * the translation and the rotation from the previous keyframe. The
+     * stream is flushed but not closed.
+     */
+    public synchronized void write(OutputStream out) throws IOException {
+        StringBuilder csv = new StringBuilder();
+        csv.append(String.format(Locale.US, "# min translation %.3f m, min "
+                + "rotation %.1f deg, max interval %.2f s\n", mMinTranslation,
+                mMinRotation, mMaxInterval));
+        csv.append("# ").append(getStatistics()).append('\n');
+        csv.append("timestamp,reason,translation,rotation\n");
+        int keyframeCount = getKeyframeCount();
+        for (int i = 0; i < keyframeCount; i++) {
+            csv.append(String.format(Locale.US, "%.6f,%s,%.4f,%.2f\n",
+                    mLogTimestamps[i], REASON_NAMES[mLogReasons[i]],
+                    mLogMotions[2 * i], mLogMotions[2 * i + 1]));
+        }
+        out.write(csv.toString().getBytes());
+        out.flush();
+    }
+}
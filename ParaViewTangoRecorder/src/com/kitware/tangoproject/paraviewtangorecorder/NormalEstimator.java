@@ -0,0 +1,534 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Estimates a normal for every point of a depth frame.
+ *
+ * When the points are organized, placed on the image of the depth camera by
+ * an {@link OrganizedGrid}, the neighbors of a point are the closest valid
+ * pixels to its left, right, top and bottom, found in constant time. The
+ * normal is the cross product of the horizontal and vertical tangents going
+ * through them. Neighbors across a depth discontinuity are ignored.
+ *
+ * Otherwise, the points within a radius of each point are found in a
+ * uniform grid, and the normal is the direction of least variance of those
+ * neighbors, the eigenvector of the smallest eigenvalue of their covariance.
+ *
+ * Normals are unit vectors oriented toward the camera, the origin of the
+ * frame. Points without enough neighbors get a (0, 0, 0) normal.
+ *
+ * An instance keeps scratch buffers and must only be used from one thread at
+ * a time.
+ */
+public class NormalEstimator {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int MAX_CELLS = 1 << 21;
+
+    private int mWindowRadius;
+    private float mMaxDepthJump;
+    private float mSearchRadius;
+    private boolean mHasIntrinsics;
+    private int mWidth;
+    private int mHeight;
+    private double mFx;
+    private double mFy;
+    private double mCx;
+    private double mCy;
+    private final OrganizedGrid mGrid;
+
+    private float[] mPoints;
+    private ByteBuffer mNormals;
+    private FloatBuffer mNormalFloats;
+    // Uniform grid of the unorganized points
+    private int[] mSortedPoints;
+    private int[] mPointCells;
+    private int[] mCellStarts;
+
+    // Statistics
+    private long mFrameCount;
+    private long mPointCount;
+    private long mNormalCount;
+    private long mEstimateNanos;
+
+    public NormalEstimator() {
+        mWindowRadius = 2;
+        mMaxDepthJump = 0.05f;
+        mSearchRadius = 0.05f;
+        mGrid = new OrganizedGrid();
+        mPoints = new float[0];
+        mSortedPoints = new int[0];
+        mPointCells = new int[0];
+        mCellStarts = new int[1];
+        mNormals = ByteBuffer.allocateDirect(0);
+        mNormalFloats = mNormals.asFloatBuffer();
+    }
+
+    /**
+     * Sets the intrinsics of the depth camera, so that the frames can be
+     * organized by projecting their points. Without them the frames are
+     * treated as unorganized.
+     */
+    public void setIntrinsics(int width, int height, double fx, double fy,
+            double cx, double cy) {
+        mHasIntrinsics = true;
+        mWidth = width;
+        mHeight = height;
+        mFx = fx;
+        mFy = fy;
+        mCx = cx;
+        mCy = cy;
+    }
+
+    public void clearIntrinsics() {
+        mHasIntrinsics = false;
+    }
+
+    /**
+     * @param windowRadius
+     *            how many pixels away a neighbor is looked for in each
+     *            direction of the organized grid.
+     */
+    public void setWindowRadius(int windowRadius) {
+        mWindowRadius = Math.max(1, windowRadius);
+    }
+
+    /**
+     * @param maxDepthJump
+     *            the largest depth difference between a point and an
+     *            organized neighbor, relative to the depth of the point.
+     */
+    public void setMaxDepthJump(float maxDepthJump) {
+        mMaxDepthJump = maxDepthJump;
+    }
+
+    /**
+     * @param searchRadius
+     *            the distance within which neighbors are looked for in
+     *            unorganized frames, in meters.
+     */
+    public void setSearchRadius(float searchRadius) {
+        if (!(searchRadius > 0)) {
+            throw new IllegalArgumentException("Invalid radius "
+                    + searchRadius);
+        }
+        mSearchRadius = searchRadius;
+    }
+
+    /**
+     * Estimates the normals of a frame, organized by projection if the
+     * intrinsics are known, unorganized otherwise.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, in the depth camera frame,
+     *            from its position, which is left unchanged.
+     * @return the little-endian normals, one xyz triplet per point, from
+     *         position 0 to the limit, valid until the next call.
+     */
+    public ByteBuffer estimate(ByteBuffer xyz, int pointCount) {
+        if (mHasIntrinsics) {
+            long start = System.nanoTime();
+            mGrid.setFromProjection(xyz, pointCount, mWidth, mHeight, mFx,
+                    mFy, mCx, mCy);
+            mEstimateNanos += System.nanoTime() - start;
+            return estimateOrganized(xyz, pointCount, mGrid);
+        }
+        return estimateUnorganized(xyz, pointCount);
+    }
+
+    /**
+     * Estimates the normals of the points placed on a grid. Points missing
+     * from the grid get a (0, 0, 0) normal.
+     *
+     * @see #estimate(ByteBuffer, int)
+     */
+    public ByteBuffer estimateOrganized(ByteBuffer xyz, int pointCount,
+            OrganizedGrid grid) {
+        long start = System.nanoTime();
+        float[] points = loadPoints(xyz, pointCount);
+        FloatBuffer normals = clearNormals(pointCount);
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        int[] indices = grid.getIndices();
+        int radius = mWindowRadius;
+        int estimated = 0;
+        for (int v = 0; v < height; v++) {
+            int row = v * width;
+            for (int u = 0; u < width; u++) {
+                int p = indices[row + u];
+                if (p == OrganizedGrid.NO_POINT) {
+                    continue;
+                }
+                float z = points[p * POINT_TO_XYZ + 2];
+                float maxJump = mMaxDepthJump * Math.abs(z);
+                int left = neighbor(indices, points, row + u, -1,
+                        Math.min(radius, u), z, maxJump);
+                int right = neighbor(indices, points, row + u, 1,
+                        Math.min(radius, width - 1 - u), z, maxJump);
+                int up = neighbor(indices, points, row + u, -width,
+                        Math.min(radius, v), z, maxJump);
+                int down = neighbor(indices, points, row + u, width,
+                        Math.min(radius, height - 1 - v), z, maxJump);
+                if ((left < 0 && right < 0) || (up < 0 && down < 0)) {
+                    continue;
+                }
+                // Central differences, one-sided at borders and edges
+                int h0 = (left < 0 ? p : left) * POINT_TO_XYZ;
+                int h1 = (right < 0 ? p : right) * POINT_TO_XYZ;
+                int v0 = (up < 0 ? p : up) * POINT_TO_XYZ;
+                int v1 = (down < 0 ? p : down) * POINT_TO_XYZ;
+                float hx = points[h1] - points[h0];
+                float hy = points[h1 + 1] - points[h0 + 1];
+                float hz = points[h1 + 2] - points[h0 + 2];
+                float vx = points[v1] - points[v0];
+                float vy = points[v1 + 1] - points[v0 + 1];
+                float vz = points[v1 + 2] - points[v0 + 2];
+                if (putNormal(normals, points, p, hy * vz - hz * vy, hz * vx
+                        - hx * vz, hx * vy - hy * vx)) {
+                    estimated++;
+                }
+            }
+        }
+        return endFrame(pointCount, estimated, start);
+    }
+
+    /**
+     * @return the point of the first pixel in a direction within the
+     *         window and the depth jump, or -1.
+     */
+    private static int neighbor(int[] indices, float[] points, int pixel,
+            int step, int reach, float z, float maxJump) {
+        for (int i = 1; i <= reach; i++) {
+            int q = indices[pixel + i * step];
+            if (q != OrganizedGrid.NO_POINT) {
+                return Math.abs(points[q * POINT_TO_XYZ + 2] - z) <= maxJump ? q
+                        : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Estimates the normals of points without any layout, from the
+     * neighbors within the search radius.
+     *
+     * @see #estimate(ByteBuffer, int)
+     */
+    public ByteBuffer estimateUnorganized(ByteBuffer xyz, int pointCount) {
+        long start = System.nanoTime();
+        float[] points = loadPoints(xyz, pointCount);
+        FloatBuffer normals = clearNormals(pointCount);
+        if (mSortedPoints.length < pointCount) {
+            mSortedPoints = new int[pointCount];
+            mPointCells = new int[pointCount];
+        }
+
+        // Bounds of the valid points, then a grid of cells no smaller than
+        // the radius, so the neighbors are in the 27 cells around a point
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int o = 0; o < pointCount * POINT_TO_XYZ; o += POINT_TO_XYZ) {
+            float x = points[o], y = points[o + 1], z = points[o + 2];
+            if (x != x || y != y || z != z) {
+                continue;
+            }
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
+        }
+        if (minX > maxX) {
+            return endFrame(pointCount, 0, start);
+        }
+        float cellSize = mSearchRadius;
+        int dimX, dimY, dimZ;
+        while (true) {
+            dimX = (int) ((maxX - minX) / cellSize) + 1;
+            dimY = (int) ((maxY - minY) / cellSize) + 1;
+            dimZ = (int) ((maxZ - minZ) / cellSize) + 1;
+            if ((long) dimX * dimY * dimZ <= MAX_CELLS) {
+                break;
+            }
+            cellSize *= 1.25f;
+        }
+        float inverseCellSize = 1 / cellSize;
+        int cellCount = dimX * dimY * dimZ;
+        if (mCellStarts.length < cellCount + 1) {
+            mCellStarts = new int[cellCount + 1];
+        }
+        int[] starts = mCellStarts;
+        for (int c = 0; c <= cellCount; c++) {
+            starts[c] = 0;
+        }
+        int validCount = 0;
+        for (int p = 0; p < pointCount; p++) {
+            int o = p * POINT_TO_XYZ;
+            float x = points[o], y = points[o + 1], z = points[o + 2];
+            if (x != x || y != y || z != z) {
+                mPointCells[p] = -1;
+                continue;
+            }
+            validCount++;
+            int cell = (Math.min(dimZ - 1, (int) ((z - minZ) * inverseCellSize))
+                    * dimY + Math.min(dimY - 1,
+                    (int) ((y - minY) * inverseCellSize)))
+                    * dimX + Math.min(dimX - 1,
+                    (int) ((x - minX) * inverseCellSize));
+            mPointCells[p] = cell;
+            starts[cell + 1]++;
+        }
+        // starts[c + 1] becomes the end of cell c, then its start as the
+        // cells are filled from their end
+        for (int c = 0; c < cellCount; c++) {
+            starts[c + 1] += starts[c];
+        }
+        for (int p = pointCount - 1; p >= 0; p--) {
+            if (mPointCells[p] >= 0) {
+                mSortedPoints[--starts[mPointCells[p] + 1]] = p;
+            }
+        }
+        for (int c = 0; c < cellCount; c++) {
+            starts[c] = starts[c + 1];
+        }
+        starts[cellCount] = validCount;
+
+        float radius2 = mSearchRadius * mSearchRadius;
+        double[] covariance = new double[6];
+        double[] normal = new double[3];
+        int estimated = 0;
+        for (int p = 0; p < pointCount; p++) {
+            int cell = mPointCells[p];
+            if (cell < 0) {
+                continue;
+            }
+            int o = p * POINT_TO_XYZ;
+            float x = points[o], y = points[o + 1], z = points[o + 2];
+            int cx = cell % dimX;
+            int cy = (cell / dimX) % dimY;
+            int cz = cell / dimX / dimY;
+            // Centered sums of the neighbors, relative to the point
+            int count = 0;
+            double sx = 0, sy = 0, sz = 0;
+            double sxx = 0, sxy = 0, sxz = 0, syy = 0, syz = 0, szz = 0;
+            for (int gz = Math.max(0, cz - 1); gz <= Math.min(dimZ - 1,
+                    cz + 1); gz++) {
+                for (int gy = Math.max(0, cy - 1); gy <= Math.min(dimY - 1,
+                        cy + 1); gy++) {
+                    int rowCell = (gz * dimY + gy) * dimX;
+                    for (int gx = Math.max(0, cx - 1); gx <= Math.min(
+                            dimX - 1, cx + 1); gx++) {
+                        int c = rowCell + gx;
+                        for (int s = starts[c], end = starts[c + 1]; s < end; s++) {
+                            int r = mSortedPoints[s] * POINT_TO_XYZ;
+                            float dx = points[r] - x;
+                            float dy = points[r + 1] - y;
+                            float dz = points[r + 2] - z;
+                            if (dx * dx + dy * dy + dz * dz > radius2) {
+                                continue;
+                            }
+                            count++;
+                            sx += dx;
+                            sy += dy;
+                            sz += dz;
+                            sxx += dx * dx;
+                            sxy += dx * dy;
+                            sxz += dx * dz;
+                            syy += dy * dy;
+                            syz += dy * dz;
+                            szz += dz * dz;
+                        }
+                    }
+                }
+            }
+            if (count < 3) {
+                continue;
+            }
+            double mx = sx / count, my = sy / count, mz = sz / count;
+            covariance[0] = sxx / count - mx * mx;
+            covariance[1] = sxy / count - mx * my;
+            covariance[2] = sxz / count - mx * mz;
+            covariance[3] = syy / count - my * my;
+            covariance[4] = syz / count - my * mz;
+            covariance[5] = szz / count - mz * mz;
+            if (smallestEigenvector(covariance, normal)
+                    && putNormal(normals, points, p, (float) normal[0],
+                            (float) normal[1], (float) normal[2])) {
+                estimated++;
+            }
+        }
+        return endFrame(pointCount, estimated, start);
+    }
+
+    /**
+     * Eigenvector of the smallest eigenvalue of a symmetric 3x3 matrix,
+     * given as xx, xy, xz, yy, yz, zz.
+     *
+     * @return false if the matrix is degenerate.
+     */
+    static boolean smallestEigenvector(double[] m, double[] vector) {
+        double a = m[0], b = m[1], c = m[2], d = m[3], e = m[4], f = m[5];
+        // Closed form eigenvalues of a symmetric matrix
+        double p1 = b * b + c * c + e * e;
+        double q = (a + d + f) / 3;
+        double p2 = (a - q) * (a - q) + (d - q) * (d - q) + (f - q) * (f - q)
+                + 2 * p1;
+        double p = Math.sqrt(p2 / 6);
+        if (p == 0) {
+            return false;
+        }
+        double b00 = (a - q) / p, b01 = b / p, b02 = c / p;
+        double b11 = (d - q) / p, b12 = e / p, b22 = (f - q) / p;
+        double determinant = b00 * (b11 * b22 - b12 * b12) - b01
+                * (b01 * b22 - b12 * b02) + b02 * (b01 * b12 - b11 * b02);
+        double r = Math.max(-1, Math.min(1, determinant / 2));
+        double phi = Math.acos(r) / 3;
+        double smallest = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+
+        // The eigenvector is orthogonal to the rows of M - smallest * I, take
+        // the longest cross product of two of them
+        double r0x = a - smallest, r0y = b, r0z = c;
+        double r1x = b, r1y = d - smallest, r1z = e;
+        double r2x = c, r2y = e, r2z = f - smallest;
+        double best;
+        double c01x = r0y * r1z - r0z * r1y, c01y = r0z * r1x - r0x * r1z;
+        double c01z = r0x * r1y - r0y * r1x;
+        double c02x = r0y * r2z - r0z * r2y, c02y = r0z * r2x - r0x * r2z;
+        double c02z = r0x * r2y - r0y * r2x;
+        double c12x = r1y * r2z - r1z * r2y, c12y = r1z * r2x - r1x * r2z;
+        double c12z = r1x * r2y - r1y * r2x;
+        double n01 = c01x * c01x + c01y * c01y + c01z * c01z;
+        double n02 = c02x * c02x + c02y * c02y + c02z * c02z;
+        double n12 = c12x * c12x + c12y * c12y + c12z * c12z;
+        if (n01 >= n02 && n01 >= n12) {
+            best = n01;
+            vector[0] = c01x;
+            vector[1] = c01y;
+            vector[2] = c01z;
+        } else if (n02 >= n12) {
+            best = n02;
+            vector[0] = c02x;
+            vector[1] = c02y;
+            vector[2] = c02z;
+        } else {
+            best = n12;
+            vector[0] = c12x;
+            vector[1] = c12y;
+            vector[2] = c12z;
+        }
+        if (!(best > 0)) {
+            return false;
+        }
+        double length = Math.sqrt(best);
+        vector[0] /= length;
+        vector[1] /= length;
+        vector[2] /= length;
+        return true;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the mean time taken by a frame, in milliseconds.
+     */
+    public double getAverageEstimateTimeMs() {
+        return mFrameCount == 0 ? 0 : mEstimateNanos / 1000000.0
+                / mFrameCount;
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames, normals for %d of %d points "
+                + "(%.1f%%), %s, %.2f ms per frame", mFrameCount,
+                mNormalCount, mPointCount, mPointCount == 0 ? 100.0 : 100.0
+                        * mNormalCount / mPointCount,
+                mHasIntrinsics ? "organized" : "unorganized",
+                getAverageEstimateTimeMs());
+    }
+
+    public void resetStatistics() {
+        mFrameCount = 0;
+        mPointCount = 0;
+        mNormalCount = 0;
+        mEstimateNanos = 0;
+    }
+
+    private float[] loadPoints(ByteBuffer xyz, int pointCount) {
+        if (mPoints.length < pointCount * POINT_TO_XYZ) {
+            mPoints = new float[pointCount * POINT_TO_XYZ];
+        }
+        xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+                .get(mPoints, 0, pointCount * POINT_TO_XYZ);
+        return mPoints;
+    }
+
+    private FloatBuffer clearNormals(int pointCount) {
+        int length = pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT;
+        if (mNormals.capacity() < length) {
+            mNormals = ByteBuffer.allocateDirect(length).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            mNormalFloats = mNormals.asFloatBuffer();
+        }
+        for (int i = 0; i < pointCount * POINT_TO_XYZ; i++) {
+            mNormalFloats.put(i, 0);
+        }
+        return mNormalFloats;
+    }
+
+    /**
+     * Normalizes and orients a normal toward the camera, then stores it.
+     *
+     * @return false if the normal is degenerate.
+     */
+    private static boolean putNormal(FloatBuffer normals, float[] points,
+            int p, float nx, float ny, float nz) {
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (!(length > 0)) {
+            return false;
+        }
+        int o = p * POINT_TO_XYZ;
+        // The camera is at the origin: the normal must point back to it
+        if (nx * points[o] + ny * points[o + 1] + nz * points[o + 2] > 0) {
+            length = -length;
+        }
+        normals.put(o, nx / length);
+        normals.put(o + 1, ny / length);
+        normals.put(o + 2, nz / length);
+        return true;
+    }
+
+    private ByteBuffer endFrame(int pointCount, int estimated, long start) {
+        mNormals.clear();
+        mNormals.limit(pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT);
+        mFrameCount++;
+        mPointCount += pointCount;
+        mNormalCount += estimated;
+        mEstimateNanos += System.nanoTime() - start;
+        return mNormals;
+    }
+}
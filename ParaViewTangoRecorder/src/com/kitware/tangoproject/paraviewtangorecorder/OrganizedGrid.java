@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Image-shaped index of the points of a depth frame: the point seen by each
+ * pixel of the depth camera, or -1 where the camera saw nothing.
+ *
+ * The ij buffer of TangoXyzIjData was meant to deliver this layout with the
+ * frame, but the service leaves it empty, so the layout is rebuilt by
+ * projecting the points with the intrinsics of the depth camera, see
+ * {@link #setFromProjection(ByteBuffer, int, int, int, double, double, double, double)}.
+ * When several points fall in a pixel, the closest one is kept.
+ *
+ * The buffers are reused from one frame to the next.
+ */
+public class OrganizedGrid {
+
+    /** Index of the pixels without a point. */
+    public static final int NO_POINT = -1;
+
+    private static final int POINT_TO_XYZ = 3;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mIndices;
+    private int mValidCount;
+
+    public OrganizedGrid() {
+        mIndices = new int[0];
+    }
+
+    /**
+     * Projects the points of a frame on the image plane of the depth camera.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, in the depth camera frame,
+     *            from its position.
+     */
+    public void setFromProjection(ByteBuffer xyz, int pointCount, int width,
+            int height, double fx, double fy, double cx, double cy) {
+        resize(width, height);
+        int pixelCount = width * height;
+        for (int i = 0; i < pixelCount; i++) {
+            mIndices[i] = NO_POINT;
+        }
+        FloatBuffer points = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        mValidCount = 0;
+        for (int p = 0; p < pointCount; p++) {
+            float x = points.get(p * POINT_TO_XYZ);
+            float y = points.get(p * POINT_TO_XYZ + 1);
+            float z = points.get(p * POINT_TO_XYZ + 2);
+            if (!(z > 0)) {
+                continue;
+            }
+            int u = (int) Math.floor(fx * x / z + cx + 0.5);
+            int v = (int) Math.floor(fy * y / z + cy + 0.5);
+            if (u < 0 || u >= width || v < 0 || v >= height) {
+                continue;
+            }
+            int pixel = v * width + u;
+            int previous = mIndices[pixel];
+            if (previous == NO_POINT) {
+                mValidCount++;
+                mIndices[pixel] = p;
+            } else if (z < points.get(previous * POINT_TO_XYZ + 2)) {
+                mIndices[pixel] = p;
+            }
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the index of the point seen by pixel (u, v), or NO_POINT.
+     */
+    public int getPointIndex(int u, int v) {
+        return mIndices[v * mWidth + u];
+    }
+
+    /**
+     * @return the point index of every pixel, row by row. Only the first
+     *         width * height values are meaningful.
+     */
+    public int[] getIndices() {
+        return mIndices;
+    }
+
+    /**
+     * @return the number of pixels with a point.
+     */
+    public int getValidCount() {
+        return mValidCount;
+    }
+
+    private void resize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        if (mIndices.length < width * height) {
+            mIndices = new int[width * height];
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Turns an organized depth frame into a triangle mesh whose vertices are the
+ * points of the frame.
+ *
+ * Every 2x2 block of pixels of the {@link OrganizedGrid} gives two triangles
+ * when its four pixels have a point, or one when only three do. A triangle
+ * is skipped when two of its vertices differ in depth by more than a
+ * fraction of their depth, as happens across object edges. Triangles face
+ * the camera.
+ *
+ * The grid is walked once, and the triangles are written to a buffer
+ * allocated with the first frame of a given size, so meshing allocates
+ * nothing afterwards. An instance must only be used from one thread at a
+ * time.
+ */
+public class OrganizedMesher {
+
+    private static final int BYTES_PER_INT = 4;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int TRIANGLE_SIZE = 3;
+
+    private float mMaxDepthJump;
+    private ByteBuffer mTriangles;
+    private IntBuffer mTriangleInts;
+    private int mTriangleCount;
+
+    // Statistics
+    private long mFrameCount;
+    private long mTotalTriangleCount;
+    private long mMeshNanos;
+
+    public OrganizedMesher() {
+        mMaxDepthJump = 0.05f;
+        mTriangles = ByteBuffer.allocateDirect(0);
+        mTriangleInts = mTriangles.asIntBuffer();
+    }
+
+    /**
+     * @param maxDepthJump
+     *            the largest depth difference between the vertices of a
+     *            triangle, relative to their depth.
+     */
+    public void setMaxDepthJump(float maxDepthJump) {
+        mMaxDepthJump = maxDepthJump;
+    }
+
+    public float getMaxDepthJump() {
+        return mMaxDepthJump;
+    }
+
+    /**
+     * Meshes a frame.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, from its position, which is
+     *            left unchanged.
+     * @param grid
+     *            the pixels of the points.
+     * @return the little-endian point indices of the triangles, three per
+     *         triangle, from position 0 to the limit, valid until the next
+     *         call. See {@link #getTriangleCount()}.
+     */
+    public ByteBuffer mesh(ByteBuffer xyz, int pointCount, OrganizedGrid grid) {
+        long start = System.nanoTime();
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        int maxTriangles = 2 * Math.max(0, width - 1) * Math.max(0, height - 1);
+        if (mTriangles.capacity() < maxTriangles * TRIANGLE_SIZE
+                * BYTES_PER_INT) {
+            mTriangles = ByteBuffer.allocateDirect(
+                    maxTriangles * TRIANGLE_SIZE * BYTES_PER_INT).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            mTriangleInts = mTriangles.asIntBuffer();
+        }
+        FloatBuffer points = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        int[] indices = grid.getIndices();
+        IntBuffer triangles = mTriangleInts;
+        triangles.clear();
+        for (int v = 0; v + 1 < height; v++) {
+            int row = v * width;
+            for (int u = 0; u + 1 < width; u++) {
+                // a b
+                // c d
+                int a = indices[row + u];
+                int b = indices[row + u + 1];
+                int c = indices[row + width + u];
+                int d = indices[row + width + u + 1];
+                int missing = (a < 0 ? 1 : 0) + (b < 0 ? 1 : 0)
+                        + (c < 0 ? 1 : 0) + (d < 0 ? 1 : 0);
+                if (missing > 1) {
+                    continue;
+                }
+                float za = a < 0 ? 0 : points.get(a * POINT_TO_XYZ + 2);
+                float zb = b < 0 ? 0 : points.get(b * POINT_TO_XYZ + 2);
+                float zc = c < 0 ? 0 : points.get(c * POINT_TO_XYZ + 2);
+                float zd = d < 0 ? 0 : points.get(d * POINT_TO_XYZ + 2);
+                if (missing == 0) {
+                    // Split along the b-c diagonal
+                    addTriangle(triangles, a, c, b, za, zc, zb);
+                    addTriangle(triangles, b, c, d, zb, zc, zd);
+                } else if (a < 0) {
+                    addTriangle(triangles, b, c, d, zb, zc, zd);
+                } else if (b < 0) {
+                    addTriangle(triangles, a, c, d, za, zc, zd);
+                } else if (c < 0) {
+                    addTriangle(triangles, a, d, b, za, zd, zb);
+                } else {
+                    addTriangle(triangles, a, c, b, za, zc, zb);
+                }
+            }
+        }
+        mTriangleCount = triangles.position() / TRIANGLE_SIZE;
+        mTriangles.clear();
+        mTriangles.limit(triangles.position() * BYTES_PER_INT);
+
+        mFrameCount++;
+        mTotalTriangleCount += mTriangleCount;
+        mMeshNanos += System.nanoTime() - start;
+        return mTriangles;
+    }
+
+    private void addTriangle(IntBuffer triangles, int i, int j, int k,
+            float zi, float zj, float zk) {
+        float min = Math.min(zi, Math.min(zj, zk));
+        float max = Math.max(zi, Math.max(zj, zk));
+        if (max - min > mMaxDepthJump * min) {
+            return;
+        }
+        triangles.put(i);
+        triangles.put(j);
+        triangles.put(k);
+    }
+
+    /**
+     * @return the number of triangles of the last frame meshed.
+     */
+    public int getTriangleCount() {
+        return mTriangleCount;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames, %.0f triangles per frame, "
+                + "%.2f ms per frame", mFrameCount, mFrameCount == 0 ? 0.0
+                : (double) mTotalTriangleCount / mFrameCount,
+                mFrameCount == 0 ? 0.0 : mMeshNanos / 1000000.0 / mFrameCount);
+    }
+
+    public void resetStatistics() {
+        mFrameCount = 0;
+        mTotalTriangleCount = 0;
+        mMeshNanos = 0;
+    }
+}
@@ -26,8 +26,12 @@ import javax.microedition.khronos.opengles.GL10;
 import com.kitware.tangoutils.Renderer;
 import com.kitware.tangoutils.renderables.CameraFrustum;
 import com.kitware.tangoutils.renderables.CameraFrustumAndAxis;
+import com.kitware.tangoutils.renderables.CountingGlApi;
+import com.kitware.tangoutils.renderables.GlApi;
+import com.kitware.tangoutils.renderables.Gles20Api;
 import com.kitware.tangoutils.renderables.Grid;
 import com.kitware.tangoutils.renderables.PointCloud;
+import com.kitware.tangoutils.renderables.RenderUtils;
 
 /**
  * OpenGL rendering class for the Motion Tracking API sample. This class
@@ -48,18 +52,31 @@ public class PCRenderer extends Renderer implements GLSurfaceView.Renderer {
     private Grid mGrid;
     private CameraFrustumAndAxis mCameraFrustumAndAxis;
     private int mMaxDepthPoints;
+    private final GlApi mGl;
 
     public PCRenderer(int maxDepthPoints) {
+        this(Gles20Api.INSTANCE, maxDepthPoints);
+    }
+
+    /**
+     * @param gl
+     *            the OpenGL calls to draw with, a {@link CountingGlApi} to
+     *            measure the frames without a GPU.
+     */
+    public PCRenderer(GlApi gl, int maxDepthPoints) {
+        mGl = gl;
         mMaxDepthPoints = maxDepthPoints;
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-        GLES20.glClearColor(1f, 1f, 1f, 1.0f);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-        mPointCloud = new PointCloud(mMaxDepthPoints);
-        mGrid = new Grid();
-        mCameraFrustumAndAxis = new CameraFrustumAndAxis();
+        // A new context, the programs of the previous one are gone
+        RenderUtils.releasePrograms(mGl);
+        mGl.glClearColor(1f, 1f, 1f, 1.0f);
+        mGl.glEnable(GLES20.GL_DEPTH_TEST);
+        mPointCloud = new PointCloud(mGl, mMaxDepthPoints);
+        mGrid = new Grid(mGl);
+        mCameraFrustumAndAxis = new CameraFrustumAndAxis(mGl);
         Matrix.setIdentityM(mViewMatrix, 0);
         Matrix.setLookAtM(mViewMatrix, 0, 5f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
         mCameraFrustumAndAxis.setModelMatrix(getModelMatCalculator()
@@ -68,7 +85,7 @@ public class PCRenderer extends Renderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
-        GLES20.glViewport(0, 0, width, height);
+        mGl.glViewport(0, 0, width, height);
         mCameraAspect = (float) width / height;
         Matrix.perspectiveM(mProjectionMatrix, 0, CAMERA_FOV, mCameraAspect,
                 CAMERA_NEAR, CAMERA_FAR);
@@ -76,7 +93,7 @@ public class PCRenderer extends Renderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
         mGrid.draw(mViewMatrix, mProjectionMatrix);
         mPointCloud.draw(mViewMatrix, mProjectionMatrix);
         mCameraFrustumAndAxis.draw(mViewMatrix, mProjectionMatrix);
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Fixed pool of daemon threads running the partitions of a loop, each a
+ * {@link Callable} over a range of the work, and waiting for all of them.
+ * Used by {@link StatisticalOutlierFilter}, {@link PointTransformer} and
+ * {@link TsdfVolume}, which keep their partitions and the scratch space of
+ * each from one frame to the next.
+ *
+ * An instance must only be used from one thread at a time;
+ * {@link #shutdown()} stops its threads.
+ */
+class ParallelFor {
+
+    private final int mThreadCount;
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param threadCount
+     *            number of threads running the partitions, at least 1.
+     * @param threadName
+     *            name of the threads, for the debugger and the profiler.
+     */
+    ParallelFor(int threadCount, final String threadName) {
+        mThreadCount = Math.max(1, threadCount);
+        mExecutor = Executors.newFixedThreadPool(mThreadCount,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * @return the first item of a partition, when count items are split in
+     *         partitionCount ranges of about the same size. The end of the
+     *         partition is the start of the next one.
+     */
+    static int start(int count, int partition, int partitionCount) {
+        return (int) ((long) count * partition / partitionCount);
+    }
+
+    /**
+     * Runs the partitions and returns once they are all done, on the calling
+     * thread when there is only one of them or one thread.
+     *
+     * @throws RuntimeException
+     *             if a partition failed, or if the calling thread was
+     *             interrupted, whose interrupt flag is then set again.
+     */
+    void run(List<? extends Callable<Void>> partitions) {
+        if (mThreadCount == 1 || partitions.size() <= 1) {
+            for (Callable<Void> partition : partitions) {
+                try {
+                    partition.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+        try {
+            for (Future<Void> future : mExecutor.invokeAll(partitions)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the threads, no partition can be run afterwards.
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+}
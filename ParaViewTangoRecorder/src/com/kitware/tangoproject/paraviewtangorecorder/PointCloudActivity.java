@@ -27,6 +27,7 @@ package com.kitware.tangoproject.paraviewtangorecorder;
 
 import com.google.atap.tangoservice.Tango;
 import com.google.atap.tangoservice.Tango.OnTangoUpdateListener;
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
 import com.google.atap.tangoservice.TangoConfig;
 import com.google.atap.tangoservice.TangoCoordinateFramePair;
 import com.google.atap.tangoservice.TangoErrorException;
@@ -46,8 +47,11 @@ import android.opengl.GLSurfaceView;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.preference.PreferenceManager;
 import android.support.v4.content.FileProvider;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -59,19 +63,13 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.concurrent.Semaphore;
 
 /**
  * Main Activity class for the Point Cloud Sample. Handles the connection to the
@@ -83,6 +81,12 @@ public class PointCloudActivity extends Activity implements OnClickListener {
 
     private static final String TAG = PointCloudActivity.class.getSimpleName();
     private static final int SECS_TO_MILLISECS = 1000;
+    // Number of depth frames that can wait to be written when storage stalls
+    private static final int FRAME_RING_CAPACITY = 16;
+    // TANGO_CAMERA_DEPTH of the Tango C API, this library has no constant for it
+    private static final int DEPTH_CAMERA_ID = 3;
+    // Poses kept to place the depth frames, in seconds
+    private static final double POSE_INDEX_RETENTION = 10.0;
     private Tango mTango;
     private TangoConfig mConfig;
 
@@ -127,20 +131,65 @@ public class PointCloudActivity extends Activity implements OnClickListener {
             .getAbsolutePath() + "/Tango/";
     private static final String mSaveDirAbsPath = Environment.getExternalStorageDirectory()
             .getAbsolutePath() + "/Tango/MyPointCloudData/";
-    private String mFilename;
-    private int mNumberOfFilesWritten;
-    private Boolean mTimeToTakeSnap;
-    private Boolean mAutoMode;
-    private String mNowTimeString;
-    private ArrayList<float[]> mPosePositionBuffer;
-    private ArrayList<float[]> mPoseOrientationBuffer;
-    private ArrayList<Float> mPoseTimestampBuffer;
-    private ArrayList<String> mFilenameBuffer;
-    private int mNumPoseInSequence;
-    boolean mIsRecording;
+    private volatile String mFilename;
+    private volatile int mNumberOfFilesWritten;
+    private volatile boolean mTimeToTakeSnap;
+    private volatile boolean mAutoMode;
+    private PoseTrack mPoseTrack;
+    volatile boolean mIsRecording;
+    // Files and settings of the current recording, or of the one being finished
+    private volatile RecordingSession mSession;
     private int mXyzIjCallbackCount;
-    private Semaphore mutex_on_mIsRecording;
     private boolean mAppIsStarting;
+    private VtkPolyDataWriter mVtkWriter;
+    private VtpWriter mVtpWriter;
+    private PvdWriter mPvdWriter;
+    private FloatCodec mFloatCodec;
+    private RangeImageCodec mRangeImageCodec;
+    private OrganizedGrid mOrganizedGrid;
+    private VoxelGridFilter mVoxelGridFilter;
+    private FusedMapAccumulator mFusedMap;
+    private TsdfIntegrator mTsdfIntegrator;
+    private KeyframeSelector mKeyframeSelector;
+    private PoseIndex mPoseIndex;
+    private final float[] mFrameTranslation = new float[3];
+    private final float[] mFrameRotation = new float[4];
+    private final float[] mWriterTranslation = new float[3];
+    private final float[] mWriterRotation = new float[4];
+    private int mIndexedPoseCount;
+    private int mRequestedPoseCount;
+    private StatisticalOutlierFilter mOutlierFilter;
+    private PointTransformer mPointTransformer;
+    private XyzIjReader mXyzIjReader;
+    private NormalEstimator mNormalEstimator;
+    private OrganizedMesher mMesher;
+    private TangoCameraIntrinsics mDepthIntrinsics;
+    private FrameRingBuffer mFrameRing;
+    private CapturePipeline mCapturePipeline;
+    private int mMaxDepthPoints;
+    private SessionOptions mSessionOptions;
+
+    /**
+     * What a recording writes to. It is made on the UI thread when the recording starts, then
+     * published to the writer thread through {@link PointCloudActivity#mSession} and handed to
+     * the task finishing the recording, so that neither reads the fields of the next recording.
+     * The fields are not changed once it is published. The processing objects of the activity it
+     * goes with, the filters and writers, are only configured while no session is being written,
+     * the record switch being disabled until the previous one is finished.
+     */
+    private static class RecordingSession {
+        SessionOptions mOptions;
+        String mNowTimeString;
+        // Null if they could not be created, or are not used by the format
+        SessionArchive mArchive;
+        PoseStreamWriter mPoseStream;
+        CaptureContainerWriter mCaptureContainer;
+        FusedMapAccumulator mFusedMap;
+        TsdfIntegrator mTsdfIntegrator;
+        // Set, under the lock of the session, once the frames queued before the stop are
+        // written. A frame offered later is dropped rather than written to closed files.
+        boolean mIsFinished;
+    }
     // End of My variables
 
     @Override
@@ -225,14 +274,48 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         mAutoModeSwitch.setChecked(false);
         mIsRecording = false;
         mRecordSwitch.setChecked(false);
-        mPosePositionBuffer = new ArrayList<float[]>();
-        mPoseOrientationBuffer = new ArrayList<float[]>();
-        mPoseTimestampBuffer = new ArrayList<Float>();
-        mFilenameBuffer = new ArrayList<String>();
-        mNumPoseInSequence = 0;
+        mPoseTrack = new PoseTrack();
         mXyzIjCallbackCount = 0;
-        mutex_on_mIsRecording = new Semaphore(1,true);
         mAppIsStarting = true;
+        mMaxDepthPoints = maxDepthPoints;
+        mVtkWriter = new VtkPolyDataWriter(maxDepthPoints);
+        mVtpWriter = new VtpWriter(maxDepthPoints);
+        mPvdWriter = new PvdWriter();
+        mFloatCodec = new FloatCodec(maxDepthPoints, ZipWriter.COMPRESSION_FAST);
+        mRangeImageCodec = new RangeImageCodec();
+        mOrganizedGrid = new OrganizedGrid();
+        mVoxelGridFilter = new VoxelGridFilter(maxDepthPoints);
+        mOutlierFilter = new StatisticalOutlierFilter(Runtime.getRuntime().availableProcessors());
+        mPointTransformer = new PointTransformer(Runtime.getRuntime().availableProcessors());
+        mNormalEstimator = new NormalEstimator();
+        mMesher = new OrganizedMesher();
+        mKeyframeSelector = new KeyframeSelector();
+        mPoseIndex = new PoseIndex();
+        mXyzIjReader = new XyzIjReader(maxDepthPoints, 2);
+        // Keep the frame ring in direct memory: the pages of a spill file would be written back
+        // to flash along with the frames being saved
+        try {
+            mFrameRing = new FrameRingBuffer(FRAME_RING_CAPACITY, maxDepthPoints, null);
+        } catch (IOException e) {
+            // No capture without the ring, rather than failing at the first frame
+            throw new IllegalStateException("Cannot create the frame ring", e);
+        }
+        mCapturePipeline = new CapturePipeline(mFrameRing, new CapturePipeline.FrameSink() {
+            @Override
+            public void writeFrame(ByteBuffer points, int pointCount, double timestamp,
+                                   float[] modelMatrix) {
+                saveFrame(points, pointCount, timestamp, modelMatrix);
+            }
+        });
+        // Save the poses in batches while recording, on the writer thread
+        mCapturePipeline.setIdleTask(new Runnable() {
+            @Override
+            public void run() {
+                flushPoseStream();
+            }
+        });
+        mCapturePipeline.start();
+        mSessionOptions = loadSessionOptions();
         // End of My initializations
     }
 
@@ -246,6 +329,12 @@ public class PointCloudActivity extends Activity implements OnClickListener {
             Toast.makeText(getApplicationContext(), R.string.TangoError,
                     Toast.LENGTH_SHORT).show();
         }
+        // No more depth frames, let the descriptor of the last one go
+        try {
+            mXyzIjReader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
@@ -293,12 +382,27 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                         Toast.LENGTH_SHORT).show();
             }
             setUpExtrinsics();
+            setUpDepthIntrinsics();
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // The writer thread is done with the ring and the encoders once stopped
+        mCapturePipeline.stop();
+        try {
+            mFrameRing.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mFloatCodec.release();
+        mVtpWriter.release();
+        mOutlierFilter.shutdown();
+        mPointTransformer.shutdown();
+        if (mTsdfIntegrator != null) {
+            mTsdfIntegrator.shutdown();
+        }
     }
 
     @Override
@@ -322,6 +426,21 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.point_cloud, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_settings) {
+            startActivity(new Intent(this, SettingsActivity.class));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         return mRenderer.onTouchEvent(event);
@@ -359,6 +478,29 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 color2IMUPose.getRotationAsFloats());
     }
 
+    private void setUpDepthIntrinsics() {
+        // The range images are built by projecting the points with the depth camera intrinsics
+        try {
+            mDepthIntrinsics = mTango.getCameraIntrinsics(DEPTH_CAMERA_ID);
+        } catch (TangoErrorException e) {
+            mDepthIntrinsics = null;
+            Log.w(TAG, "Depth camera intrinsics not available");
+            return;
+        }
+        if (mDepthIntrinsics.width <= 0 || mDepthIntrinsics.height <= 0
+                || mDepthIntrinsics.fx <= 0 || mDepthIntrinsics.fy <= 0) {
+            Log.w(TAG, "Invalid depth camera intrinsics");
+            mDepthIntrinsics = null;
+            return;
+        }
+        mRangeImageCodec.setIntrinsics(mDepthIntrinsics.width, mDepthIntrinsics.height,
+                mDepthIntrinsics.fx, mDepthIntrinsics.fy, mDepthIntrinsics.cx,
+                mDepthIntrinsics.cy);
+        mNormalEstimator.setIntrinsics(mDepthIntrinsics.width, mDepthIntrinsics.height,
+                mDepthIntrinsics.fx, mDepthIntrinsics.fy, mDepthIntrinsics.cx,
+                mDepthIntrinsics.cy);
+    }
+
     private void setTangoListeners() {
         // Configure the Tango coordinate frame pair
         final ArrayList<TangoCoordinateFramePair> framePairs =
@@ -382,10 +524,12 @@ public class PointCloudActivity extends Activity implements OnClickListener {
 
                 // My pose buffering
                 if (mIsRecording && pose.statusCode == TangoPoseData.POSE_VALID) {
-                    mPosePositionBuffer.add(mNumPoseInSequence, pose.getTranslationAsFloats());
-                    mPoseOrientationBuffer.add(mNumPoseInSequence, pose.getRotationAsFloats());
-                    mPoseTimestampBuffer.add((float)pose.timestamp);
-                    mNumPoseInSequence++;
+                    mPoseTrack.append(pose.translation, pose.rotation, pose.timestamp);
+                }
+                // Poses of the last seconds, to place the depth frames
+                if (pose.statusCode == TangoPoseData.POSE_VALID) {
+                    mPoseIndex.append(pose.translation, pose.rotation, pose.timestamp);
+                    mPoseIndex.releaseBefore(pose.timestamp - POSE_INDEX_RETENTION);
                 }
                 //End of My pose buffering
 
@@ -434,64 +578,35 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                         * SECS_TO_MILLISECS;
                 mXyIjPreviousTimeStamp = mCurrentTimeStamp;
                 mXyzIjCallbackCount++;
-                final byte[] buffer = new byte[xyzIj.xyzCount * 3 * 4];
-                FileInputStream fileStream = new FileInputStream(
-                        xyzIj.xyzParcelFileDescriptor.getFileDescriptor());
-                try {
-                    fileStream.read(buffer, xyzIj.xyzParcelFileDescriptorOffset, buffer.length);
-                    fileStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-
-                // My writing to file function
-
-                // Background task for writing to file
-                class SendCommandTask extends AsyncTask<Void, Void, Boolean> {
-                    /** The system calls this to perform work in a worker thread and
-                     * delivers it the parameters given to AsyncTask.execute() */
-                    @Override
-                    protected Boolean doInBackground(Void... params) {
-
-                        try {
-                            mutex_on_mIsRecording.acquire();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                        // Saving the frame or not, depending on the current mode.
-                        if ( mTimeToTakeSnap || ( mIsRecording && mAutoMode && mXyzIjCallbackCount % 3 == 0 ) ) {
-                            writePointCloudToFile(xyzIj, buffer, framePairs);
-                        }
-                        mutex_on_mIsRecording.release();
-                        return true;
-                    }
-
-                    /** The system calls this to perform work in the UI thread and delivers
-                     * the result from doInBackground() */
-                    @Override
-                    protected void onPostExecute(Boolean done) {
-
-                    }
-                }
-                new SendCommandTask().execute();
-
-
-
-                // End of My writing to file function
 
+                // Matrix placing the frame in the world, if its pose is valid
+                float[] pointCloudModelMatrix = null;
                 try {
-                    TangoPoseData pointCloudPose = mTango.getPoseAtTime(
-                            mCurrentTimeStamp, framePairs.get(0));
+                    // Interpolate the pose from the pose stream, and only ask the
+                    // service when the stream does not cover the frame
+                    float[] translation = mFrameTranslation;
+                    float[] rotation = mFrameRotation;
+                    boolean poseValid = mPoseIndex.getPose(xyzIj.timestamp, translation,
+                            rotation);
+                    if (poseValid) {
+                        mIndexedPoseCount++;
+                    } else {
+                        TangoPoseData pointCloudPose = mTango.getPoseAtTime(
+                                xyzIj.timestamp, framePairs.get(0));
+                        translation = pointCloudPose.getTranslationAsFloats();
+                        rotation = pointCloudPose.getRotationAsFloats();
+                        poseValid = pointCloudPose.statusCode == TangoPoseData.POSE_VALID;
+                        mRequestedPoseCount++;
+                    }
 
-                    mRenderer.getPointCloud().UpdatePoints(buffer,
-                            xyzIj.xyzCount);
                     mRenderer.getModelMatCalculator()
-                            .updatePointCloudModelMatrix(
-                                    pointCloudPose.getTranslationAsFloats(),
-                                    pointCloudPose.getRotationAsFloats());
-                    mRenderer.getPointCloud().setModelMatrix(
-                            mRenderer.getModelMatCalculator()
-                                    .getPointCloudModelMatrixCopy());
+                            .updatePointCloudModelMatrix(translation, rotation);
+                    float[] modelMatrix = mRenderer.getModelMatCalculator()
+                            .getPointCloudModelMatrixCopy();
+                    mRenderer.getPointCloud().setModelMatrix(modelMatrix);
+                    if (poseValid) {
+                        pointCloudModelMatrix = modelMatrix;
+                    }
                 } catch (TangoErrorException e) {
                     Toast.makeText(getApplicationContext(),
                             R.string.TangoError, Toast.LENGTH_SHORT).show();
@@ -500,6 +615,67 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                             R.string.TangoError, Toast.LENGTH_SHORT).show();
                 }
 
+                // My writing to file function
+
+                // Saving the frame or not, depending on the current mode. Nothing is offered
+                // once the recording is stopped.
+                boolean isRecording = mIsRecording;
+                RecordingSession session = mSession;
+                boolean selectKeyframes = session != null && session.mOptions.selectKeyframes;
+                int keyframeReason = KeyframeSelector.REASON_NONE;
+                if (isRecording && mAutoMode) {
+                    if (selectKeyframes) {
+                        keyframeReason = mKeyframeSelector.check(xyzIj.timestamp,
+                                pointCloudModelMatrix);
+                    } else if (mXyzIjCallbackCount % 3 == 0) {
+                        keyframeReason = KeyframeSelector.REASON_INTERVAL;
+                    }
+                }
+                boolean saveFrame = isRecording && (mTimeToTakeSnap
+                        || keyframeReason != KeyframeSelector.REASON_NONE);
+
+                // Read the points straight into a slot of the capture pipeline when the
+                // frame is saved, into a buffer of the pool otherwise
+                ByteBuffer slot = saveFrame ? mCapturePipeline.beginOffer() : null;
+                if (saveFrame && slot == null) {
+                    Log.w(TAG, "Capture queue full, dropped depth frame "
+                            + mXyzIjCallbackCount);
+                }
+                // Only a buffer of the pool goes back to it, the slot belongs to the ring
+                boolean pooled = slot == null;
+                ByteBuffer points = pooled ? mXyzIjReader.acquire() : slot;
+                int pointCount = 0;
+                boolean isRead = false;
+                try {
+                    pointCount = mXyzIjReader.read(
+                            xyzIj.xyzParcelFileDescriptor.getFileDescriptor(),
+                            xyzIj.xyzParcelFileDescriptorOffset, xyzIj.xyzCount, points);
+                    points.flip();
+                    mRenderer.getPointCloud().UpdatePoints(points, pointCount);
+                    isRead = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                // Hand the frame to the writer thread of the capture pipeline, or give the
+                // slot back if the frame could not be read
+                if (!pooled && isRead) {
+                    mCapturePipeline.commitOffer(pointCount, xyzIj.timestamp,
+                            pointCloudModelMatrix);
+                    mTimeToTakeSnap = false;
+                    if (selectKeyframes && keyframeReason != KeyframeSelector.REASON_NONE) {
+                        mKeyframeSelector.accept(xyzIj.timestamp, pointCloudModelMatrix,
+                                keyframeReason);
+                    }
+                } else if (!pooled) {
+                    mCapturePipeline.abortOffer();
+                }
+                if (pooled) {
+                    mXyzIjReader.release(points);
+                }
+
+                // End of My writing to file function
+
                 // Must run UI changes on the UI thread. Running in the Tango
                 // service thread will result in an error.
                 runOnUiThread(new Runnable() {
@@ -556,103 +732,308 @@ public class PointCloudActivity extends Activity implements OnClickListener {
 
     // This function is called when the Record Switch is changed
     private void record_SwitchChanged(boolean isChecked) {
-        try {
-            mutex_on_mIsRecording.acquire();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        mIsRecording = isChecked;
         // Start Recording
-        if (mIsRecording) {
+        if (isChecked) {
+            RecordingSession session = new RecordingSession();
             // Generate a new date number to create a new group of files
             Calendar rightNow = Calendar.getInstance();
             int hour = rightNow.get(Calendar.HOUR_OF_DAY);
             int minute = rightNow.get(Calendar.MINUTE);
             int sec = rightNow.get(Calendar.SECOND);
             int milliSec = rightNow.get(Calendar.MILLISECOND);
-            mNowTimeString = "" + (int)(1000000 * hour + 10000 * minute + 100 * sec +
+            session.mNowTimeString = "" + (int)(1000000 * hour + 10000 * minute + 100 * sec +
                     (float)milliSec / 10.0);
             mNumberOfFilesWritten = 0;
+            // Freeze the settings of this sequence, as last changed in the settings screen
+            mSessionOptions = loadSessionOptions();
+            SessionOptions options = new SessionOptions(mSessionOptions);
+            session.mOptions = options;
+            mVtkWriter.setWriteVertices(options.writeVertices);
+            mVtpWriter.setWriteVertices(options.writeVertices);
+            mVtpWriter.setCompressed(options.compressVtp);
+            mPvdWriter.clear();
+            mFloatCodec.setBenchmark(options.benchmarkFloatCodec);
+            mFloatCodec.resetStatistics();
+            if (options.format == SessionOptions.FORMAT_RANGE_IMAGE
+                    && mDepthIntrinsics == null) {
+                Log.w(TAG, "No depth camera intrinsics, recording point clouds instead of range images");
+                options.format = SessionOptions.FORMAT_LEGACY_VTK;
+            }
+            mRangeImageCodec.setBenchmark(options.benchmarkRangeImage);
+            mRangeImageCodec.resetStatistics();
+            if (options.voxelLeafSize > 0) {
+                mVoxelGridFilter.setLeafSize(options.voxelLeafSize);
+                mVoxelGridFilter.setReduction(options.voxelReduction);
+            }
+            mVoxelGridFilter.resetStatistics();
+            if (options.removeOutliers) {
+                mOutlierFilter.setMeanK(options.outlierMeanK);
+                mOutlierFilter.setStddevMultiplier(options.outlierStddevMultiplier);
+            }
+            mOutlierFilter.resetStatistics();
+            mPointTransformer.setBenchmark(options.benchmarkTransform);
+            mPointTransformer.resetStatistics();
+            mXyzIjReader.resetStatistics();
+            mNormalEstimator.resetStatistics();
+            mMesher.setMaxDepthJump(options.meshMaxDepthJump);
+            mMesher.resetStatistics();
+            mKeyframeSelector.setMinTranslation(options.keyframeMinTranslation);
+            mKeyframeSelector.setMinRotation(options.keyframeMinRotation);
+            mKeyframeSelector.setMaxInterval(options.keyframeMaxInterval);
+            mKeyframeSelector.reset();
+            mIndexedPoseCount = 0;
+            mRequestedPoseCount = 0;
+            if (options.fuseMap) {
+                if (mFusedMap == null
+                        || mFusedMap.getMaxVoxels() != options.fusedMapMaxVoxels
+                        || mFusedMap.getLeafSize() != options.fusedMapLeafSize) {
+                    // Let the previous map go before allocating the new one
+                    mFusedMap = null;
+                    mFusedMap = new FusedMapAccumulator(options.fusedMapMaxVoxels,
+                            options.fusedMapLeafSize);
+                } else {
+                    mFusedMap.clear();
+                }
+                session.mFusedMap = mFusedMap;
+            }
+            if (options.fuseTsdf && mDepthIntrinsics == null) {
+                Log.w(TAG, "No depth camera intrinsics, the frames are not fused in a volume");
+            } else if (options.fuseTsdf) {
+                // Unless set, the volume takes a quarter of the heap, which does not depend on
+                // what is allocated, so that the same volume is kept from one recording to the
+                // next
+                int maxBlocks = options.tsdfMaxBlocks > 0 ? options.tsdfMaxBlocks
+                        : TsdfVolume.getMaxBlocks(Runtime.getRuntime().maxMemory() / 4);
+                TsdfVolume volume = mTsdfIntegrator != null ? mTsdfIntegrator.getVolume() : null;
+                if (volume == null
+                        || volume.getMaxBlocks() != maxBlocks
+                        || volume.getVoxelSize() != options.tsdfVoxelSize
+                        || volume.getTruncation() != options.tsdfTruncation) {
+                    // Let the previous volume go before allocating the new one
+                    if (mTsdfIntegrator != null) {
+                        mTsdfIntegrator.shutdown();
+                        mTsdfIntegrator = null;
+                    }
+                    volume = null;
+                    volume = new TsdfVolume(options.tsdfVoxelSize, options.tsdfTruncation,
+                            maxBlocks, Runtime.getRuntime().availableProcessors());
+                    volume.setIntrinsics(mDepthIntrinsics.width, mDepthIntrinsics.height,
+                            mDepthIntrinsics.fx, mDepthIntrinsics.fy, mDepthIntrinsics.cx,
+                            mDepthIntrinsics.cy);
+                    // Fuse the frames off the writer thread, the newest one when it falls behind
+                    mTsdfIntegrator = new TsdfIntegrator(volume);
+                    mTsdfIntegrator.start();
+                } else {
+                    mTsdfIntegrator.clear();
+                }
+                session.mTsdfIntegrator = mTsdfIntegrator;
+            }
+            mCapturePipeline.resetStatistics();
+            // Open the archive the frames of this sequence are streamed into
+            createSaveDirectories();
+            try {
+                session.mArchive = new SessionArchive(new File(mSaveDirAbsPath + "TangoData_" +
+                        session.mNowTimeString + ".zip.part"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mPoseTrack.clear();
+            try {
+                boolean vtp = options.format == SessionOptions.FORMAT_VTP;
+                session.mPoseStream = new PoseStreamWriter(new File(mSaveDirAbsPath + "pc_" +
+                        session.mNowTimeString + "_poses" + (vtp ? ".vtp" : ".vtk")),
+                        mPoseTrack, vtp);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (options.format == SessionOptions.FORMAT_CONTAINER) {
+                try {
+                    session.mCaptureContainer = new CaptureContainerWriter(new File(
+                            mSaveDirAbsPath + "TangoData_" + session.mNowTimeString + ".tgc"),
+                            mMaxDepthPoints, options.containerPreallocatedFrames);
+                    // So that the session can be fused offline, see TsdfVolume.main()
+                    if (mDepthIntrinsics != null) {
+                        session.mCaptureContainer.setIntrinsics(mDepthIntrinsics.width,
+                                mDepthIntrinsics.height, mDepthIntrinsics.fx,
+                                mDepthIntrinsics.fy, mDepthIntrinsics.cx, mDepthIntrinsics.cy);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            // Publish the session to the writer thread, then let the frames be saved
+            mSession = session;
+            mIsRecording = true;
             // Enable snapshot button
             mTakeSnapButton.setEnabled(true);
         }
         // Finish Recording
         else {
+            // Stop offering frames before the queued ones are flushed, a snap asked just before
+            // is ignored
+            mIsRecording = false;
+            mTimeToTakeSnap = false;
+            // No new recording until this one is finished
+            mRecordSwitch.setEnabled(false);
             // Disable snapshot button
             mTakeSnapButton.setEnabled(false);
             // Display a waiting progress bar
             mWaitingTextView.setText(R.string.waitSavingScan);
             mWaitingLinearLayout.setVisibility(View.VISIBLE);
             // Background task for writing poses to file
-            class SendCommandTask extends AsyncTask<Context, Void, Uri> {
+            class SendCommandTask extends AsyncTask<Context, Void, ArrayList<Uri>> {
+                // The recording being finished, the fields of the activity may be those of the
+                // next one by the time the task runs
+                private final RecordingSession mStoppedSession;
+
+                SendCommandTask(RecordingSession session) {
+                    mStoppedSession = session;
+                }
+
                 /** The system calls this to perform work in a worker thread and
                  * delivers it the parameters given to AsyncTask.execute() */
                 @Override
-                protected Uri doInBackground(Context... myAppContext) {
+                protected ArrayList<Uri> doInBackground(Context... myAppContext) {
+                    ArrayList<Uri> fileURIs = new ArrayList<Uri>();
+                    RecordingSession session = mStoppedSession;
+                    if (session == null) {
+                        return fileURIs;
+                    }
+                    SessionOptions options = session.mOptions;
+
+                    // Let the writer thread finish the frames queued before the stop, then
+                    // drop the ones offered later
+                    try {
+                        mCapturePipeline.flush();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    synchronized (session) {
+                        session.mIsFinished = true;
+                    }
+                    Log.i(TAG, mCapturePipeline.getStatistics());
+                    Log.i(TAG, "Frame poses: " + mIndexedPoseCount + " from the pose stream, "
+                            + mRequestedPoseCount + " asked to the service");
+                    if (options.removeOutliers) {
+                        Log.i(TAG, "Outlier removal: " + mOutlierFilter.getStatistics());
+                    }
+                    Log.i(TAG, "Depth frame reads: " + mXyzIjReader.getStatistics());
+                    if (options.worldSpacePoints) {
+                        Log.i(TAG, "World transform: " + mPointTransformer.getStatistics());
+                    }
+                    if (options.voxelLeafSize > 0) {
+                        Log.i(TAG, "Voxel grid: " + mVoxelGridFilter.getStatistics());
+                    }
+                    if (options.estimateNormals && mNormalEstimator.getFrameCount() > 0) {
+                        Log.i(TAG, "Normals: " + mNormalEstimator.getStatistics());
+                    }
+                    if (options.writeMesh && mMesher.getFrameCount() > 0) {
+                        Log.i(TAG, "Mesh: " + mMesher.getStatistics());
+                    }
+                    if (options.format == SessionOptions.FORMAT_FLOAT_CODEC) {
+                        Log.i(TAG, "Float codec: " + mFloatCodec.getStatistics());
+                    } else if (options.format == SessionOptions.FORMAT_RANGE_IMAGE) {
+                        Log.i(TAG, "Range images: " + mRangeImageCodec.getStatistics());
+                    }
 
-                    // Stop the Pose Recording, and write them to a file.
-                    writePoseToFile(mNumPoseInSequence);
-                    // If a snap has been asked just before, but not saved, ignore it, otherwise,
-                    // it will be saved at the end dof this function, and the 2nd archive will override
-                    // the first.
-                    mTimeToTakeSnap = false;
-                    mNumPoseInSequence = 0;
-                    mPoseOrientationBuffer.clear();
-                    mPoseOrientationBuffer.clear();
-                    mPoseTimestampBuffer.clear();
-
-                    // Zip all the files from this sequence
-                    String zipFilename = mSaveDirAbsPath + "TangoData_" + mNowTimeString +
-                            "_" + mFilenameBuffer.size() + "files.zip";
-                    String[] fileList = mFilenameBuffer.toArray(new String[mFilenameBuffer.size()]);
-                    ZipWriter zipper = new ZipWriter(fileList, zipFilename);
-                    zipper.zip();
-
-                    // Delete the data files now that they are archived
-                    for (String s : mFilenameBuffer) {
-                        File file = new File(s);
-                        boolean deleted = file.delete();
-                        if (!deleted) {
-                            Log.w(TAG, "File \"" + s + "\" not deleted\n");
+                    if (options.fuseMap) {
+                        writeFusedMapToFile(session);
+                    }
+                    if (options.fuseTsdf) {
+                        writeTsdfMeshToFile(session);
+                    }
+                    if (options.selectKeyframes
+                            && mKeyframeSelector.getCandidateCount() > 0) {
+                        writeKeyframesToFile(session);
+                    }
+
+                    // Stop the Pose Recording, and finish the file they were streamed to.
+                    File poseFile = finishPoseStream(session);
+                    if (options.format == SessionOptions.FORMAT_VTP) {
+                        writePvdToFile(session);
+                    }
+                    mPoseTrack.clear();
+
+                    // Finish the container the frames were appended to
+                    if (session.mCaptureContainer != null) {
+                        try {
+                            session.mCaptureContainer.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
                         }
+                        fileURIs.add(FileProvider.getUriForFile(myAppContext[0], "com.kitware." +
+                                "tangoproject.paraviewtangorecorder.fileprovider",
+                                session.mCaptureContainer.getFile()));
+                    }
+                    if (poseFile != null) {
+                        fileURIs.add(FileProvider.getUriForFile(myAppContext[0], "com.kitware." +
+                                "tangoproject.paraviewtangorecorder.fileprovider", poseFile));
                     }
-                    mFilenameBuffer.clear();
 
-                    // Send the zip file to another app
-                    File myZipFile = new File(zipFilename);
+                    // Finish the archive the frames were streamed into
+                    SessionArchive archive = session.mArchive;
+                    if (archive == null) {
+                        return fileURIs;
+                    }
+                    File myZipFile = new File(mSaveDirAbsPath + "TangoData_" +
+                            session.mNowTimeString + "_" + archive.getEntryCount() + "files.zip");
+                    try {
+                        archive.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    if (!archive.getFile().renameTo(myZipFile)) {
+                        Log.w(TAG, "File \"" + archive.getFile() + "\" not renamed\n");
+                        myZipFile = archive.getFile();
+                    }
 
-                    return FileProvider.getUriForFile(myAppContext[0], "com.kitware." +
-                            "tangoproject.paraviewtangorecorder.fileprovider", myZipFile);
+                    // Send the zip file to another app
+                    fileURIs.add(0, FileProvider.getUriForFile(myAppContext[0], "com.kitware." +
+                            "tangoproject.paraviewtangorecorder.fileprovider", myZipFile));
+                    return fileURIs;
                 }
 
                 /** The system calls this to perform work in the UI thread and delivers
                  * the result from doInBackground() */
                 @Override
-                protected void onPostExecute(Uri fileURI) {
+                protected void onPostExecute(ArrayList<Uri> fileURIs) {
+                    if (mSession == mStoppedSession) {
+                        mSession = null;
+                    }
+                    mRecordSwitch.setEnabled(true);
+                    mWaitingLinearLayout.setVisibility(View.GONE);
+                    if (fileURIs.isEmpty()) {
+                        return;
+                    }
                     Intent shareIntent = new Intent();
-                    shareIntent.setAction(Intent.ACTION_SEND);
-                    shareIntent.putExtra(Intent.EXTRA_STREAM, fileURI);
-                    shareIntent.setType("application/zip");
+                    if (fileURIs.size() == 1) {
+                        shareIntent.setAction(Intent.ACTION_SEND);
+                        shareIntent.putExtra(Intent.EXTRA_STREAM, fileURIs.get(0));
+                        shareIntent.setType("application/zip");
+                    } else {
+                        shareIntent.setAction(Intent.ACTION_SEND_MULTIPLE);
+                        shareIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, fileURIs);
+                        shareIntent.setType("application/octet-stream");
+                    }
                     startActivity(Intent.createChooser(shareIntent, "Send Scan To..."));
-                    mWaitingLinearLayout.setVisibility(View.GONE);
                 }
             }
-            new SendCommandTask().execute(this);
+            new SendCommandTask(mSession).execute(this);
 
         }
-        mutex_on_mIsRecording.release();
-
     }
 
-    // This function writes the XYZ points to .vtk files in binary
-    private void writePointCloudToFile(TangoXyzIjData xyzIj, byte[] buffer,
-                                       ArrayList<TangoCoordinateFramePair> framePairs) {
-
-        ByteBuffer myBuffer = ByteBuffer.allocate(xyzIj.xyzCount * 3 * 4);
-        myBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        myBuffer.put(buffer, xyzIj.xyzParcelFileDescriptorOffset, myBuffer.capacity());
-
+    // This function reads the settings of the recordings from the settings screen, and from
+    // the extras the activity was started with, which win
+    private SessionOptions loadSessionOptions() {
+        SessionOptions options = new SessionOptions();
+        options.load(PreferenceManager.getDefaultSharedPreferences(this),
+                getIntent().getExtras());
+        return options;
+    }
 
+    // This function creates the folders the scans are saved in
+    private void createSaveDirectories() {
         File mainDir = new File(mMainDirPath);
         if(!mainDir.exists()) {
             boolean created = mainDir.mkdir();
@@ -668,110 +1049,283 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 Log.i(TAG, "Folder: \"" + mSaveDirAbsPath + "\" created\n");
             }
         }
+    }
 
-        mFilename = "pc_" + mNowTimeString + "_" + String.format("%03d", mNumberOfFilesWritten) +
-                ".vtk";
-        mFilenameBuffer.add(mSaveDirAbsPath + mFilename);
-        File file = new File(dir, mFilename);
-
-
-        try {
-
-            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
-                    new FileOutputStream(file)));
+    // This function filters a frame of the capture pipeline and saves it, on the writer thread
+    private void saveFrame(ByteBuffer points, int pointCount, double timestamp,
+                           float[] modelMatrix) {
 
-            out.write(("# vtk DataFile Version 3.0\n" +
-                    "vtk output\n" +
-                    "BINARY\n" +
-                    "DATASET POLYDATA\n" +
-                    "POINTS " + xyzIj.xyzCount + " float\n").getBytes());
+        RecordingSession session = mSession;
+        if (session == null) {
+            return;
+        }
+        // The stop task finishes the files of the session under this lock
+        synchronized (session) {
+            if (session.mIsFinished) {
+                Log.w(TAG, "Frame offered after the end of the recording dropped");
+                return;
+            }
+            SessionOptions options = session.mOptions;
+            if (options.removeOutliers) {
+                points = mOutlierFilter.filter(points, pointCount);
+                pointCount = mOutlierFilter.getOutputCount();
+            }
+            if (session.mFusedMap != null && modelMatrix != null) {
+                session.mFusedMap.accumulate(points, pointCount, timestamp, modelMatrix);
+            }
+            if (session.mTsdfIntegrator != null && modelMatrix != null) {
+                session.mTsdfIntegrator.offer(points, pointCount, timestamp, modelMatrix);
+            }
+            if (options.voxelLeafSize > 0) {
+                points = mVoxelGridFilter.filter(points, pointCount);
+                pointCount = mVoxelGridFilter.getOutputCount();
+            }
+            writePointCloudToFile(session, points, pointCount, timestamp, modelMatrix);
+        }
+    }
 
-            for (int i = 0; i < xyzIj.xyzCount; i++) {
+    // This function writes the XYZ points to .vtk entries of the session archive in binary
+    private void writePointCloudToFile(RecordingSession session, ByteBuffer points,
+                                       int pointCount, double timestamp, float[] modelMatrix) {
 
-                out.writeFloat(myBuffer.getFloat(3 * i * 4));
-                out.writeFloat(myBuffer.getFloat((3 * i + 1) * 4));
-                out.writeFloat(myBuffer.getFloat((3 * i + 2) * 4));
+        SessionOptions options = session.mOptions;
+        if (options.format == SessionOptions.FORMAT_CONTAINER) {
+            writePointCloudToContainer(session, points, pointCount, timestamp, modelMatrix);
+            return;
+        }
+        SessionArchive archive = session.mArchive;
+        if (archive == null) {
+            return;
+        }
+        String filename = "pc_" + session.mNowTimeString + "_"
+                + String.format("%03d", mNumberOfFilesWritten) + options.getFrameExtension();
+        mFilename = filename;
+
+        // Only the VTK formats have room for the normals and the triangles
+        ByteBuffer normals = null;
+        ByteBuffer triangles = null;
+        if (options.format == SessionOptions.FORMAT_VTP
+                || options.format == SessionOptions.FORMAT_LEGACY_VTK) {
+            boolean mesh = options.writeMesh && mDepthIntrinsics != null;
+            if (mesh) {
+                // The ij grid of the frames is not filled by the service, project the points
+                mOrganizedGrid.setFromProjection(points, pointCount, mDepthIntrinsics.width,
+                        mDepthIntrinsics.height, mDepthIntrinsics.fx, mDepthIntrinsics.fy,
+                        mDepthIntrinsics.cx, mDepthIntrinsics.cy);
+                triangles = mMesher.mesh(points, pointCount, mOrganizedGrid);
             }
-
-            out.write(("\nVERTICES 1 " + String.valueOf(xyzIj.xyzCount + 1) + "\n").getBytes());
-            out.writeInt(xyzIj.xyzCount);
-            for (int i = 0; i < xyzIj.xyzCount; i++) {
-                out.writeInt(i);
+            if (options.estimateNormals) {
+                // Reuse the grid of the mesh rather than projecting the points again
+                normals = mesh ? mNormalEstimator.estimateOrganized(points, pointCount,
+                        mOrganizedGrid) : mNormalEstimator.estimate(points, pointCount);
             }
+            // Move the frame to the world, once the mesh and the normals are done in the
+            // depth camera frame
+            if (options.worldSpacePoints && modelMatrix != null) {
+                if (normals != null) {
+                    normals = mPointTransformer.rotate(normals, pointCount, modelMatrix);
+                }
+                points = mPointTransformer.transform(points, pointCount, modelMatrix);
+            }
+            // Store the device pose in the frame, the poses after it have arrived by now
+            if (mPoseIndex.getPose(timestamp, mWriterTranslation, mWriterRotation)) {
+                mVtkWriter.setFramePose(mWriterTranslation, mWriterRotation);
+                mVtpWriter.setFramePose(mWriterTranslation, mWriterRotation);
+            } else {
+                mVtkWriter.setFramePose(null, null);
+                mVtpWriter.setFramePose(null, null);
+            }
+        }
 
-            out.write(("\nFIELD FieldData 1\n" + "timestamp 1 1 float\n").getBytes());
-            out.writeFloat((float) xyzIj.timestamp);
-
-            out.close();
+        try {
+            archive.beginEntry(filename,
+                    options.getPointCloudEntryCompression());
+            if (options.format == SessionOptions.FORMAT_VTP) {
+                mVtpWriter.writeMesh(archive.getChannel(), points, normals,
+                        pointCount, triangles, mMesher.getTriangleCount(), timestamp);
+                mPvdWriter.addDataSet(timestamp, filename);
+            } else if (options.format == SessionOptions.FORMAT_FLOAT_CODEC) {
+                VtkPolyDataWriter.writeFully(archive.getChannel(),
+                        mFloatCodec.encode(points, pointCount, timestamp));
+            } else if (options.format == SessionOptions.FORMAT_RANGE_IMAGE) {
+                // The ij grid of the frames is not filled by the service, project the points
+                VtkPolyDataWriter.writeFully(archive.getChannel(),
+                        mRangeImageCodec.encode(points, pointCount, timestamp, mOrganizedGrid));
+            } else if (triangles != null) {
+                mVtkWriter.writeMesh(archive.getChannel(), points, normals,
+                        pointCount, triangles, mMesher.getTriangleCount(), timestamp);
+            } else {
+                mVtkWriter.writePointCloud(archive.getChannel(), points, normals,
+                        pointCount, timestamp);
+            }
+            archive.endEntry();
             mNumberOfFilesWritten++;
-            mTimeToTakeSnap = false;
 
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // This function writes the pose data and timestamps to .vtk files in binary
-    private void writePoseToFile(int numPoints) {
+    // This function writes the merged world-space cloud of the session to the archive
+    private void writeFusedMapToFile(RecordingSession session) {
 
-        File mainDir = new File(mMainDirPath);
-        if(!mainDir.exists()) {
-            boolean created = mainDir.mkdir();
-            if (created) {
-                Log.i(TAG, "Folder: \"" + mMainDirPath + "\" created\n");
+        FusedMapAccumulator fusedMap = session.mFusedMap;
+        SessionArchive archive = session.mArchive;
+        if (fusedMap == null || archive == null) {
+            return;
+        }
+        SessionOptions options = session.mOptions;
+        Log.i(TAG, "Fused map: " + fusedMap.getStatistics());
+        ByteBuffer points = ByteBuffer.allocateDirect(fusedMap.getVoxelCount() * 3 * 4);
+        int pointCount = fusedMap.export(points, options.fusedMapMinCount);
+        points.flip();
+        if (options.removeOutliers) {
+            points = mOutlierFilter.filter(points, pointCount);
+            Log.i(TAG, "Fused map outliers removed: " + (pointCount
+                    - mOutlierFilter.getOutputCount()) + " of " + pointCount);
+            pointCount = mOutlierFilter.getOutputCount();
+        }
+        boolean vtp = options.format == SessionOptions.FORMAT_VTP;
+        // The merged cloud is in the world, it has no pose of its own
+        mVtkWriter.setFramePose(null, null);
+        mVtpWriter.setFramePose(null, null);
+        try {
+            archive.beginEntry("pc_" + session.mNowTimeString + "_fused" + (vtp ? ".vtp" : ".vtk"),
+                    options.pointCloudCompression);
+            if (vtp) {
+                mVtpWriter.writePointCloud(archive.getChannel(), points, pointCount,
+                        fusedMap.getLastTimestamp());
+            } else {
+                mVtkWriter.writePointCloud(archive.getChannel(), points, pointCount,
+                        fusedMap.getLastTimestamp());
             }
+            archive.endEntry();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
 
-        File dir = new File(mSaveDirAbsPath);
-        if(!dir.exists()) {
-            boolean created = dir.mkdir();
-            if (created) {
-                Log.i(TAG, "Folder: \"" + mSaveDirAbsPath + "\" created\n");
+    // This function writes the surface of the signed distance volume to the archive
+    private void writeTsdfMeshToFile(RecordingSession session) {
+
+        TsdfIntegrator integrator = session.mTsdfIntegrator;
+        SessionArchive archive = session.mArchive;
+        if (integrator == null || archive == null) {
+            return;
+        }
+        // Wait for the last frame handed to the integration thread
+        try {
+            integrator.flush();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        SessionOptions options = session.mOptions;
+        TsdfVolume volume = integrator.getVolume();
+        volume.extractMesh();
+        Log.i(TAG, "Volume: " + integrator.getStatistics());
+        boolean vtp = options.format == SessionOptions.FORMAT_VTP;
+        mVtkWriter.setFramePose(null, null);
+        mVtpWriter.setFramePose(null, null);
+        try {
+            archive.beginEntry("pc_" + session.mNowTimeString + "_tsdf" + (vtp ? ".vtp" : ".vtk"),
+                    options.pointCloudCompression);
+            if (vtp) {
+                mVtpWriter.writeMesh(archive.getChannel(),
+                        volume.getMeshVertices(), null, volume.getMeshVertexCount(),
+                        volume.getMeshTriangles(), volume.getMeshTriangleCount(),
+                        volume.getLastTimestamp());
+            } else {
+                mVtkWriter.writeMesh(archive.getChannel(),
+                        volume.getMeshVertices(), null, volume.getMeshVertexCount(),
+                        volume.getMeshTriangles(), volume.getMeshTriangleCount(),
+                        volume.getLastTimestamp());
             }
+            archive.endEntry();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        String poseFileName = "pc_" + mNowTimeString + "_poses.vtk";
-        mFilenameBuffer.add(mSaveDirAbsPath + poseFileName);
-        File file = new File(dir, poseFileName);
+    }
+
+    // This function appends the XYZ points to the capture container of the session
+    private void writePointCloudToContainer(RecordingSession session, ByteBuffer points,
+                                            int pointCount, double timestamp,
+                                            float[] modelMatrix) {
 
+        CaptureContainerWriter container = session.mCaptureContainer;
+        if (container == null) {
+            return;
+        }
         try {
-            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
-                    new FileOutputStream(file)));
+            container.appendFrame(points, pointCount, timestamp, modelMatrix);
+            mFilename = container.getFile().getName() + " #" + mNumberOfFilesWritten;
+            mNumberOfFilesWritten++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            out.write(("# vtk DataFile Version 3.0\n" +
-                    "vtk output\n" +
-                    "BINARY\n" +
-                    "DATASET POLYDATA\n" +
-                    "POINTS " + numPoints + " float\n").getBytes());
+    // This function writes the poses recorded since the last batch to the pose file,
+    // and lets the pose track of that file recycle the memory of the poses already written
+    private void flushPoseStream() {
 
-            for (int i = 0; i < numPoints; i++) {
-                out.writeFloat(mPosePositionBuffer.get(i)[0]);
-                out.writeFloat(mPosePositionBuffer.get(i)[1]);
-                out.writeFloat(mPosePositionBuffer.get(i)[2]);
+        RecordingSession session = mSession;
+        PoseStreamWriter poseStream = session != null ? session.mPoseStream : null;
+        if (poseStream == null) {
+            return;
+        }
+        try {
+            if (poseStream.flush(false) > 0) {
+                poseStream.releaseWritten();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            out.write(("\nLINES 1 " + String.valueOf(numPoints + 1) + "\n").getBytes());
-            out.writeInt(numPoints);
-            for (int i = 0; i < numPoints; i++) {
-                out.writeInt(i);
-            }
+    // This function writes the last poses and completes the pose file of the sequence
+    private File finishPoseStream(RecordingSession session) {
 
-            out.write(("\nPOINT_DATA " + String.valueOf(numPoints) + "\n" +
-                    "FIELD FieldData 2\n" +
-                    "orientation 4 " + String.valueOf(numPoints) + " float\n").getBytes());
+        PoseStreamWriter poseStream = session.mPoseStream;
+        if (poseStream == null) {
+            return null;
+        }
+        try {
+            poseStream.finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return poseStream.getFile();
+    }
 
-            for (int i = 0; i < numPoints; i++) {
-                out.writeFloat(mPoseOrientationBuffer.get(i)[0]);
-                out.writeFloat(mPoseOrientationBuffer.get(i)[1]);
-                out.writeFloat(mPoseOrientationBuffer.get(i)[2]);
-                out.writeFloat(mPoseOrientationBuffer.get(i)[3]);
-            }
+    // This function writes the keyframe selection log to the session archive
+    private void writeKeyframesToFile(RecordingSession session) {
 
-            out.write(("\ntimestamp 1 " + String.valueOf(numPoints) + " float\n").getBytes());
-            for (int i = 0; i < numPoints; i++) {
-                out.writeFloat(mPoseTimestampBuffer.get(i));
-            }
+        SessionArchive archive = session.mArchive;
+        if (archive == null) {
+            return;
+        }
+        Log.i(TAG, "Keyframes: " + mKeyframeSelector.getStatistics());
+        try {
+            archive.beginEntry("pc_" + session.mNowTimeString + "_keyframes.csv");
+            mKeyframeSelector.write(archive.getOutputStream());
+            archive.endEntry();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            out.close();
+    // This function writes the .pvd collection of the frames to the session archive
+    private void writePvdToFile(RecordingSession session) {
+
+        SessionArchive archive = session.mArchive;
+        if (archive == null) {
+            return;
+        }
+        try {
+            archive.beginEntry("pc_" + session.mNowTimeString + ".pvd");
+            mPvdWriter.write(archive.getOutputStream());
+            archive.endEntry();
         } catch (IOException e) {
             e.printStackTrace();
         }
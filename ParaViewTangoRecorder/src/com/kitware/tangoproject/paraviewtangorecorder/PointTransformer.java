@@ -0,0 +1,320 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import android.opengl.Matrix;
+
+/**
+ * Applies a 4x4 matrix, such as the model matrix of a frame, to a whole
+ * buffer of packed xyz floats, to write the frames in the world frame.
+ *
+ * The points are copied by blocks to the heap, transformed there and copied
+ * back, nothing being allocated per point. Large frames are split in ranges
+ * transformed in parallel by a fixed pool of threads.
+ *
+ * {@link #setBenchmark(boolean)} compares each frame with the naive
+ * transform, one {@link Matrix#multiplyMV} per point. An instance must only
+ * be used from one thread at a time; {@link #shutdown()} stops its threads.
+ */
+public class PointTransformer {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+    // Points copied to the heap at once
+    private static final int BLOCK_POINTS = 1024;
+    // Below this, the threads cost more than they save
+    private static final int MIN_PARALLEL_POINTS = 16384;
+
+    private final ParallelFor mParallelFor;
+    private final ArrayList<Partition> mPartitions;
+    private final ArrayList<Callable<Void>> mTasks;
+    private final float[] mMatrix;
+
+    private ByteBuffer mOutput;
+    private ByteBuffer mDirectionOutput;
+
+    // Benchmark against Matrix.multiplyMV
+    private boolean mBenchmark;
+    private float[] mBenchmarkPoints;
+    private final float[] mBenchmarkIn;
+    private final float[] mBenchmarkOut;
+    private long mBaselineNanos;
+    private float mMaxDifference;
+
+    // Statistics
+    private long mFrameCount;
+    private long mPointCount;
+    private long mTransformNanos;
+
+    /**
+     * @param threadCount
+     *            number of threads transforming the large frames.
+     */
+    public PointTransformer(int threadCount) {
+        mParallelFor = new ParallelFor(threadCount, "PointTransformer");
+        mPartitions = new ArrayList<Partition>();
+        for (int i = 0; i < mParallelFor.getThreadCount(); i++) {
+            mPartitions.add(new Partition());
+        }
+        mTasks = new ArrayList<Callable<Void>>(mPartitions.size());
+        mMatrix = new float[16];
+        mOutput = ByteBuffer.allocateDirect(0);
+        mDirectionOutput = ByteBuffer.allocateDirect(0);
+        mBenchmarkPoints = new float[0];
+        mBenchmarkIn = new float[4];
+        mBenchmarkOut = new float[4];
+    }
+
+    public int getThreadCount() {
+        return mParallelFor.getThreadCount();
+    }
+
+    /**
+     * Enables the comparison of each frame transformed with the naive
+     * transform, timed separately. This more than doubles the time taken.
+     */
+    public void setBenchmark(boolean benchmark) {
+        mBenchmark = benchmark;
+    }
+
+    /**
+     * Transforms points.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, from its position, which is
+     *            left unchanged.
+     * @param matrix
+     *            column-major 4x4 matrix, applied to (x, y, z, 1).
+     * @return the little-endian xyz floats of the transformed points, from
+     *         position 0 to the limit, valid until the next call.
+     */
+    public ByteBuffer transform(ByteBuffer xyz, int pointCount, float[] matrix) {
+        mOutput = reserve(mOutput, pointCount);
+        run(xyz, pointCount, matrix, true, mOutput);
+        return mOutput;
+    }
+
+    /**
+     * Rotates directions, such as normals, with the upper 3x3 of a matrix,
+     * which is a rotation for the model matrices.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, from its position, which is
+     *            left unchanged.
+     * @param matrix
+     *            column-major 4x4 matrix, applied to (x, y, z, 0).
+     * @return the little-endian xyz floats of the rotated directions, from
+     *         position 0 to the limit, valid until the next call. It is not
+     *         the buffer returned by {@link #transform(ByteBuffer, int,
+     *         float[])}.
+     */
+    public ByteBuffer rotate(ByteBuffer xyz, int pointCount, float[] matrix) {
+        mDirectionOutput = reserve(mDirectionOutput, pointCount);
+        run(xyz, pointCount, matrix, false, mDirectionOutput);
+        return mDirectionOutput;
+    }
+
+    private static ByteBuffer reserve(ByteBuffer buffer, int pointCount) {
+        int size = pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT;
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size).order(
+                    ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private void run(ByteBuffer xyz, int pointCount, float[] matrix,
+            boolean translate, ByteBuffer output) {
+        long start = System.nanoTime();
+        // The caller may change its matrix while the threads read it
+        System.arraycopy(matrix, 0, mMatrix, 0, 16);
+        int partitionCount = pointCount < MIN_PARALLEL_POINTS ? 1
+                : mPartitions.size();
+        mTasks.clear();
+        for (int i = 0; i < partitionCount; i++) {
+            Partition partition = mPartitions.get(i);
+            partition.mSource = xyz;
+            partition.mDestination = output;
+            partition.mTranslate = translate;
+            partition.mStart = ParallelFor.start(pointCount, i,
+                    partitionCount);
+            partition.mEnd = ParallelFor.start(pointCount, i + 1,
+                    partitionCount);
+            mTasks.add(partition);
+        }
+        mParallelFor.run(mTasks);
+        for (int i = 0; i < partitionCount; i++) {
+            mPartitions.get(i).mSource = null;
+            mPartitions.get(i).mDestination = null;
+        }
+        mFrameCount++;
+        mPointCount += pointCount;
+        mTransformNanos += System.nanoTime() - start;
+
+        if (mBenchmark) {
+            benchmark(xyz, pointCount, translate ? 1 : 0, output);
+        }
+    }
+
+    /**
+     * Transforms the points one by one with Matrix.multiplyMV, and records
+     * the largest difference with the output of the kernel.
+     */
+    private void benchmark(ByteBuffer xyz, int pointCount, float w,
+            ByteBuffer output) {
+        if (mBenchmarkPoints.length < pointCount * POINT_TO_XYZ) {
+            mBenchmarkPoints = new float[pointCount * POINT_TO_XYZ];
+        }
+        float[] points = mBenchmarkPoints;
+        xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+                .get(points, 0, pointCount * POINT_TO_XYZ);
+        float[] in = mBenchmarkIn;
+        float[] out = mBenchmarkOut;
+        long start = System.nanoTime();
+        for (int p = 0; p < pointCount; p++) {
+            int o = p * POINT_TO_XYZ;
+            in[0] = points[o];
+            in[1] = points[o + 1];
+            in[2] = points[o + 2];
+            in[3] = w;
+            Matrix.multiplyMV(out, 0, mMatrix, 0, in, 0);
+            points[o] = out[0];
+            points[o + 1] = out[1];
+            points[o + 2] = out[2];
+        }
+        mBaselineNanos += System.nanoTime() - start;
+
+        FloatBuffer transformed = output.duplicate()
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        for (int i = 0; i < pointCount * POINT_TO_XYZ; i++) {
+            float difference = Math.abs(transformed.get(i) - points[i]);
+            // NaN points compare as NaN on both sides
+            if (difference > mMaxDifference) {
+                mMaxDifference = difference;
+            }
+        }
+    }
+
+    /**
+     * The kernel: transforms count packed xyz points of an array in place.
+     *
+     * @param translate
+     *            false to only apply the upper 3x3 of the matrix.
+     */
+    static void transform(float[] matrix, boolean translate, float[] points,
+            int offset, int count) {
+        float m0 = matrix[0], m4 = matrix[4], m8 = matrix[8];
+        float m1 = matrix[1], m5 = matrix[5], m9 = matrix[9];
+        float m2 = matrix[2], m6 = matrix[6], m10 = matrix[10];
+        float m12 = 0, m13 = 0, m14 = 0;
+        if (translate) {
+            m12 = matrix[12];
+            m13 = matrix[13];
+            m14 = matrix[14];
+        }
+        int end = offset + count * POINT_TO_XYZ;
+        for (int o = offset; o < end; o += POINT_TO_XYZ) {
+            float x = points[o];
+            float y = points[o + 1];
+            float z = points[o + 2];
+            points[o] = m0 * x + m4 * y + m8 * z + m12;
+            points[o + 1] = m1 * x + m5 * y + m9 * z + m13;
+            points[o + 2] = m2 * x + m6 * y + m10 * z + m14;
+        }
+    }
+
+    /**
+     * @return the number of points transformed per second.
+     */
+    public double getThroughput() {
+        return mTransformNanos == 0 ? 0 : mPointCount * 1e9 / mTransformNanos;
+    }
+
+    /**
+     * @return the number of points transformed per second by
+     *         Matrix.multiplyMV, when benchmarking.
+     */
+    public double getBaselineThroughput() {
+        return mBaselineNanos == 0 ? 0 : mPointCount * 1e9 / mBaselineNanos;
+    }
+
+    public String getStatistics() {
+        String statistics = String.format("%d frames, %d points, %d threads, "
+                + "%.0f points/s", mFrameCount, mPointCount, getThreadCount(),
+                getThroughput());
+        if (mBaselineNanos > 0) {
+            statistics += String.format(", multiplyMV %.0f points/s "
+                    + "(x%.1f), max difference %g", getBaselineThroughput(),
+                    getThroughput() / getBaselineThroughput(), mMaxDifference);
+        }
+        return statistics;
+    }
+
+    public void resetStatistics() {
+        mFrameCount = 0;
+        mPointCount = 0;
+        mTransformNanos = 0;
+        mBaselineNanos = 0;
+        mMaxDifference = 0;
+    }
+
+    /**
+     * Stops the threads. The transformer must not be used afterwards.
+     */
+    public void shutdown() {
+        mParallelFor.shutdown();
+    }
+
+    /**
+     * Range of the points, with its block of heap floats.
+     */
+    private class Partition implements Callable<Void> {
+        ByteBuffer mSource;
+        ByteBuffer mDestination;
+        boolean mTranslate;
+        int mStart;
+        int mEnd;
+        private final float[] mBlock = new float[BLOCK_POINTS * POINT_TO_XYZ];
+
+        @Override
+        public Void call() {
+            FloatBuffer source = mSource.duplicate()
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            FloatBuffer destination = mDestination.duplicate()
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            source.position(mStart * POINT_TO_XYZ);
+            destination.position(mStart * POINT_TO_XYZ);
+            float[] block = mBlock;
+            for (int p = mStart; p < mEnd; p += BLOCK_POINTS) {
+                int count = Math.min(BLOCK_POINTS, mEnd - p);
+                source.get(block, 0, count * POINT_TO_XYZ);
+                transform(mMatrix, mTranslate, block, 0, count);
+                destination.put(block, 0, count * POINT_TO_XYZ);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.util.Arrays;
+
+/**
+ * Poses of the pose stream sorted by timestamp, giving the pose at any time
+ * without asking the Tango service: the two poses around it are found by
+ * binary search, then the positions are interpolated linearly and the
+ * orientations spherically.
+ *
+ * The poses are kept in primitive arrays. {@link #releaseBefore(double)}
+ * drops the poses too old to be asked for, so that the index stays small
+ * during a long session.
+ *
+ * Appending and reading can happen on different threads.
+ */
+public class PoseIndex {
+
+    private static final int POSITION_SIZE = 3;
+    private static final int ORIENTATION_SIZE = 4;
+    // Below this angle cosine, the orientations are interpolated linearly
+    private static final double SLERP_THRESHOLD = 0.9995;
+
+    private double[] mTimestamps;
+    private float[] mPositions;
+    private float[] mOrientations;
+    private int mStart;
+    private int mEnd;
+    private double mMaxGap;
+    private double mMaxExtrapolation;
+
+    public PoseIndex() {
+        mTimestamps = new double[1024];
+        mPositions = new float[1024 * POSITION_SIZE];
+        mOrientations = new float[1024 * ORIENTATION_SIZE];
+        mMaxGap = 0.2;
+        mMaxExtrapolation = 0.05;
+    }
+
+    /**
+     * @param seconds
+     *            the largest time between the two poses a pose is
+     *            interpolated from.
+     */
+    public synchronized void setMaxGap(double seconds) {
+        mMaxGap = seconds;
+    }
+
+    /**
+     * @param seconds
+     *            how far before the first or after the last pose the nearest
+     *            pose is still returned.
+     */
+    public synchronized void setMaxExtrapolation(double seconds) {
+        mMaxExtrapolation = seconds;
+    }
+
+    /**
+     * Appends a pose. Poses not newer than the last one are ignored.
+     *
+     * @param translation
+     *            x, y, z, as in TangoPoseData.translation.
+     * @param rotation
+     *            x, y, z, w, as in TangoPoseData.rotation.
+     */
+    public synchronized void append(double[] translation, double[] rotation,
+            double timestamp) {
+        if (mEnd > mStart && timestamp <= mTimestamps[mEnd - 1]) {
+            return;
+        }
+        if (mEnd == mTimestamps.length) {
+            compact();
+        }
+        mTimestamps[mEnd] = timestamp;
+        int p = mEnd * POSITION_SIZE;
+        mPositions[p] = (float) translation[0];
+        mPositions[p + 1] = (float) translation[1];
+        mPositions[p + 2] = (float) translation[2];
+        int o = mEnd * ORIENTATION_SIZE;
+        mOrientations[o] = (float) rotation[0];
+        mOrientations[o + 1] = (float) rotation[1];
+        mOrientations[o + 2] = (float) rotation[2];
+        mOrientations[o + 3] = (float) rotation[3];
+        mEnd++;
+    }
+
+    public synchronized int size() {
+        return mEnd - mStart;
+    }
+
+    public synchronized void clear() {
+        mStart = 0;
+        mEnd = 0;
+    }
+
+    /**
+     * Drops the poses before a time, except the last of them, which is still
+     * needed to interpolate right after it.
+     */
+    public synchronized void releaseBefore(double timestamp) {
+        int index = Arrays.binarySearch(mTimestamps, mStart, mEnd, timestamp);
+        int firstKept = (index >= 0 ? index : -index - 1) - 1;
+        if (firstKept > mStart) {
+            mStart = firstKept;
+        }
+    }
+
+    /**
+     * Moves the poses kept to the start of the arrays, or grows them when
+     * most of them are kept.
+     */
+    private void compact() {
+        int size = mEnd - mStart;
+        if (size > mTimestamps.length / 2) {
+            mTimestamps = Arrays.copyOf(mTimestamps, 2 * mTimestamps.length);
+            mPositions = Arrays.copyOf(mPositions, 2 * mPositions.length);
+            mOrientations = Arrays.copyOf(mOrientations,
+                    2 * mOrientations.length);
+        }
+        System.arraycopy(mTimestamps, mStart, mTimestamps, 0, size);
+        System.arraycopy(mPositions, mStart * POSITION_SIZE, mPositions, 0,
+                size * POSITION_SIZE);
+        System.arraycopy(mOrientations, mStart * ORIENTATION_SIZE,
+                mOrientations, 0, size * ORIENTATION_SIZE);
+        mStart = 0;
+        mEnd = size;
+    }
+
+    /**
+     * Finds the pose at a time.
+     *
+     * @param translation
+     *            receives x, y, z.
+     * @param rotation
+     *            receives the x, y, z, w unit quaternion.
+     * @return false if no pose is close enough in time, the arrays are then
+     *         left unchanged.
+     */
+    public synchronized boolean getPose(double timestamp, float[] translation,
+            float[] rotation) {
+        if (mEnd == mStart) {
+            return false;
+        }
+        int index = Arrays.binarySearch(mTimestamps, mStart, mEnd, timestamp);
+        if (index >= 0) {
+            copyPose(index, translation, rotation);
+            return true;
+        }
+        // First pose after the time
+        int next = -index - 1;
+        if (next == mStart) {
+            if (mTimestamps[next] - timestamp > mMaxExtrapolation) {
+                return false;
+            }
+            copyPose(next, translation, rotation);
+            return true;
+        }
+        if (next == mEnd) {
+            if (timestamp - mTimestamps[next - 1] > mMaxExtrapolation) {
+                return false;
+            }
+            copyPose(next - 1, translation, rotation);
+            return true;
+        }
+        int previous = next - 1;
+        double gap = mTimestamps[next] - mTimestamps[previous];
+        if (gap > mMaxGap) {
+            return false;
+        }
+        float t = (float) ((timestamp - mTimestamps[previous]) / gap);
+        int p0 = previous * POSITION_SIZE;
+        int p1 = next * POSITION_SIZE;
+        for (int i = 0; i < POSITION_SIZE; i++) {
+            translation[i] = mPositions[p0 + i] + t
+                    * (mPositions[p1 + i] - mPositions[p0 + i]);
+        }
+        slerp(mOrientations, previous * ORIENTATION_SIZE, mOrientations, next
+                * ORIENTATION_SIZE, t, rotation);
+        return true;
+    }
+
+    private void copyPose(int index, float[] translation, float[] rotation) {
+        System.arraycopy(mPositions, index * POSITION_SIZE, translation, 0,
+                POSITION_SIZE);
+        System.arraycopy(mOrientations, index * ORIENTATION_SIZE, rotation, 0,
+                ORIENTATION_SIZE);
+    }
+
+    /**
+     * Spherical linear interpolation of two x, y, z, w unit quaternions,
+     * along the shortest arc.
+     *
+     * @param t
+     *            0 for q0, 1 for q1.
+     * @param dst
+     *            receives the interpolated quaternion.
+     */
+    static void slerp(float[] q0, int offset0, float[] q1, int offset1,
+            float t, float[] dst) {
+        double dot = 0;
+        for (int i = 0; i < ORIENTATION_SIZE; i++) {
+            dot += q0[offset0 + i] * q1[offset1 + i];
+        }
+        // q and -q are the same rotation, take the closest
+        double sign = 1;
+        if (dot < 0) {
+            dot = -dot;
+            sign = -1;
+        }
+        double w0, w1;
+        if (dot > SLERP_THRESHOLD) {
+            w0 = 1 - t;
+            w1 = t;
+        } else {
+            double angle = Math.acos(dot);
+            double sin = Math.sin(angle);
+            w0 = Math.sin((1 - t) * angle) / sin;
+            w1 = Math.sin(t * angle) / sin;
+        }
+        w1 *= sign;
+        double norm = 0;
+        for (int i = 0; i < ORIENTATION_SIZE; i++) {
+            double q = w0 * q0[offset0 + i] + w1 * q1[offset1 + i];
+            dst[i] = (float) q;
+            norm += q * q;
+        }
+        // Only needed after the linear interpolation, cheap anyway
+        float inverseNorm = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < ORIENTATION_SIZE; i++) {
+            dst[i] *= inverseNorm;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the poses of a {@link PoseTrack} to a legacy .vtk or a .vtp file
+ * while they are recorded, so that finishing the file at the end of a session
+ * only writes the last batch.
+ *
+ * Both formats store each column as a whole, so the positions go straight to
+ * the pose file while the orientations and the timestamps are appended to two
+ * spill files next to it. {@link #finish()} writes the polyline connectivity,
+ * copies the spill files at the end of the pose file with a channel transfer
+ * and patches the counts and offsets of the header, which are written with
+ * fixed-width padding up front.
+ */
+public class PoseStreamWriter {
+
+    /** Default number of poses accumulated before they are written. */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BYTES_PER_INT = 4;
+    private static final int BYTES_PER_DOUBLE = 8;
+    private static final int POSITION_SIZE = 3;
+    private static final int ORIENTATION_SIZE = 4;
+    // Width of the patched header fields
+    private static final int COUNT_WIDTH = 10;
+    private static final int ATTRIBUTE_WIDTH = 32;
+
+    private final File mFile;
+    private final File mOrientationFile;
+    private final File mTimestampFile;
+    private final PoseTrack mPoses;
+    private final boolean mIsVtp;
+    private final RandomAccessFile mOut;
+    private final RandomAccessFile mOrientationOut;
+    private final RandomAccessFile mTimestampOut;
+    private final ByteBuffer mPositionBuffer;
+    private final FloatBuffer mPositionFloats;
+    private final ByteBuffer mOrientationBuffer;
+    private final FloatBuffer mOrientationFloats;
+    private final ByteBuffer mTimestampBuffer;
+    private final DoubleBuffer mTimestampDoubles;
+    private int mBatchSize;
+    private int mWrittenCount;
+    private boolean mIsFinished;
+
+    // Offsets of the header fields patched by finish()
+    private int mPointCountField;
+    private int mLineCountField;
+    private int mConnectivityOffsetField;
+    private int mOffsetsOffsetField;
+    private int mOrientationOffsetField;
+    private int mTimestampOffsetField;
+    private long mPositionsStart;
+
+    /**
+     * Creates the pose file and its spill files, overwriting them.
+     *
+     * @param file
+     *            the pose file, .vtp if vtp is true, .vtk otherwise.
+     * @param poses
+     *            the track the poses are read from.
+     * @param vtp
+     *            write a VTK XML PolyData file instead of a legacy one.
+     */
+    public PoseStreamWriter(File file, PoseTrack poses, boolean vtp)
+            throws IOException {
+        mFile = file;
+        mOrientationFile = new File(file.getPath() + ".orientation.part");
+        mTimestampFile = new File(file.getPath() + ".timestamp.part");
+        mPoses = poses;
+        mIsVtp = vtp;
+        mBatchSize = DEFAULT_BATCH_SIZE;
+        mWrittenCount = 0;
+        mIsFinished = false;
+
+        ByteOrder order = vtp ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        mPositionBuffer = ByteBuffer.allocateDirect(
+                PoseTrack.CHUNK_SIZE * POSITION_SIZE * BYTES_PER_FLOAT).order(
+                order);
+        mPositionFloats = mPositionBuffer.asFloatBuffer();
+        mOrientationBuffer = ByteBuffer.allocateDirect(
+                PoseTrack.CHUNK_SIZE * ORIENTATION_SIZE * BYTES_PER_FLOAT)
+                .order(order);
+        mOrientationFloats = mOrientationBuffer.asFloatBuffer();
+        mTimestampBuffer = ByteBuffer.allocateDirect(
+                PoseTrack.CHUNK_SIZE * BYTES_PER_DOUBLE).order(order);
+        mTimestampDoubles = mTimestampBuffer.asDoubleBuffer();
+
+        mOut = new RandomAccessFile(file, "rw");
+        mOrientationOut = new RandomAccessFile(mOrientationFile, "rw");
+        mTimestampOut = new RandomAccessFile(mTimestampFile, "rw");
+        try {
+            mOut.setLength(0);
+            mOrientationOut.setLength(0);
+            mTimestampOut.setLength(0);
+            ByteBuffer header = vtp ? vtpHeader() : vtkHeader();
+            VtkPolyDataWriter.writeFully(mOut.getChannel(), header);
+            if (vtp) {
+                // Size of the positions array, patched by finish()
+                VtkPolyDataWriter.writeFully(mOut.getChannel(),
+                        ByteBuffer.allocate(BYTES_PER_INT));
+            }
+            mPositionsStart = mOut.getChannel().position();
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets how many new poses are needed before {@link #flush(boolean)}
+     * writes them.
+     */
+    public synchronized void setBatchSize(int batchSize) {
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Writes the poses appended to the track since the last call.
+     *
+     * @param all
+     *            write them even if there are fewer than the batch size.
+     * @return the number of poses written.
+     */
+    public synchronized int flush(boolean all) throws IOException {
+        if (mIsFinished) {
+            return 0;
+        }
+        int available = mPoses.size() - mWrittenCount;
+        if (available <= 0 || (!all && available < mBatchSize)) {
+            return 0;
+        }
+        int written = 0;
+        while (written < available) {
+            int count = Math.min(available - written, PoseTrack.CHUNK_SIZE);
+            int start = mWrittenCount + written;
+            mPositionFloats.clear();
+            mPoses.getPositions(start, count, mPositionFloats);
+            mOrientationFloats.clear();
+            mPoses.getOrientations(start, count, mOrientationFloats);
+            mTimestampDoubles.clear();
+            mPoses.getTimestamps(start, count, mTimestampDoubles);
+            write(mOut.getChannel(), mPositionBuffer, count * POSITION_SIZE
+                    * BYTES_PER_FLOAT);
+            write(mOrientationOut.getChannel(), mOrientationBuffer, count
+                    * ORIENTATION_SIZE * BYTES_PER_FLOAT);
+            write(mTimestampOut.getChannel(), mTimestampBuffer, count
+                    * BYTES_PER_DOUBLE);
+            written += count;
+        }
+        mWrittenCount += written;
+        return written;
+    }
+
+    /**
+     * Writes the remaining poses and completes the file. The spill files are
+     * deleted.
+     */
+    public synchronized void finish() throws IOException {
+        if (mIsFinished) {
+            return;
+        }
+        try {
+            flush(true);
+            mIsFinished = true;
+            if (mIsVtp) {
+                finishVtp();
+            } else {
+                finishVtk();
+            }
+            mOut.getChannel().force(true);
+        } finally {
+            mIsFinished = true;
+            closeFiles();
+            mOrientationFile.delete();
+            mTimestampFile.delete();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the number of poses already in the file. The track does not
+     *         need to keep them anymore.
+     */
+    public synchronized int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * Lets the track this stream was made with recycle the poses already in
+     * the file. Nothing is released once the stream is finished, the track
+     * may then be reused by another session.
+     */
+    public synchronized void releaseWritten() {
+        if (!mIsFinished) {
+            mPoses.releaseBefore(mWrittenCount);
+        }
+    }
+
+    private ByteBuffer vtkHeader() {
+        StringBuilder header = new StringBuilder("# vtk DataFile Version 3.0\n"
+                + "vtk output\n" + "BINARY\n" + "DATASET POLYDATA\n"
+                + "POINTS ");
+        mPointCountField = header.length();
+        header.append(pad("0", COUNT_WIDTH)).append(" float\n");
+        return VtkPolyDataWriter.ascii(header.toString());
+    }
+
+    private ByteBuffer vtpHeader() {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\"?>\n"
+                + "<VTKFile type=\"PolyData\" version=\"0.1\""
+                + " byte_order=\"LittleEndian\">\n<PolyData>\n<Piece ");
+        // The attributes are padded with spaces so they can be rewritten
+        mPointCountField = field(xml, "NumberOfPoints=\"0\"");
+        xml.append(" NumberOfVerts=\"0\" ");
+        mLineCountField = field(xml, "NumberOfLines=\"0\"");
+        xml.append(" NumberOfStrips=\"0\" NumberOfPolys=\"0\">\n"
+                + "<Points>\n<DataArray type=\"Float32\""
+                + " NumberOfComponents=\"3\" format=\"appended\""
+                + " offset=\"0\"/>\n</Points>\n<Lines>\n"
+                + "<DataArray type=\"Int32\" Name=\"connectivity\""
+                + " format=\"appended\" ");
+        mConnectivityOffsetField = field(xml, "offset=\"0\"");
+        xml.append("/>\n<DataArray type=\"Int32\" Name=\"offsets\""
+                + " format=\"appended\" ");
+        mOffsetsOffsetField = field(xml, "offset=\"0\"");
+        xml.append("/>\n</Lines>\n<PointData>\n"
+                + "<DataArray type=\"Float32\" Name=\"orientation\""
+                + " NumberOfComponents=\"4\" format=\"appended\" ");
+        mOrientationOffsetField = field(xml, "offset=\"0\"");
+        xml.append("/>\n<DataArray type=\"Float64\" Name=\"timestamp\""
+                + " format=\"appended\" ");
+        mTimestampOffsetField = field(xml, "offset=\"0\"");
+        xml.append("/>\n</PointData>\n</Piece>\n</PolyData>\n"
+                + "<AppendedData encoding=\"raw\">\n_");
+        return VtkPolyDataWriter.ascii(xml.toString());
+    }
+
+    private void finishVtk() throws IOException {
+        FileChannel channel = mOut.getChannel();
+        int poseCount = mWrittenCount;
+        VtkPolyDataWriter.writeFully(channel, VtkPolyDataWriter.ascii(
+                "\nLINES 1 " + (poseCount + 1) + "\n"));
+        writeIndices(channel, poseCount, true);
+        VtkPolyDataWriter.writeFully(channel, VtkPolyDataWriter.ascii(
+                "\nPOINT_DATA " + poseCount + "\n" + "FIELD FieldData 2\n"
+                        + "orientation 4 " + poseCount + " float\n"));
+        transfer(mOrientationOut.getChannel(), channel);
+        VtkPolyDataWriter.writeFully(channel, VtkPolyDataWriter.ascii(
+                "\ntimestamp 1 " + poseCount + " double\n"));
+        transfer(mTimestampOut.getChannel(), channel);
+
+        patch(mPointCountField, pad(Integer.toString(poseCount), COUNT_WIDTH));
+    }
+
+    private void finishVtp() throws IOException {
+        FileChannel channel = mOut.getChannel();
+        int poseCount = mWrittenCount;
+        int lineCount = poseCount > 0 ? 1 : 0;
+        long positionsSize = (long) poseCount * POSITION_SIZE
+                * BYTES_PER_FLOAT;
+
+        long connectivityOffset = BYTES_PER_INT + positionsSize;
+        writeArraySize(channel, poseCount * BYTES_PER_INT);
+        writeIndices(channel, poseCount, false);
+
+        long offsetsOffset = channel.position() - mPositionsStart
+                + BYTES_PER_INT;
+        writeArraySize(channel, lineCount * BYTES_PER_INT);
+        if (lineCount > 0) {
+            writeArraySize(channel, poseCount);
+        }
+
+        long orientationOffset = channel.position() - mPositionsStart
+                + BYTES_PER_INT;
+        writeArraySize(channel, poseCount * ORIENTATION_SIZE * BYTES_PER_FLOAT);
+        transfer(mOrientationOut.getChannel(), channel);
+
+        long timestampOffset = channel.position() - mPositionsStart
+                + BYTES_PER_INT;
+        writeArraySize(channel, poseCount * BYTES_PER_DOUBLE);
+        transfer(mTimestampOut.getChannel(), channel);
+        VtkPolyDataWriter.writeFully(channel, VtkPolyDataWriter.ascii(
+                "\n</AppendedData>\n</VTKFile>\n"));
+
+        ByteBuffer size = ByteBuffer.allocate(BYTES_PER_INT).order(
+                ByteOrder.LITTLE_ENDIAN);
+        size.putInt(0, (int) positionsSize);
+        channel.write(size, mPositionsStart - BYTES_PER_INT);
+        patch(mPointCountField, pad("NumberOfPoints=\"" + poseCount + "\"",
+                ATTRIBUTE_WIDTH));
+        patch(mLineCountField, pad("NumberOfLines=\"" + lineCount + "\"",
+                ATTRIBUTE_WIDTH));
+        patch(mConnectivityOffsetField, pad("offset=\"" + connectivityOffset
+                + "\"", ATTRIBUTE_WIDTH));
+        patch(mOffsetsOffsetField, pad("offset=\"" + offsetsOffset + "\"",
+                ATTRIBUTE_WIDTH));
+        patch(mOrientationOffsetField, pad("offset=\"" + orientationOffset
+                + "\"", ATTRIBUTE_WIDTH));
+        patch(mTimestampOffsetField, pad("offset=\"" + timestampOffset
+                + "\"", ATTRIBUTE_WIDTH));
+    }
+
+    /**
+     * Writes the polyline indices, preceded by the point count for the
+     * legacy format.
+     */
+    private void writeIndices(FileChannel channel, int poseCount,
+            boolean withCount) throws IOException {
+        // The position column is written already, its buffer is free
+        mPositionBuffer.clear();
+        IntBuffer indices = mPositionBuffer.asIntBuffer();
+        int next = withCount ? -1 : 0;
+        while (next < poseCount) {
+            indices.clear();
+            if (next < 0) {
+                indices.put(poseCount);
+                next = 0;
+            }
+            while (next < poseCount && indices.hasRemaining()) {
+                indices.put(next++);
+            }
+            write(channel, mPositionBuffer, indices.position() * BYTES_PER_INT);
+        }
+    }
+
+    private void writeArraySize(FileChannel channel, long size)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BYTES_PER_INT).order(
+                ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, (int) size);
+        VtkPolyDataWriter.writeFully(channel, header);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer,
+            int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        VtkPolyDataWriter.writeFully(channel, buffer);
+    }
+
+    private static void transfer(FileChannel source, FileChannel destination)
+            throws IOException {
+        long size = source.size();
+        long start = destination.position();
+        long done = 0;
+        source.position(0);
+        while (done < size) {
+            long count = destination.transferFrom(source, start + done, size
+                    - done);
+            if (count <= 0) {
+                throw new IOException("Spill file truncated");
+            }
+            done += count;
+        }
+        // transferFrom does not move the position of the destination
+        destination.position(start + size);
+    }
+
+    private void patch(int offset, String text) throws IOException {
+        ByteBuffer bytes = VtkPolyDataWriter.ascii(text);
+        long position = offset;
+        while (bytes.hasRemaining()) {
+            position += mOut.getChannel().write(bytes, position);
+        }
+    }
+
+    private static int field(StringBuilder xml, String text) {
+        int offset = xml.length();
+        xml.append(pad(text, ATTRIBUTE_WIDTH));
+        return offset;
+    }
+
+    private static String pad(String text, int width) {
+        StringBuilder padded = new StringBuilder(text);
+        while (padded.length() < width) {
+            padded.append(' ');
+        }
+        return padded.toString();
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            mOut.close();
+        } finally {
+            try {
+                mOrientationOut.close();
+            } finally {
+                mTimestampOut.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+/**
+ * Poses recorded during a session, stored as primitive columns: the
+ * positions (x, y, z), the orientation quaternions (x, y, z, w) and the
+ * timestamps, kept as doubles.
+ *
+ * The columns are split in chunks of {@link #CHUNK_SIZE} poses, so growing
+ * the track never copies the poses already recorded, and appending a pose
+ * allocates nothing except a new chunk every CHUNK_SIZE poses. Chunks are
+ * kept by {@link #clear()} and reused by the next session. Once the oldest
+ * poses have been saved, {@link #releaseBefore(int)} recycles their chunks so
+ * that a long session does not keep its whole history in memory.
+ *
+ * Appending and reading can happen on different threads.
+ */
+public class PoseTrack {
+
+    /** Number of poses per chunk. */
+    public static final int CHUNK_SIZE = 1024;
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int POSITION_SIZE = 3;
+    private static final int ORIENTATION_SIZE = 4;
+
+    private float[][] mPositionChunks;
+    private float[][] mOrientationChunks;
+    private double[][] mTimestampChunks;
+    // Released chunks, waiting to be reused
+    private final ArrayList<float[]> mFreePositionChunks;
+    private final ArrayList<float[]> mFreeOrientationChunks;
+    private final ArrayList<double[]> mFreeTimestampChunks;
+    private int mFirstChunk;
+    private int mSize;
+
+    public PoseTrack() {
+        mPositionChunks = new float[16][];
+        mOrientationChunks = new float[16][];
+        mTimestampChunks = new double[16][];
+        mFreePositionChunks = new ArrayList<float[]>();
+        mFreeOrientationChunks = new ArrayList<float[]>();
+        mFreeTimestampChunks = new ArrayList<double[]>();
+        mFirstChunk = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Appends a pose.
+     *
+     * @param translation
+     *            x, y, z, as in TangoPoseData.translation.
+     * @param rotation
+     *            x, y, z, w, as in TangoPoseData.rotation.
+     * @param timestamp
+     *            timestamp of the pose, in seconds.
+     */
+    public synchronized void append(double[] translation, double[] rotation,
+            double timestamp) {
+        int chunk = mSize >> CHUNK_SHIFT;
+        if (chunk == mPositionChunks.length) {
+            growChunkArrays();
+        }
+        if (mPositionChunks[chunk] == null) {
+            fillChunk(chunk);
+        }
+        int index = mSize & CHUNK_MASK;
+        float[] positions = mPositionChunks[chunk];
+        int p = index * POSITION_SIZE;
+        positions[p] = (float) translation[0];
+        positions[p + 1] = (float) translation[1];
+        positions[p + 2] = (float) translation[2];
+        float[] orientations = mOrientationChunks[chunk];
+        int o = index * ORIENTATION_SIZE;
+        orientations[o] = (float) rotation[0];
+        orientations[o + 1] = (float) rotation[1];
+        orientations[o + 2] = (float) rotation[2];
+        orientations[o + 3] = (float) rotation[3];
+        mTimestampChunks[chunk][index] = timestamp;
+        mSize++;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Forgets all the poses, keeping the chunks for reuse.
+     */
+    public synchronized void clear() {
+        mSize = 0;
+        mFirstChunk = 0;
+    }
+
+    /**
+     * Recycles the chunks holding only poses before the given one. Those
+     * poses cannot be read anymore, but the indices of the others are kept.
+     */
+    public synchronized void releaseBefore(int pose) {
+        int lastChunk = Math.min(pose, mSize) >> CHUNK_SHIFT;
+        for (; mFirstChunk < lastChunk; mFirstChunk++) {
+            mFreePositionChunks.add(mPositionChunks[mFirstChunk]);
+            mFreeOrientationChunks.add(mOrientationChunks[mFirstChunk]);
+            mFreeTimestampChunks.add(mTimestampChunks[mFirstChunk]);
+            mPositionChunks[mFirstChunk] = null;
+            mOrientationChunks[mFirstChunk] = null;
+            mTimestampChunks[mFirstChunk] = null;
+        }
+    }
+
+    /**
+     * @return the index of the oldest pose that can still be read.
+     */
+    public synchronized int getFirstRetained() {
+        return mFirstChunk << CHUNK_SHIFT;
+    }
+
+    public synchronized double getTimestamp(int pose) {
+        checkRange(pose, 1);
+        return mTimestampChunks[pose >> CHUNK_SHIFT][pose & CHUNK_MASK];
+    }
+
+    /**
+     * Copies the positions of poses [start, start + count) to dst, three
+     * floats per pose, in the byte order of dst.
+     */
+    public synchronized void getPositions(int start, int count,
+            FloatBuffer dst) {
+        checkRange(start, count);
+        copy(mPositionChunks, POSITION_SIZE, start, count, dst);
+    }
+
+    /**
+     * Copies the orientations of poses [start, start + count) to dst, four
+     * floats per pose.
+     */
+    public synchronized void getOrientations(int start, int count,
+            FloatBuffer dst) {
+        checkRange(start, count);
+        copy(mOrientationChunks, ORIENTATION_SIZE, start, count, dst);
+    }
+
+    /**
+     * Copies the timestamps of poses [start, start + count) to dst.
+     */
+    public synchronized void getTimestamps(int start, int count,
+            DoubleBuffer dst) {
+        checkRange(start, count);
+        while (count > 0) {
+            int index = start & CHUNK_MASK;
+            int length = Math.min(count, CHUNK_SIZE - index);
+            dst.put(mTimestampChunks[start >> CHUNK_SHIFT], index, length);
+            start += length;
+            count -= length;
+        }
+    }
+
+    private static void copy(float[][] chunks, int components, int start,
+            int count, FloatBuffer dst) {
+        while (count > 0) {
+            int index = start & CHUNK_MASK;
+            int length = Math.min(count, CHUNK_SIZE - index);
+            dst.put(chunks[start >> CHUNK_SHIFT], index * components, length
+                    * components);
+            start += length;
+            count -= length;
+        }
+    }
+
+    private void growChunkArrays() {
+        int count = mPositionChunks.length;
+        float[][] positionChunks = new float[2 * count][];
+        System.arraycopy(mPositionChunks, 0, positionChunks, 0, count);
+        mPositionChunks = positionChunks;
+        float[][] orientationChunks = new float[2 * count][];
+        System.arraycopy(mOrientationChunks, 0, orientationChunks, 0, count);
+        mOrientationChunks = orientationChunks;
+        double[][] timestampChunks = new double[2 * count][];
+        System.arraycopy(mTimestampChunks, 0, timestampChunks, 0, count);
+        mTimestampChunks = timestampChunks;
+    }
+
+    private void fillChunk(int chunk) {
+        int free = mFreePositionChunks.size();
+        if (free > 0) {
+            mPositionChunks[chunk] = mFreePositionChunks.remove(free - 1);
+            mOrientationChunks[chunk] = mFreeOrientationChunks.remove(free - 1);
+            mTimestampChunks[chunk] = mFreeTimestampChunks.remove(free - 1);
+        } else {
+            mPositionChunks[chunk] = new float[CHUNK_SIZE * POSITION_SIZE];
+            mOrientationChunks[chunk] = new float[CHUNK_SIZE
+                    * ORIENTATION_SIZE];
+            mTimestampChunks[chunk] = new double[CHUNK_SIZE];
+        }
+    }
+
+    private void checkRange(int start, int count) {
+        if (start < (mFirstChunk << CHUNK_SHIFT) || count < 0
+                || start + count > mSize) {
+            throw new IndexOutOfBoundsException("Poses [" + start + ", "
+                    + (start + count) + ") of " + mSize);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds a ParaView data collection (.pvd) file listing the frames of a
+ * session as a time series, so that the whole recording is loaded at once
+ * with each frame keyed by its Tango timestamp.
+ */
+public class PvdWriter {
+
+    private final StringBuilder mDataSets;
+    private int mDataSetCount;
+
+    public PvdWriter() {
+        mDataSets = new StringBuilder();
+        mDataSetCount = 0;
+    }
+
+    /**
+     * Adds a dataset to the collection.
+     *
+     * @param timestep
+     *            the time of the dataset, in seconds.
+     * @param file
+     *            path of the dataset, relative to the .pvd file.
+     */
+    public synchronized void addDataSet(double timestep, String file) {
+        mDataSets.append("    <DataSet timestep=\"").append(timestep)
+                .append("\" group=\"\" part=\"0\" file=\"").append(file)
+                .append("\"/>\n");
+        mDataSetCount++;
+    }
+
+    public synchronized int getDataSetCount() {
+        return mDataSetCount;
+    }
+
+    public synchronized void clear() {
+        mDataSets.setLength(0);
+        mDataSetCount = 0;
+    }
+
+    /**
+     * Writes the collection. The stream is flushed but not closed.
+     */
+    public synchronized void write(OutputStream out) throws IOException {
+        out.write(("<?xml version=\"1.0\"?>\n"
+                + "<VTKFile type=\"Collection\" version=\"0.1\""
+                + " byte_order=\"LittleEndian\">\n" + "  <Collection>\n"
+                + mDataSets + "  </Collection>\n" + "</VTKFile>\n")
+                .getBytes());
+        out.flush();
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+/**
+ * Stores the depth frames as 16-bit range images instead of xyz floats.
+ *
+ * Each pixel of the depth camera holds the depth of the point it saw, in
+ * units of 1 / depth scale meters, or 0 when it saw nothing. The points are
+ * placed on the image by an {@link OrganizedGrid}. The reader gets the points
+ * back from the intrinsics of the camera:
+ *
+ * <pre>
+ * z = depth / scale
+ * x = (u - cx) * z / fx
+ * y = (v - cy) * z / fy
+ * </pre>
+ *
+ * The image is written as a binary PGM (P5, maxval 65535, big-endian
+ * samples) which most image tools open. The timestamp, the intrinsics and
+ * the depth scale are stored as comments of its header:
+ *
+ * <pre>
+ * # timestamp 1234.567890
+ * # intrinsics fx fy cx cy
+ * # depth_scale 1000
+ * </pre>
+ *
+ * The depth is rounded to the depth unit, the millimeter by default, so
+ * unlike the other formats this one is lossy, and the points are put back
+ * at the center of their pixel.
+ *
+ * An instance keeps scratch buffers and must only be used from one thread at
+ * a time.
+ */
+public class RangeImageCodec {
+
+    /** Default depth unit, millimeters. */
+    public static final double DEFAULT_DEPTH_SCALE = 1000;
+
+    private static final int BYTES_PER_SAMPLE = 2;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int MAX_DEPTH = 65535;
+
+    private int mWidth;
+    private int mHeight;
+    private double mFx;
+    private double mFy;
+    private double mCx;
+    private double mCy;
+    private double mDepthScale;
+    private ByteBuffer mOutput;
+    private double mDecodedTimestamp;
+    private int mDecodedWidth;
+    private int mDecodedHeight;
+
+    private boolean mBenchmark;
+    private VtkPolyDataWriter mBaselineWriter;
+    private CountingChannel mBaselineChannel;
+    private RangeImageCodec mBenchmarkDecoder;
+    private ByteBuffer mBenchmarkBuffer;
+
+    // Statistics
+    private long mFrameCount;
+    private long mPointCount;
+    private long mEncodedPointCount;
+    private long mEncodedBytes;
+    private long mEncodeNanos;
+    private long mBaselineBytes;
+    private long mBaselineNanos;
+    private long mDecodeNanos;
+    private double mMaxError;
+
+    public RangeImageCodec() {
+        mDepthScale = DEFAULT_DEPTH_SCALE;
+        mOutput = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Sets the size and the intrinsics of the depth camera, as given by
+     * TangoCameraIntrinsics.
+     */
+    public void setIntrinsics(int width, int height, double fx, double fy,
+            double cx, double cy) {
+        mWidth = width;
+        mHeight = height;
+        mFx = fx;
+        mFy = fy;
+        mCx = cx;
+        mCy = cy;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @param depthScale
+     *            number of depth units per meter. The farthest depth that
+     *            can be stored is 65535 units.
+     */
+    public void setDepthScale(double depthScale) {
+        mDepthScale = depthScale;
+    }
+
+    /**
+     * Places the points on a grid by projecting them with the intrinsics,
+     * then encodes them.
+     *
+     * @see #encodeOrganized(ByteBuffer, int, double, OrganizedGrid)
+     */
+    public ByteBuffer encode(ByteBuffer xyz, int pointCount, double timestamp,
+            OrganizedGrid grid) {
+        long start = System.nanoTime();
+        grid.setFromProjection(xyz, pointCount, mWidth, mHeight, mFx, mFy,
+                mCx, mCy);
+        ByteBuffer encoded = encodeGrid(xyz, pointCount, timestamp, grid);
+        mEncodeNanos += System.nanoTime() - start;
+        if (mBenchmark) {
+            benchmark(xyz, pointCount, timestamp, grid, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes a frame whose points are already placed on the grid, for
+     * instance from the ij buffer of the frame.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, from its position, which is
+     *            left unchanged.
+     * @return the PGM image, valid until the next call.
+     */
+    public ByteBuffer encodeOrganized(ByteBuffer xyz, int pointCount,
+            double timestamp, OrganizedGrid grid) {
+        long start = System.nanoTime();
+        ByteBuffer encoded = encodeGrid(xyz, pointCount, timestamp, grid);
+        mEncodeNanos += System.nanoTime() - start;
+        if (mBenchmark) {
+            benchmark(xyz, pointCount, timestamp, grid, encoded);
+        }
+        return encoded;
+    }
+
+    private ByteBuffer encodeGrid(ByteBuffer xyz, int pointCount,
+            double timestamp, OrganizedGrid grid) {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        byte[] header = header(width, height, timestamp).getBytes();
+        int length = header.length + width * height * BYTES_PER_SAMPLE;
+        if (mOutput.capacity() < length) {
+            mOutput = ByteBuffer.allocate(length);
+        }
+        mOutput.clear();
+        mOutput.put(header);
+
+        FloatBuffer points = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        int[] indices = grid.getIndices();
+        int pixelCount = width * height;
+        int encodedCount = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            int point = indices[i];
+            int depth = 0;
+            if (point != OrganizedGrid.NO_POINT) {
+                long scaled = Math.round(points.get(point * POINT_TO_XYZ + 2)
+                        * mDepthScale);
+                if (scaled > 0) {
+                    depth = (int) Math.min(scaled, MAX_DEPTH);
+                    encodedCount++;
+                }
+            }
+            mOutput.putShort((short) depth);
+        }
+        mOutput.flip();
+
+        mFrameCount++;
+        mPointCount += pointCount;
+        mEncodedPointCount += encodedCount;
+        mEncodedBytes += length;
+        return mOutput;
+    }
+
+    private String header(int width, int height, double timestamp) {
+        return String.format(Locale.US, "P5\n# timestamp %f\n"
+                + "# intrinsics %.9g %.9g %.9g %.9g\n# depth_scale %.9g\n"
+                + "%d %d\n%d\n", timestamp, mFx, mFy, mCx, mCy, mDepthScale,
+                width, height, MAX_DEPTH);
+    }
+
+    /**
+     * Gets the points back from an image written by this codec. The
+     * intrinsics and the depth scale are read from the image, not taken
+     * from this instance.
+     *
+     * @param encoded
+     *            the PGM image, from its position.
+     * @param xyz
+     *            receives the little-endian xyz floats at its position, which
+     *            is moved past them. Must have room for 3 floats per pixel.
+     * @return the number of points.
+     */
+    public int decode(ByteBuffer encoded, ByteBuffer xyz) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer image = encoded.duplicate();
+        if (!"P5".equals(readToken(image))) {
+            throw new IOException("Not a PGM image");
+        }
+        double timestamp = 0;
+        double fx = 0, fy = 0, cx = 0, cy = 0;
+        double depthScale = 0;
+        int[] values = new int[3];
+        for (int v = 0; v < values.length;) {
+            String token = readToken(image);
+            if (token == null) {
+                throw new IOException("Truncated PGM header");
+            }
+            if (token.startsWith("#")) {
+                String[] fields = (token + readLine(image)).substring(1)
+                        .trim().split("\\s+");
+                try {
+                    if (fields[0].equals("timestamp")) {
+                        timestamp = Double.parseDouble(fields[1]);
+                    } else if (fields[0].equals("intrinsics")) {
+                        fx = Double.parseDouble(fields[1]);
+                        fy = Double.parseDouble(fields[2]);
+                        cx = Double.parseDouble(fields[3]);
+                        cy = Double.parseDouble(fields[4]);
+                    } else if (fields[0].equals("depth_scale")) {
+                        depthScale = Double.parseDouble(fields[1]);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Invalid PGM comment: "
+                            + e.getMessage());
+                }
+                continue;
+            }
+            try {
+                values[v++] = Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid PGM header: " + token);
+            }
+        }
+        // A single whitespace separates the header from the samples
+        image.get();
+        int width = values[0];
+        int height = values[1];
+        if (values[2] != MAX_DEPTH || fx == 0 || fy == 0 || depthScale == 0) {
+            throw new IOException("Not a range image");
+        }
+        if (image.remaining() < width * height * BYTES_PER_SAMPLE) {
+            throw new IOException("Truncated range image");
+        }
+
+        FloatBuffer points = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        image.order(ByteOrder.BIG_ENDIAN);
+        int pointCount = 0;
+        for (int v = 0; v < height; v++) {
+            for (int u = 0; u < width; u++) {
+                int depth = image.getShort() & 0xffff;
+                if (depth == 0) {
+                    continue;
+                }
+                double z = depth / depthScale;
+                points.put((float) ((u - cx) * z / fx));
+                points.put((float) ((v - cy) * z / fy));
+                points.put((float) z);
+                pointCount++;
+            }
+        }
+        xyz.position(xyz.position() + pointCount * POINT_TO_XYZ
+                * BYTES_PER_FLOAT);
+        mDecodedTimestamp = timestamp;
+        mDecodedWidth = width;
+        mDecodedHeight = height;
+        mDecodeNanos += System.nanoTime() - start;
+        return pointCount;
+    }
+
+    /**
+     * @return the timestamp of the last decoded frame.
+     */
+    public double getDecodedTimestamp() {
+        return mDecodedTimestamp;
+    }
+
+    public int getDecodedWidth() {
+        return mDecodedWidth;
+    }
+
+    public int getDecodedHeight() {
+        return mDecodedHeight;
+    }
+
+    /**
+     * Enables the comparison of each encoded frame with the legacy .vtk
+     * output of the same points, and the decoding of each image to measure
+     * the reconstruction error. This more than doubles the encoding time.
+     */
+    public void setBenchmark(boolean benchmark) {
+        mBenchmark = benchmark;
+    }
+
+    /**
+     * Writes the frame with a VtkPolyDataWriter to a channel that only
+     * counts the bytes, then decodes the image and compares every point that
+     * made it to the image with its reconstruction.
+     */
+    private void benchmark(ByteBuffer xyz, int pointCount, double timestamp,
+            OrganizedGrid grid, ByteBuffer encoded) {
+        if (mBaselineWriter == null) {
+            mBaselineWriter = new VtkPolyDataWriter(pointCount);
+            mBaselineChannel = new CountingChannel();
+            mBenchmarkDecoder = new RangeImageCodec();
+        }
+        long start = System.nanoTime();
+        mBaselineChannel.mCount = 0;
+        try {
+            mBaselineWriter.writePointCloud(mBaselineChannel, xyz, pointCount,
+                    timestamp);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mBaselineNanos += System.nanoTime() - start;
+        mBaselineBytes += mBaselineChannel.mCount;
+
+        int length = grid.getWidth() * grid.getHeight() * POINT_TO_XYZ
+                * BYTES_PER_FLOAT;
+        if (mBenchmarkBuffer == null || mBenchmarkBuffer.capacity() < length) {
+            mBenchmarkBuffer = ByteBuffer.allocate(length);
+        }
+        mBenchmarkBuffer.clear();
+        try {
+            mBenchmarkDecoder.decode(encoded.duplicate(), mBenchmarkBuffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        mDecodeNanos += mBenchmarkDecoder.mDecodeNanos;
+        mBenchmarkDecoder.mDecodeNanos = 0;
+
+        // Decoded points come in pixel order, as the grid
+        FloatBuffer original = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        FloatBuffer decoded = ByteBuffer.wrap(mBenchmarkBuffer.array())
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        int[] indices = grid.getIndices();
+        int pixelCount = grid.getWidth() * grid.getHeight();
+        int d = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            int point = indices[i];
+            if (point == OrganizedGrid.NO_POINT) {
+                continue;
+            }
+            int o = point * POINT_TO_XYZ;
+            if (Math.round(original.get(o + 2) * mDepthScale) <= 0) {
+                continue;
+            }
+            double dx = original.get(o) - decoded.get(d);
+            double dy = original.get(o + 1) - decoded.get(d + 1);
+            double dz = original.get(o + 2) - decoded.get(d + 2);
+            double error = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            if (error > mMaxError) {
+                mMaxError = error;
+            }
+            d += POINT_TO_XYZ;
+        }
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the encoded size over the size of the legacy .vtk files of the
+     *         same frames, when benchmarking.
+     */
+    public double getRatio() {
+        return mBaselineBytes == 0 ? 1 : (double) mEncodedBytes
+                / mBaselineBytes;
+    }
+
+    /**
+     * @return the share of the points kept in the images, the others fell in
+     *         the same pixel as a closer one or outside of the image.
+     */
+    public double getKeptPointRatio() {
+        return mPointCount == 0 ? 1 : (double) mEncodedPointCount
+                / mPointCount;
+    }
+
+    /**
+     * @return the encoding throughput in MB/s of xyz floats.
+     */
+    public double getThroughput() {
+        return throughput(mEncodeNanos);
+    }
+
+    /**
+     * @return the legacy .vtk writing throughput in MB/s of xyz floats,
+     *         when benchmarking.
+     */
+    public double getBaselineThroughput() {
+        return throughput(mBaselineNanos);
+    }
+
+    /**
+     * @return the decoding throughput in MB/s of xyz floats, when
+     *         benchmarking.
+     */
+    public double getDecodeThroughput() {
+        return throughput(mDecodeNanos);
+    }
+
+    /**
+     * @return the largest distance between a point and its reconstruction,
+     *         in meters, when benchmarking.
+     */
+    public double getMaxError() {
+        return mMaxError;
+    }
+
+    public String getStatistics() {
+        String statistics = String.format(Locale.US, "%d frames, %d bytes, "
+                + "%.1f%% of the points kept, %.1f MB/s", mFrameCount,
+                mEncodedBytes, 100 * getKeptPointRatio(), getThroughput());
+        if (mBenchmark) {
+            statistics += String.format(Locale.US, ", %.1f%% of %d .vtk bytes "
+                    + "written at %.1f MB/s, decoded at %.1f MB/s, "
+                    + "max error %.2f mm", 100 * getRatio(), mBaselineBytes,
+                    getBaselineThroughput(), getDecodeThroughput(),
+                    1000 * mMaxError);
+        }
+        return statistics;
+    }
+
+    public void resetStatistics() {
+        mFrameCount = 0;
+        mPointCount = 0;
+        mEncodedPointCount = 0;
+        mEncodedBytes = 0;
+        mEncodeNanos = 0;
+        mBaselineBytes = 0;
+        mBaselineNanos = 0;
+        mDecodeNanos = 0;
+        mMaxError = 0;
+    }
+
+    private double throughput(long nanos) {
+        return nanos == 0 ? 0 : mPointCount * POINT_TO_XYZ * BYTES_PER_FLOAT
+                * 1000.0 / nanos;
+    }
+
+    /**
+     * @return the next whitespace separated token, or null at the end.
+     */
+    private static String readToken(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && isSpace(buffer.get(buffer.position()))) {
+            buffer.get();
+        }
+        StringBuilder token = new StringBuilder();
+        while (buffer.hasRemaining() && !isSpace(buffer.get(buffer.position()))) {
+            token.append((char) buffer.get());
+        }
+        return token.length() == 0 ? null : token.toString();
+    }
+
+    private static String readLine(ByteBuffer buffer) {
+        StringBuilder line = new StringBuilder();
+        while (buffer.hasRemaining()) {
+            char c = (char) buffer.get();
+            if (c == '\n') {
+                break;
+            }
+            line.append(c);
+        }
+        return line.toString();
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Discards what is written, only counting the bytes.
+     */
+    private static class CountingChannel implements WritableByteChannel {
+        long mCount;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            mCount += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
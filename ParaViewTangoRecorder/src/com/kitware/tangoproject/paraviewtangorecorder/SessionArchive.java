@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Zip archive kept open for a whole recording session. Each captured frame is
+ * appended as a new entry as soon as it is written, so the data only goes
+ * through flash once and closing the archive at the end of the session only
+ * has to write the central directory.
+ *
+ * Entries are written one at a time: {@link #beginEntry(String, int)}, then
+ * write to {@link #getChannel()} or {@link #getOutputStream()}, then
+ * {@link #endEntry()}. The content of an entry is buffered in memory and
+ * handed to a {@link ZipWriter} which compresses it in the background. The
+ * streams handed out must not be closed by the caller.
+ */
+public class SessionArchive {
+
+    private final File mFile;
+    private final ZipWriter mZipWriter;
+    private final EntryBuffer mEntryBuffer;
+    private final ConcurrentLinkedQueue<byte[]> mFreeBuffers;
+    private String mEntryName;
+    private int mEntryCompression;
+    private int mEntryCount;
+
+    /**
+     * Creates the archive with one compression thread per core and the
+     * default chunk size.
+     */
+    public SessionArchive(File file) throws IOException {
+        this(file, 0, ZipWriter.DEFAULT_CHUNK_SIZE);
+    }
+
+    public SessionArchive(File file, int threadCount, int chunkSize)
+            throws IOException {
+        mFile = file;
+        mZipWriter = new ZipWriter(file.getAbsolutePath(), threadCount,
+                chunkSize);
+        mFreeBuffers = new ConcurrentLinkedQueue<byte[]>();
+        mZipWriter.setBufferRecycler(new ZipWriter.BufferRecycler() {
+            @Override
+            public void recycle(byte[] buffer) {
+                mFreeBuffers.offer(buffer);
+            }
+        });
+        mEntryBuffer = new EntryBuffer();
+        mEntryCount = 0;
+    }
+
+    /**
+     * Starts a new entry in the archive with the default compression,
+     * closing the previous one if needed.
+     *
+     * @param name
+     *            the name of the file inside the archive.
+     */
+    public void beginEntry(String name) throws IOException {
+        beginEntry(name, ZipWriter.COMPRESSION_DEFAULT);
+    }
+
+    /**
+     * Starts a new entry in the archive, closing the previous one if needed.
+     *
+     * @param name
+     *            the name of the file inside the archive.
+     * @param compression
+     *            one of the ZipWriter.COMPRESSION_* modes.
+     */
+    public synchronized void beginEntry(String name, int compression)
+            throws IOException {
+        if (mEntryName != null) {
+            endEntry();
+        }
+        mEntryName = name;
+        mEntryCompression = compression;
+        byte[] buffer = mFreeBuffers.poll();
+        mEntryBuffer.reset(buffer != null ? buffer : new byte[64 * 1024]);
+    }
+
+    /**
+     * Hands the current entry to the compression threads.
+     */
+    public synchronized void endEntry() throws IOException {
+        if (mEntryName != null) {
+            mZipWriter.addEntry(mEntryName, mEntryBuffer.mData,
+                    mEntryBuffer.mLength, mEntryCompression);
+            mEntryBuffer.reset(null);
+            mEntryName = null;
+            mEntryCount++;
+        }
+    }
+
+    public WritableByteChannel getChannel() {
+        return mEntryBuffer;
+    }
+
+    public OutputStream getOutputStream() {
+        return mEntryBuffer;
+    }
+
+    /**
+     * Finishes the last entries and writes the central directory.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            endEntry();
+        } finally {
+            mZipWriter.close();
+            mFreeBuffers.clear();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getEntryCount() {
+        return mEntryCount;
+    }
+
+    public ZipWriter getZipWriter() {
+        return mZipWriter;
+    }
+
+    /**
+     * Growable in-memory buffer holding the entry being written, usable both
+     * as a stream and as a channel.
+     */
+    private static class EntryBuffer extends OutputStream implements
+            WritableByteChannel {
+
+        byte[] mData;
+        int mLength;
+
+        void reset(byte[] data) {
+            mData = data;
+            mLength = 0;
+        }
+
+        private void ensureCapacity(int extra) throws IOException {
+            if (mData == null) {
+                throw new IOException("No entry open in the session archive");
+            }
+            if (mLength + extra > mData.length) {
+                byte[] grown = new byte[Math.max(mLength + extra,
+                        2 * mData.length)];
+                System.arraycopy(mData, 0, grown, 0, mLength);
+                mData = grown;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCapacity(1);
+            mData[mLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureCapacity(len);
+            System.arraycopy(b, off, mData, mLength, len);
+            mLength += len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            ensureCapacity(count);
+            src.get(mData, mLength, count);
+            mLength += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Settings of a recording session. They are read when a recording starts and
+ * stay the same until it stops.
+ *
+ * They come from the settings screen, see {@link SettingsActivity}, and from
+ * the extras the activity is started with, see
+ * {@link #load(SharedPreferences, Bundle)}. Both are keyed by the names of
+ * the fields.
+ */
+public class SessionOptions {
+
+    private static final String TAG = SessionOptions.class.getSimpleName();
+
+    /**
+     * Legacy binary .vtk files, one per frame. The poses are streamed to a
+     * pc_*_poses.vtk file next to the session archive, see
+     * {@link PoseStreamWriter}, and shared along with it.
+     */
+    public static final int FORMAT_LEGACY_VTK = 0;
+    /**
+     * VTK XML .vtp files with raw appended data, and a .pvd collection
+     * listing the frames as a time series. The poses are streamed to a
+     * pc_*_poses.vtp file next to the session archive.
+     */
+    public static final int FORMAT_VTP = 1;
+
+    /**
+     * All the frames appended to a single .tgc capture container, see
+     * {@link CaptureContainerWriter}. The poses are streamed to a
+     * pc_*_poses.vtk file next to the session archive.
+     */
+    public static final int FORMAT_CONTAINER = 2;
+
+    /**
+     * .xyzc files holding the points encoded by {@link FloatCodec}, stored
+     * as is in the archive. The poses are streamed to a pc_*_poses.vtk file
+     * next to the archive.
+     */
+    public static final int FORMAT_FLOAT_CODEC = 3;
+
+    /**
+     * .pgm 16-bit range images of the depth camera, see
+     * {@link RangeImageCodec}. Lossy, and needs the intrinsics of the depth
+     * camera. The poses are streamed to a pc_*_poses.vtk file next to the
+     * archive.
+     */
+    public static final int FORMAT_RANGE_IMAGE = 4;
+
+    /** One of the FORMAT_* values. */
+    public int format = FORMAT_LEGACY_VTK;
+
+    /** Compress the .vtp arrays with zlib, see {@link VtpWriter}. */
+    public boolean compressVtp = false;
+
+    /** Write the vertex cells along with the points of each frame. */
+    public boolean writeVertices = true;
+
+    /**
+     * Compression of the point cloud entries in the session archive, one of
+     * the ZipWriter.COMPRESSION_* modes. Raw floats barely deflate, so speed
+     * is favored.
+     */
+    public int pointCloudCompression = ZipWriter.COMPRESSION_FAST;
+
+    /**
+     * Number of frame records reserved on storage when a capture container
+     * is created, 0 to grow it as frames are appended.
+     */
+    public int containerPreallocatedFrames = 0;
+
+    /**
+     * Compare every frame encoded by the FloatCodec with plain deflate and
+     * check that it decodes back, logging the results when the recording
+     * stops. Slows the writing down.
+     */
+    public boolean benchmarkFloatCodec = false;
+
+    /**
+     * Compare every range image with the legacy .vtk file of the same points
+     * and decode it back to measure the error, logging the results when the
+     * recording stops. Slows the writing down.
+     */
+    public boolean benchmarkRangeImage = false;
+
+    /**
+     * Edge of the voxels the frames are downsampled with before being
+     * written, in meters, see {@link VoxelGridFilter}. 0 keeps all the
+     * points.
+     */
+    public float voxelLeafSize = 0;
+
+    /** One of the VoxelGridFilter.REDUCTION_* modes. */
+    public int voxelReduction = VoxelGridFilter.REDUCTION_CENTROID;
+
+    /**
+     * Merge the frames with a valid pose into one world-space cloud, saved
+     * in the archive when the recording stops, see
+     * {@link FusedMapAccumulator}.
+     */
+    public boolean fuseMap = false;
+
+    /** Edge of the voxels of the merged cloud, in meters. */
+    public float fusedMapLeafSize = 0.02f;
+
+    /**
+     * Largest number of voxels of the merged cloud. Bounds its memory use,
+     * up to 64 bytes per voxel.
+     */
+    public int fusedMapMaxVoxels = 1 << 18;
+
+    /** Number of points a voxel needs to be kept in the merged cloud. */
+    public int fusedMapMinCount = 2;
+
+    /**
+     * Remove the flying pixels of each frame, and of the merged cloud, see
+     * {@link StatisticalOutlierFilter}.
+     */
+    public boolean removeOutliers = false;
+
+    /** Number of neighbors the outlier removal looks at. */
+    public int outlierMeanK = 8;
+
+    /**
+     * Number of standard deviations above the mean a point's neighbor
+     * distance can be before it is removed as an outlier.
+     */
+    public double outlierStddevMultiplier = 1.0;
+
+    /**
+     * Write a normal for every point of the .vtk and .vtp frames, see
+     * {@link NormalEstimator}. Ignored by the other formats.
+     */
+    public boolean estimateNormals = false;
+
+    /**
+     * Write the .vtk and .vtp frames as triangle meshes, see
+     * {@link OrganizedMesher}. Needs the depth camera intrinsics, ignored by
+     * the other formats.
+     */
+    public boolean writeMesh = false;
+
+    /** Depth jump, relative to the depth, past which no triangle is made. */
+    public float meshMaxDepthJump = 0.05f;
+
+    /**
+     * Fuse the frames with a valid pose into a signed distance volume, whose
+     * surface is saved in the archive when the recording stops, see
+     * {@link TsdfVolume}. Needs the depth camera intrinsics.
+     */
+    public boolean fuseTsdf = false;
+
+    /** Edge of the voxels of the signed distance volume, in meters. */
+    public float tsdfVoxelSize = 0.01f;
+
+    /** Distance past which the signed distance is clamped, in meters. */
+    public float tsdfTruncation = 0.04f;
+
+    /**
+     * Largest number of blocks of 512 voxels of the signed distance volume,
+     * each taking {@link TsdfVolume#BYTES_PER_BLOCK}, about 3.1 KB. A frame
+     * alone touches about 2000 blocks at the default voxel size. 0 sizes the
+     * volume to a quarter of the largest heap of the app.
+     */
+    public int tsdfMaxBlocks = 0;
+
+    /**
+     * In auto mode, save the frames when the camera moved enough, see
+     * {@link KeyframeSelector}, rather than one callback out of three.
+     */
+    public boolean selectKeyframes = true;
+
+    /** Translation of the camera making a keyframe, in meters. */
+    public float keyframeMinTranslation = 0.1f;
+
+    /** Rotation of the camera making a keyframe, in degrees. */
+    public float keyframeMinRotation = 10;
+
+    /** Time after which a frame is a keyframe anyway, in seconds. */
+    public double keyframeMaxInterval = 2.0;
+
+    /**
+     * Write the points and normals of the .vtk and .vtp frames in the world
+     * frame, start of service, rather than in the depth camera frame. The
+     * frames without a valid pose are left in the depth camera frame.
+     */
+    public boolean worldSpacePoints = false;
+
+    /**
+     * Compare the transform of the frames with Matrix.multiplyMV, see
+     * {@link PointTransformer#setBenchmark(boolean)}.
+     */
+    public boolean benchmarkTransform = false;
+
+    public SessionOptions() {
+    }
+
+    public SessionOptions(SessionOptions other) {
+        format = other.format;
+        compressVtp = other.compressVtp;
+        writeVertices = other.writeVertices;
+        pointCloudCompression = other.pointCloudCompression;
+        containerPreallocatedFrames = other.containerPreallocatedFrames;
+        benchmarkFloatCodec = other.benchmarkFloatCodec;
+        benchmarkRangeImage = other.benchmarkRangeImage;
+        voxelLeafSize = other.voxelLeafSize;
+        voxelReduction = other.voxelReduction;
+        fuseMap = other.fuseMap;
+        fusedMapLeafSize = other.fusedMapLeafSize;
+        fusedMapMaxVoxels = other.fusedMapMaxVoxels;
+        fusedMapMinCount = other.fusedMapMinCount;
+        removeOutliers = other.removeOutliers;
+        outlierMeanK = other.outlierMeanK;
+        outlierStddevMultiplier = other.outlierStddevMultiplier;
+        estimateNormals = other.estimateNormals;
+        writeMesh = other.writeMesh;
+        meshMaxDepthJump = other.meshMaxDepthJump;
+        fuseTsdf = other.fuseTsdf;
+        tsdfVoxelSize = other.tsdfVoxelSize;
+        tsdfTruncation = other.tsdfTruncation;
+        tsdfMaxBlocks = other.tsdfMaxBlocks;
+        selectKeyframes = other.selectKeyframes;
+        keyframeMinTranslation = other.keyframeMinTranslation;
+        keyframeMinRotation = other.keyframeMinRotation;
+        keyframeMaxInterval = other.keyframeMaxInterval;
+        worldSpacePoints = other.worldSpacePoints;
+        benchmarkTransform = other.benchmarkTransform;
+    }
+
+    /**
+     * Sets the options found in the preferences, then the ones found in the
+     * extras, which win. The keys are the names of the fields; a value is
+     * read from its text, so that both the strings of the settings screen
+     * and typed extras work, e.g.
+     * "adb shell am start -n ... --ei format 1 --ez fuseTsdf true". The
+     * options not found keep their value, as do those that do not parse or
+     * are out of range.
+     *
+     * @param preferences
+     *            the settings saved by {@link SettingsActivity}, or null.
+     * @param extras
+     *            the extras of the intent that started the activity, or
+     *            null.
+     */
+    public void load(SharedPreferences preferences, Bundle extras) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        if (preferences != null) {
+            values.putAll(preferences.getAll());
+        }
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                values.put(key, extras.get(key));
+            }
+        }
+        int newFormat = getInt(values, "format", format);
+        if (newFormat >= FORMAT_LEGACY_VTK && newFormat <= FORMAT_RANGE_IMAGE) {
+            format = newFormat;
+        } else {
+            Log.w(TAG, "Unknown format " + newFormat);
+        }
+        compressVtp = getBoolean(values, "compressVtp", compressVtp);
+        writeVertices = getBoolean(values, "writeVertices", writeVertices);
+        pointCloudCompression = getInt(values, "pointCloudCompression",
+                pointCloudCompression, ZipWriter.COMPRESSION_STORED,
+                ZipWriter.COMPRESSION_BEST);
+        containerPreallocatedFrames = getInt(values,
+                "containerPreallocatedFrames", containerPreallocatedFrames, 0,
+                Integer.MAX_VALUE);
+        benchmarkFloatCodec = getBoolean(values, "benchmarkFloatCodec",
+                benchmarkFloatCodec);
+        benchmarkRangeImage = getBoolean(values, "benchmarkRangeImage",
+                benchmarkRangeImage);
+        voxelLeafSize = getFloat(values, "voxelLeafSize", voxelLeafSize, 0);
+        voxelReduction = getInt(values, "voxelReduction", voxelReduction,
+                VoxelGridFilter.REDUCTION_CENTROID,
+                VoxelGridFilter.REDUCTION_FIRST_POINT);
+        fuseMap = getBoolean(values, "fuseMap", fuseMap);
+        fusedMapLeafSize = getFloat(values, "fusedMapLeafSize",
+                fusedMapLeafSize, Float.MIN_VALUE);
+        fusedMapMaxVoxels = getInt(values, "fusedMapMaxVoxels",
+                fusedMapMaxVoxels, 1, Integer.MAX_VALUE);
+        fusedMapMinCount = getInt(values, "fusedMapMinCount", fusedMapMinCount,
+                1, Integer.MAX_VALUE);
+        removeOutliers = getBoolean(values, "removeOutliers", removeOutliers);
+        outlierMeanK = getInt(values, "outlierMeanK", outlierMeanK, 1,
+                Integer.MAX_VALUE);
+        outlierStddevMultiplier = getDouble(values, "outlierStddevMultiplier",
+                outlierStddevMultiplier, 0);
+        estimateNormals = getBoolean(values, "estimateNormals",
+                estimateNormals);
+        writeMesh = getBoolean(values, "writeMesh", writeMesh);
+        meshMaxDepthJump = getFloat(values, "meshMaxDepthJump",
+                meshMaxDepthJump, Float.MIN_VALUE);
+        fuseTsdf = getBoolean(values, "fuseTsdf", fuseTsdf);
+        tsdfVoxelSize = getFloat(values, "tsdfVoxelSize", tsdfVoxelSize,
+                Float.MIN_VALUE);
+        tsdfTruncation = getFloat(values, "tsdfTruncation", tsdfTruncation,
+                Float.MIN_VALUE);
+        tsdfMaxBlocks = getInt(values, "tsdfMaxBlocks", tsdfMaxBlocks, 0,
+                TsdfVolume.MAX_BLOCKS);
+        selectKeyframes = getBoolean(values, "selectKeyframes",
+                selectKeyframes);
+        keyframeMinTranslation = getFloat(values, "keyframeMinTranslation",
+                keyframeMinTranslation, 0);
+        keyframeMinRotation = getFloat(values, "keyframeMinRotation",
+                keyframeMinRotation, 0);
+        keyframeMaxInterval = getDouble(values, "keyframeMaxInterval",
+                keyframeMaxInterval, 0);
+        worldSpacePoints = getBoolean(values, "worldSpacePoints",
+                worldSpacePoints);
+        benchmarkTransform = getBoolean(values, "benchmarkTransform",
+                benchmarkTransform);
+    }
+
+    private static String getText(Map<String, Object> values, String key) {
+        Object value = values.get(key);
+        return value == null ? null : value.toString().trim();
+    }
+
+    private static boolean getBoolean(Map<String, Object> values, String key,
+            boolean defaultValue) {
+        String text = getText(values, key);
+        if (text == null) {
+            return defaultValue;
+        }
+        if (text.equalsIgnoreCase("true") || text.equals("1")) {
+            return true;
+        }
+        if (text.equalsIgnoreCase("false") || text.equals("0")) {
+            return false;
+        }
+        Log.w(TAG, "Invalid " + key + ": " + text);
+        return defaultValue;
+    }
+
+    private static int getInt(Map<String, Object> values, String key,
+            int defaultValue) {
+        String text = getText(values, key);
+        if (text == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid " + key + ": " + text);
+            return defaultValue;
+        }
+    }
+
+    private static int getInt(Map<String, Object> values, String key,
+            int defaultValue, int min, int max) {
+        int value = getInt(values, key, defaultValue);
+        if (value < min || value > max) {
+            Log.w(TAG, "Out of range " + key + ": " + value);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    private static float getFloat(Map<String, Object> values, String key,
+            float defaultValue, float min) {
+        float value = (float) getDouble(values, key, defaultValue);
+        // Also rejects NaN and infinity
+        if (!(value >= min && value <= Float.MAX_VALUE)) {
+            Log.w(TAG, "Out of range " + key + ": " + value);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    private static double getDouble(Map<String, Object> values, String key,
+            double defaultValue) {
+        String text = getText(values, key);
+        if (text == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid " + key + ": " + text);
+            return defaultValue;
+        }
+    }
+
+    private static double getDouble(Map<String, Object> values, String key,
+            double defaultValue, double min) {
+        double value = getDouble(values, key, defaultValue);
+        // Also rejects NaN and infinity
+        if (!(value >= min && value <= Double.MAX_VALUE)) {
+            Log.w(TAG, "Out of range " + key + ": " + value);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    /**
+     * @return the compression to use for the point cloud entries of the
+     *         archive. Compressed .vtp files and encoded frames are stored
+     *         as is.
+     */
+    public int getPointCloudEntryCompression() {
+        if ((format == FORMAT_VTP && compressVtp)
+                || format == FORMAT_FLOAT_CODEC) {
+            return ZipWriter.COMPRESSION_STORED;
+        }
+        return pointCloudCompression;
+    }
+
+    /**
+     * @return the extension of the frame files, with the leading dot.
+     */
+    public String getFrameExtension() {
+        switch (format) {
+        case FORMAT_VTP:
+            return ".vtp";
+        case FORMAT_FLOAT_CODEC:
+            return ".xyzc";
+        case FORMAT_RANGE_IMAGE:
+            return ".pgm";
+        default:
+            return ".vtk";
+        }
+    }
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Statistical outlier removal: the mean distance of every point to its k
+ * nearest neighbors is computed, and the points whose mean distance is more
+ * than a number of standard deviations above the mean of all of them are
+ * removed. This gets rid of most of the flying pixels found along depth
+ * edges and at long range.
+ *
+ * The neighbors are searched in a uniform grid of cells, the points being
+ * sorted by cell. The sorted points are split in ranges of cells, spatial
+ * partitions searched in parallel by a fixed pool of threads.
+ *
+ * Nothing here depends on Android, so recorded sessions can be filtered on
+ * a desktop too, see {@link #main(String[])}. An instance must only be used
+ * from one thread at a time; {@link #shutdown()} stops its threads.
+ */
+public class StatisticalOutlierFilter {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+    // Average number of cells per point of the search grid
+    private static final int CELLS_PER_POINT = 4;
+    private static final int MAX_CELLS = 1 << 22;
+    // Partitions per thread, to balance uneven ones
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private final ParallelFor mParallelFor;
+    private final ArrayList<Partition> mPartitions;
+    private int mMeanK;
+    private double mStddevMultiplier;
+
+    // Points of the frame being filtered, sorted by cell
+    private float[] mPoints;
+    private int[] mSortedPoints;
+    private int[] mPointCells;
+    private int[] mCellStarts;
+    private float[] mMeanDistances;
+    private int mPointCount;
+    private float mMinX, mMinY, mMinZ;
+    private float mInverseCellSize;
+    private float mCellSize;
+    private int mDimX, mDimY, mDimZ;
+
+    private ByteBuffer mOutput;
+    private int mOutputCount;
+
+    // Statistics
+    private long mFrameCount;
+    private long mInputPointCount;
+    private long mOutputPointCount;
+    private long mFilterNanos;
+
+    /**
+     * @param threadCount
+     *            number of threads searching the neighbors.
+     */
+    public StatisticalOutlierFilter(int threadCount) {
+        mParallelFor = new ParallelFor(threadCount, "OutlierFilter");
+        mPartitions = new ArrayList<Partition>();
+        for (int i = 0; i < mParallelFor.getThreadCount()
+                * PARTITIONS_PER_THREAD; i++) {
+            mPartitions.add(new Partition());
+        }
+        mMeanK = 8;
+        mStddevMultiplier = 1.0;
+        mPoints = new float[0];
+        mSortedPoints = new int[0];
+        mPointCells = new int[0];
+        mCellStarts = new int[1];
+        mMeanDistances = new float[0];
+        mOutput = ByteBuffer.allocateDirect(0);
+    }
+
+    public int getThreadCount() {
+        return mParallelFor.getThreadCount();
+    }
+
+    /**
+     * @param meanK
+     *            number of neighbors the mean distance is computed on.
+     */
+    public void setMeanK(int meanK) {
+        if (meanK < 1) {
+            throw new IllegalArgumentException("Invalid neighbor count "
+                    + meanK);
+        }
+        mMeanK = meanK;
+    }
+
+    public int getMeanK() {
+        return mMeanK;
+    }
+
+    /**
+     * @param stddevMultiplier
+     *            number of standard deviations above the mean a point's mean
+     *            distance can be before it is removed.
+     */
+    public void setStddevMultiplier(double stddevMultiplier) {
+        mStddevMultiplier = stddevMultiplier;
+    }
+
+    public double getStddevMultiplier() {
+        return mStddevMultiplier;
+    }
+
+    /**
+     * Removes the outliers of a point cloud, a single frame or merged ones.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, from its position, which is
+     *            left unchanged. Points with a NaN coordinate are removed.
+     * @return the little-endian xyz floats of the kept points, in their
+     *         original order, from position 0 to the limit, valid until the
+     *         next call. See {@link #getOutputCount()}.
+     */
+    public ByteBuffer filter(ByteBuffer xyz, int pointCount) {
+        long start = System.nanoTime();
+        FloatBuffer source = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        if (mOutput.capacity() < pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT) {
+            mOutput = ByteBuffer.allocateDirect(
+                    pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT).order(
+                    ByteOrder.LITTLE_ENDIAN);
+        }
+        loadPoints(source, pointCount);
+        FloatBuffer output = mOutput.duplicate()
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        int kept = 0;
+        if (mPointCount > mMeanK) {
+            buildGrid();
+            computeMeanDistances();
+            double threshold = threshold();
+            for (int p = 0; p < mPointCount; p++) {
+                if (mMeanDistances[p] <= threshold) {
+                    output.put(mPoints, p * POINT_TO_XYZ, POINT_TO_XYZ);
+                    kept++;
+                }
+            }
+        } else {
+            // Too few points to tell, keep them
+            output.put(mPoints, 0, mPointCount * POINT_TO_XYZ);
+            kept = mPointCount;
+        }
+        mOutputCount = kept;
+        mOutput.clear();
+        mOutput.limit(kept * POINT_TO_XYZ * BYTES_PER_FLOAT);
+
+        mFrameCount++;
+        mInputPointCount += pointCount;
+        mOutputPointCount += kept;
+        mFilterNanos += System.nanoTime() - start;
+        return mOutput;
+    }
+
+    /**
+     * @return the number of points returned by the last call to
+     *         {@link #filter(ByteBuffer, int)}.
+     */
+    public int getOutputCount() {
+        return mOutputCount;
+    }
+
+    /**
+     * @return the number of points filtered per second.
+     */
+    public double getThroughput() {
+        return mFilterNanos == 0 ? 0 : mInputPointCount * 1e9 / mFilterNanos;
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames, %d of %d points kept (%.1f%%), "
+                + "k %d, %.1f sigmas, %d threads, %.0f points/s",
+                mFrameCount, mOutputPointCount, mInputPointCount,
+                mInputPointCount == 0 ? 100.0 : 100.0 * mOutputPointCount
+                        / mInputPointCount, mMeanK, mStddevMultiplier,
+                getThreadCount(), getThroughput());
+    }
+
+    public void resetStatistics() {
+        mFrameCount = 0;
+        mInputPointCount = 0;
+        mOutputPointCount = 0;
+        mFilterNanos = 0;
+    }
+
+    /**
+     * Stops the threads. The filter must not be used afterwards.
+     */
+    public void shutdown() {
+        mParallelFor.shutdown();
+    }
+
+    /**
+     * Copies the valid points to the heap, where they are faster to reach.
+     */
+    private void loadPoints(FloatBuffer source, int pointCount) {
+        if (mPoints.length < pointCount * POINT_TO_XYZ) {
+            mPoints = new float[pointCount * POINT_TO_XYZ];
+            mSortedPoints = new int[pointCount];
+            mPointCells = new int[pointCount];
+            mMeanDistances = new float[pointCount];
+        }
+        int count = 0;
+        for (int p = 0; p < pointCount; p++) {
+            int o = p * POINT_TO_XYZ;
+            float x = source.get(o);
+            float y = source.get(o + 1);
+            float z = source.get(o + 2);
+            if (x != x || y != y || z != z) {
+                continue;
+            }
+            int d = count * POINT_TO_XYZ;
+            mPoints[d] = x;
+            mPoints[d + 1] = y;
+            mPoints[d + 2] = z;
+            count++;
+        }
+        mPointCount = count;
+    }
+
+    /**
+     * Sizes the grid on the bounds of the points and sorts them by cell.
+     */
+    private void buildGrid() {
+        float[] points = mPoints;
+        int count = mPointCount;
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int o = 0; o < count * POINT_TO_XYZ; o += POINT_TO_XYZ) {
+            minX = Math.min(minX, points[o]);
+            maxX = Math.max(maxX, points[o]);
+            minY = Math.min(minY, points[o + 1]);
+            maxY = Math.max(maxY, points[o + 1]);
+            minZ = Math.min(minZ, points[o + 2]);
+            maxZ = Math.max(maxZ, points[o + 2]);
+        }
+        double extentX = Math.max(maxX - minX, 1e-6);
+        double extentY = Math.max(maxY - minY, 1e-6);
+        double extentZ = Math.max(maxZ - minZ, 1e-6);
+        int cells = (int) Math.min(MAX_CELLS, (long) count * CELLS_PER_POINT);
+        double cellSize = Math.cbrt(extentX * extentY * extentZ / cells);
+        // Flat clouds would get tiny cells, keep them at least a fraction of
+        // the largest extent
+        cellSize = Math.max(cellSize,
+                Math.max(extentX, Math.max(extentY, extentZ))
+                        / Math.cbrt(MAX_CELLS) / 2);
+        mDimX = (int) (extentX / cellSize) + 1;
+        mDimY = (int) (extentY / cellSize) + 1;
+        mDimZ = (int) (extentZ / cellSize) + 1;
+        while ((long) mDimX * mDimY * mDimZ > MAX_CELLS) {
+            cellSize *= 1.25;
+            mDimX = (int) (extentX / cellSize) + 1;
+            mDimY = (int) (extentY / cellSize) + 1;
+            mDimZ = (int) (extentZ / cellSize) + 1;
+        }
+        mMinX = minX;
+        mMinY = minY;
+        mMinZ = minZ;
+        mCellSize = (float) cellSize;
+        mInverseCellSize = (float) (1 / cellSize);
+
+        // Counting sort of the points by cell
+        int cellCount = mDimX * mDimY * mDimZ;
+        if (mCellStarts.length < cellCount + 1) {
+            mCellStarts = new int[cellCount + 1];
+        }
+        int[] starts = mCellStarts;
+        for (int c = 0; c <= cellCount; c++) {
+            starts[c] = 0;
+        }
+        for (int p = 0; p < count; p++) {
+            int o = p * POINT_TO_XYZ;
+            int cell = cellIndex(cellX(points[o]), cellY(points[o + 1]),
+                    cellZ(points[o + 2]));
+            mPointCells[p] = cell;
+            starts[cell + 1]++;
+        }
+        // starts[c + 1] becomes the end of cell c
+        for (int c = 0; c < cellCount; c++) {
+            starts[c + 1] += starts[c];
+        }
+        // Fill each cell from its end, which leaves starts[c + 1] at its start
+        for (int p = count - 1; p >= 0; p--) {
+            int cell = mPointCells[p];
+            mSortedPoints[--starts[cell + 1]] = p;
+        }
+        // Each starts[c + 1] now holds the start of cell c, shift them back
+        for (int c = 0; c < cellCount; c++) {
+            starts[c] = starts[c + 1];
+        }
+        starts[cellCount] = count;
+    }
+
+    private void computeMeanDistances() {
+        int cellCount = mDimX * mDimY * mDimZ;
+        int partitionCount = mPartitions.size();
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                partitionCount);
+        // Ranges of sorted points of about the same size, cut at cell bounds
+        int cell = 0;
+        for (int i = 0; i < partitionCount; i++) {
+            int end = ParallelFor.start(mPointCount, i + 1, partitionCount);
+            int first = cell;
+            while (cell < cellCount && mCellStarts[cell] < end) {
+                cell++;
+            }
+            Partition partition = mPartitions.get(i);
+            partition.mStart = mCellStarts[first];
+            partition.mEnd = mCellStarts[cell];
+            if (partition.mEnd > partition.mStart) {
+                tasks.add(partition);
+            }
+        }
+        mParallelFor.run(tasks);
+    }
+
+    /**
+     * @return the largest mean distance kept: the mean of the mean
+     *         distances plus the multiplier times their standard deviation.
+     */
+    private double threshold() {
+        double sum = 0;
+        double sumSquares = 0;
+        for (int p = 0; p < mPointCount; p++) {
+            double distance = mMeanDistances[p];
+            sum += distance;
+            sumSquares += distance * distance;
+        }
+        double mean = sum / mPointCount;
+        double variance = Math.max(0, (sumSquares - sum * mean)
+                / (mPointCount - 1));
+        return mean + mStddevMultiplier * Math.sqrt(variance);
+    }
+
+    private int cellX(float x) {
+        return Math.min(mDimX - 1, (int) ((x - mMinX) * mInverseCellSize));
+    }
+
+    private int cellY(float y) {
+        return Math.min(mDimY - 1, (int) ((y - mMinY) * mInverseCellSize));
+    }
+
+    private int cellZ(float z) {
+        return Math.min(mDimZ - 1, (int) ((z - mMinZ) * mInverseCellSize));
+    }
+
+    private int cellIndex(int x, int y, int z) {
+        return (z * mDimY + y) * mDimX + x;
+    }
+
+    /**
+     * Range of the sorted points, with the scratch space to search their
+     * neighbors.
+     */
+    private class Partition implements Callable<Void> {
+        int mStart;
+        int mEnd;
+        // Max-heap of the squared distances of the nearest neighbors so far
+        private float[] mHeap = new float[0];
+        private int mHeapSize;
+
+        @Override
+        public Void call() {
+            int k = mMeanK;
+            if (mHeap.length < k) {
+                mHeap = new float[k];
+            }
+            for (int s = mStart; s < mEnd; s++) {
+                int p = mSortedPoints[s];
+                mMeanDistances[p] = meanDistance(p, k);
+            }
+            return null;
+        }
+
+        private float meanDistance(int p, int k) {
+            float[] points = mPoints;
+            int o = p * POINT_TO_XYZ;
+            float x = points[o];
+            float y = points[o + 1];
+            float z = points[o + 2];
+            int cx = cellX(x);
+            int cy = cellY(y);
+            int cz = cellZ(z);
+            int maxRing = Math.max(mDimX, Math.max(mDimY, mDimZ));
+            // Distance from the point to the closest face of its cell
+            float fx = (x - mMinX) - cx * mCellSize;
+            float fy = (y - mMinY) - cy * mCellSize;
+            float fz = (z - mMinZ) - cz * mCellSize;
+            float margin = Math.max(0, Math.min(Math.min(Math.min(fx,
+                    mCellSize - fx), Math.min(fy, mCellSize - fy)), Math.min(
+                    fz, mCellSize - fz)));
+            mHeapSize = 0;
+            for (int ring = 0; ring < maxRing; ring++) {
+                int x0 = Math.max(0, cx - ring), x1 = Math.min(mDimX - 1,
+                        cx + ring);
+                int y0 = Math.max(0, cy - ring), y1 = Math.min(mDimY - 1,
+                        cy + ring);
+                int z0 = Math.max(0, cz - ring), z1 = Math.min(mDimZ - 1,
+                        cz + ring);
+                for (int gz = z0; gz <= z1; gz++) {
+                    boolean zOnRing = gz == cz - ring || gz == cz + ring;
+                    for (int gy = y0; gy <= y1; gy++) {
+                        boolean yOnRing = zOnRing || gy == cy - ring
+                                || gy == cy + ring;
+                        for (int gx = x0; gx <= x1; gx++) {
+                            if (!yOnRing && gx != cx - ring && gx != cx + ring) {
+                                // Inside the ring, already searched
+                                gx = cx + ring - 1;
+                                continue;
+                            }
+                            int cell = cellIndex(gx, gy, gz);
+                            for (int s = mCellStarts[cell], end = mCellStarts[cell + 1]; s < end; s++) {
+                                int q = mSortedPoints[s];
+                                if (q == p) {
+                                    continue;
+                                }
+                                int r = q * POINT_TO_XYZ;
+                                float dx = points[r] - x;
+                                float dy = points[r + 1] - y;
+                                float dz = points[r + 2] - z;
+                                offer(dx * dx + dy * dy + dz * dz, k);
+                            }
+                        }
+                    }
+                }
+                // Points beyond this ring are farther than its inner faces
+                if (mHeapSize == k) {
+                    float reach = ring * mCellSize + margin;
+                    if (mHeap[0] <= reach * reach) {
+                        break;
+                    }
+                }
+            }
+            double sum = 0;
+            for (int i = 0; i < mHeapSize; i++) {
+                sum += Math.sqrt(mHeap[i]);
+            }
+            return mHeapSize == 0 ? Float.MAX_VALUE : (float) (sum / mHeapSize);
+        }
+
+        private void offer(float distance, int k) {
+            float[] heap = mHeap;
+            if (mHeapSize < k) {
+                // Sift up
+                int i = mHeapSize++;
+                while (i > 0) {
+                    int parent = (i - 1) >> 1;
+                    if (heap[parent] >= distance) {
+                        break;
+                    }
+                    heap[i] = heap[parent];
+                    i = parent;
+                }
+                heap[i] = distance;
+            } else if (distance < heap[0]) {
+                // Replace the farthest, sift down
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= k) {
+                        break;
+                    }
+                    if (child + 1 < k && heap[child + 1] > heap[child]) {
+                        child++;
+                    }
+                    if (heap[child] <= distance) {
+                        break;
+                    }
+                    heap[i] = heap[child];
+                    i = child;
+                }
+                heap[i] = distance;
+            }
+        }
+    }
+
+    /**
+     * Filters the same cloud with 1, 2, 4 and 8 threads.
+     *
+     * @return one line per thread count with the throughput in points/s.
+     */
+    public static String benchmark(ByteBuffer xyz, int pointCount, int meanK,
+            double stddevMultiplier, int repetitions) {
+        StringBuilder report = new StringBuilder();
+        int[] threadCounts = new int[] { 1, 2, 4, 8 };
+        for (int threads : threadCounts) {
+            StatisticalOutlierFilter filter = new StatisticalOutlierFilter(
+                    threads);
+            filter.setMeanK(meanK);
+            filter.setStddevMultiplier(stddevMultiplier);
+            // Warm up, then measure
+            filter.filter(xyz, pointCount);
+            filter.resetStatistics();
+            for (int i = 0; i < repetitions; i++) {
+                filter.filter(xyz, pointCount);
+            }
+            report.append(filter.getStatistics()).append('\n');
+            filter.shutdown();
+        }
+        return report.toString();
+    }
+
+    /**
+     * Filters the frames of a capture container offline, then benchmarks
+     * the largest of them.
+     *
+     * Usage: StatisticalOutlierFilter file.tgc [k] [sigmas] [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: StatisticalOutlierFilter file.tgc "
+                    + "[k] [sigmas] [threads]");
+            return;
+        }
+        int meanK = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        double sigmas = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime
+                .getRuntime().availableProcessors();
+        CaptureContainerReader reader = new CaptureContainerReader(new File(
+                args[0]));
+        StatisticalOutlierFilter filter = new StatisticalOutlierFilter(threads);
+        filter.setMeanK(meanK);
+        filter.setStddevMultiplier(sigmas);
+        try {
+            int largest = -1;
+            for (int frame = 0; frame < reader.getFrameCount(); frame++) {
+                filter.filter(reader.getPoints(frame),
+                        reader.getPointCount(frame));
+                if (largest < 0
+                        || reader.getPointCount(frame) > reader
+                                .getPointCount(largest)) {
+                    largest = frame;
+                }
+            }
+            System.out.println(filter.getStatistics());
+            if (largest >= 0) {
+                System.out.print(benchmark(reader.getPoints(largest),
+                        reader.getPointCount(largest), meanK, sigmas, 10));
+            }
+        } finally {
+            filter.shutdown();
+            reader.close();
+        }
+    }
+}
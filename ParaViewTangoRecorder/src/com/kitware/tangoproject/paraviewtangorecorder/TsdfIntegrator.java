@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.kitware.tangoutils.TripleBuffer;
+
+/**
+ * Integrates the frames of a session into a {@link TsdfVolume} on a thread
+ * of its own, so that the writer thread of the {@link CapturePipeline} does
+ * not wait for the fusion.
+ *
+ * A frame can take longer to integrate than the service takes to deliver
+ * the next one. {@link #offer(ByteBuffer, int, double, float[])} copies the
+ * frame into a {@link TripleBuffer} and returns; the integration thread
+ * always takes the newest frame, and a frame it had no time for is replaced
+ * by the next one and counted as skipped. The volume is only read once
+ * {@link #flush()} returned.
+ */
+public class TsdfIntegrator {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+    // The thread also polls, so a wake-up lost to a race only delays it
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(20);
+
+    /**
+     * A copy of a frame, owned by one side of the triple buffer at a time.
+     */
+    private static class Frame {
+        ByteBuffer mPoints = ByteBuffer.allocateDirect(0);
+        int mPointCount;
+        double mTimestamp;
+        final float[] mModelMatrix = new float[16];
+    }
+
+    private final TsdfVolume mVolume;
+    private final TripleBuffer<Frame> mFrames;
+    private final Object mFlushLock;
+    private volatile Thread mThread;
+    private volatile boolean mIsRunning;
+    // Passes of the integration thread that found no new frame
+    private volatile long mIdlePassCount;
+    // Only updated by the producer
+    private volatile long mOfferedCount;
+
+    public TsdfIntegrator(TsdfVolume volume) {
+        mVolume = volume;
+        mFrames = new TripleBuffer<Frame>(new Frame(), new Frame(),
+                new Frame());
+        mFlushLock = new Object();
+    }
+
+    public TsdfVolume getVolume() {
+        return mVolume;
+    }
+
+    /**
+     * Starts the integration thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mIsRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                integrateLoop();
+            }
+        }, "TsdfIntegrator");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Hands a frame to the integration thread, replacing the previous one if
+     * it was not taken yet. Only one thread may offer frames.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, in the depth camera frame,
+     *            from its position, which is left unchanged. Copied.
+     * @param modelMatrix
+     *            column-major 4x4 matrix from the depth camera to the world.
+     *            Copied.
+     */
+    public void offer(ByteBuffer xyz, int pointCount, double timestamp,
+            float[] modelMatrix) {
+        Frame frame = mFrames.getBack();
+        int size = pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT;
+        if (frame.mPoints.capacity() < size) {
+            frame.mPoints = ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer source = xyz.duplicate();
+        source.limit(source.position() + size);
+        frame.mPoints.clear();
+        frame.mPoints.put(source);
+        frame.mPoints.flip();
+        frame.mPointCount = pointCount;
+        frame.mTimestamp = timestamp;
+        System.arraycopy(modelMatrix, 0, frame.mModelMatrix, 0, 16);
+        mFrames.publish();
+        mOfferedCount++;
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Waits until the last frame offered, if it was taken, is integrated.
+     * The frames must no longer be offered.
+     */
+    public void flush() throws InterruptedException {
+        // The first idle pass may have looked before the last frame was
+        // published, the second one started after this call
+        long target = mIdlePassCount + 2;
+        synchronized (mFlushLock) {
+            while (mIdlePassCount < target) {
+                Thread thread = mThread;
+                if (thread == null) {
+                    // Nobody to integrate it, do it here
+                    integrateNewest();
+                    break;
+                }
+                LockSupport.unpark(thread);
+                mFlushLock.wait(IDLE_PARK_NANOS / 1000000);
+            }
+        }
+    }
+
+    /**
+     * Forgets the volume and the statistics, while no frame is offered and
+     * after {@link #flush()}.
+     */
+    public void clear() {
+        mVolume.clear();
+        mOfferedCount = 0;
+    }
+
+    /**
+     * @return the number of frames offered since the last {@link #clear()}.
+     */
+    public long getOfferedFrameCount() {
+        return mOfferedCount;
+    }
+
+    /**
+     * @return the number of frames replaced by a newer one before the
+     *         integration thread took them.
+     */
+    public long getSkippedFrameCount() {
+        return Math.max(0, mOfferedCount - mVolume.getFrameCount());
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames offered, %d skipped, %s",
+                getOfferedFrameCount(), getSkippedFrameCount(),
+                mVolume.getStatistics());
+    }
+
+    /**
+     * Stops the integration thread and the threads of the volume, which
+     * cannot integrate frames afterwards.
+     */
+    public synchronized void shutdown() {
+        Thread thread = mThread;
+        if (thread != null) {
+            mIsRunning = false;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+        mVolume.shutdown();
+    }
+
+    private void integrateLoop() {
+        while (mIsRunning) {
+            if (integrateNewest()) {
+                continue;
+            }
+            mIdlePassCount++;
+            synchronized (mFlushLock) {
+                mFlushLock.notifyAll();
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * @return false if no frame was published since the last one.
+     */
+    private boolean integrateNewest() {
+        if (!mFrames.update()) {
+            return false;
+        }
+        Frame frame = mFrames.getFront();
+        try {
+            mVolume.integrate(frame.mPoints, frame.mPointCount,
+                    frame.mTimestamp, frame.mModelMatrix);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,907 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Fuses the depth frames of a session into a truncated signed distance
+ * function (TSDF), from which a closed surface is extracted.
+ *
+ * The volume is sparse: only the blocks of 8x8x8 voxels near the observed
+ * surfaces are allocated, found through an open-addressed hash table of
+ * primitive arrays keyed on the packed block coordinates. The blocks live in
+ * arrays sized once for a maximum number of blocks; new blocks are dropped
+ * and counted once they are all used.
+ *
+ * A frame is integrated in two passes. The blocks within the truncation
+ * distance of its points are allocated first, serially. Then every voxel of
+ * these blocks is projected in the depth image of the frame, rebuilt from
+ * its points with the camera intrinsics, and its signed distance to the
+ * observed depth updates a weighted running average. The blocks are updated
+ * in parallel by a fixed pool of threads, each owning whole blocks.
+ *
+ * Every voxel of the blocks near the points is updated, whether it is seen
+ * or not: a frame of the service, at 1 cm voxels and 4 cm truncation,
+ * touches about 2000 blocks, a million voxels, which takes about as long as
+ * the period of the depth frames on a tablet. See {@link TsdfIntegrator} to
+ * integrate the frames of a recording on a thread of their own.
+ *
+ * The surface is extracted by marching tetrahedra: each cube of eight voxels
+ * is split in six tetrahedra along one of its diagonals, and the zero
+ * crossings are shared between neighboring cubes.
+ *
+ * Nothing here depends on Android, so recorded sessions can be fused on a
+ * desktop too, see {@link #main(String[])}. An instance must only be used
+ * from one thread at a time; {@link #shutdown()} stops its threads.
+ */
+public class TsdfVolume {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BYTES_PER_INT = 4;
+    private static final int BYTES_PER_SHORT = 2;
+    private static final int BYTES_PER_LONG = 8;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BLOCK_BITS = 3;
+    private static final int BLOCK_EDGE = 1 << BLOCK_BITS;
+    private static final int BLOCK_MASK = BLOCK_EDGE - 1;
+    private static final int BLOCK_VOXELS = BLOCK_EDGE * BLOCK_EDGE
+            * BLOCK_EDGE;
+    // Bounds the voxel arrays to Integer.MAX_VALUE elements
+    static final int MAX_BLOCKS = 1 << 21;
+
+    /**
+     * Memory taken by a block, in bytes: the distances and weights of its
+     * voxels, 3 KB, its coordinates, stamp and visible list entry, and up to
+     * 4 slots of the hash table.
+     */
+    public static final int BYTES_PER_BLOCK = BLOCK_VOXELS
+            * (BYTES_PER_FLOAT + BYTES_PER_SHORT) + 5 * BYTES_PER_INT + 4
+            * (BYTES_PER_LONG + BYTES_PER_INT);
+    // Voxel coordinates of the edge keys, the 3 low bits are the direction
+    private static final int EDGE_COORDINATE_BITS = 20;
+    private static final long EDGE_COORDINATE_MASK =
+            (1L << EDGE_COORDINATE_BITS) - 1;
+    // Partitions per thread, to balance uneven ones
+    private static final int PARTITIONS_PER_THREAD = 4;
+    // Corner i of a cube is at (i & 1, i >> 1 & 1, i >> 2 & 1). The cube is
+    // split along its 0-7 diagonal, so the split matches across neighbors.
+    private static final int[][] TETRAHEDRA = { { 0, 1, 3, 7 },
+            { 0, 1, 5, 7 }, { 0, 2, 3, 7 }, { 0, 2, 6, 7 }, { 0, 4, 5, 7 },
+            { 0, 4, 6, 7 } };
+
+    private final float mVoxelSize;
+    private final float mTruncation;
+    private final int mMaxBlocks;
+    private final ParallelFor mParallelFor;
+    private final ArrayList<Partition> mPartitions;
+    private int mMaxWeight;
+
+    // Hash table: block key, block
+    private final long[] mKeys;
+    private final int[] mSlotBlocks;
+    private final int mMask;
+    // Per block: coordinates, frame that last saw it, voxels
+    private final int[] mBlockCoordinates;
+    private final int[] mBlockStamps;
+    private final float[] mDistances;
+    private final short[] mWeights;
+    private int mBlockCount;
+    private int mStamp;
+    private final int[] mVisibleBlocks;
+    private int mVisibleCount;
+
+    // Depth image of the frame being integrated
+    private boolean mHasIntrinsics;
+    private int mWidth;
+    private int mHeight;
+    private double mFx, mFy, mCx, mCy;
+    private final OrganizedGrid mGrid;
+    private float[] mDepth;
+    // Rows of the matrix from the world to the depth camera
+    private final float[] mWorldToCamera;
+    private double mLastTimestamp;
+
+    // Extracted mesh
+    private float[] mVertices;
+    private int mVertexCount;
+    private int[] mTriangles;
+    private int mTriangleCount;
+    private long[] mEdgeKeys;
+    private int[] mEdgeVertices;
+    private int mEdgeMask;
+
+    // Statistics
+    private long mFrameCount;
+    private long mPointCount;
+    private long mVoxelUpdateCount;
+    private long mDroppedBlockCount;
+    private long mIntegrateNanos;
+    private long mLastIntegrateNanos;
+    private long mExtractNanos;
+
+    /**
+     * @param voxelSize
+     *            the edge of the voxels, in meters.
+     * @param truncation
+     *            the distance to the surface past which the signed distance
+     *            is clamped, in meters. A few voxels.
+     * @param maxBlocks
+     *            the largest number of blocks of 512 voxels of the volume,
+     *            see {@link #getMaxBlocks(long)}.
+     * @param threadCount
+     *            number of threads updating the blocks.
+     */
+    public TsdfVolume(float voxelSize, float truncation, int maxBlocks,
+            int threadCount) {
+        if (!(voxelSize > 0) || !(truncation > 0) || maxBlocks <= 0
+                || maxBlocks > MAX_BLOCKS) {
+            throw new IllegalArgumentException("Cannot hold " + maxBlocks
+                    + " blocks of " + voxelSize + " m voxels truncated at "
+                    + truncation + " m");
+        }
+        mVoxelSize = voxelSize;
+        mTruncation = truncation;
+        mMaxBlocks = maxBlocks;
+        mParallelFor = new ParallelFor(threadCount, "TsdfVolume");
+        mPartitions = new ArrayList<Partition>();
+        for (int i = 0; i < mParallelFor.getThreadCount()
+                * PARTITIONS_PER_THREAD; i++) {
+            mPartitions.add(new Partition());
+        }
+        mMaxWeight = 64;
+
+        int capacity = Integer.highestOneBit(maxBlocks * 2) * 2;
+        mKeys = new long[capacity];
+        mSlotBlocks = new int[capacity];
+        mMask = capacity - 1;
+        mBlockCoordinates = new int[maxBlocks * POINT_TO_XYZ];
+        mBlockStamps = new int[maxBlocks];
+        mDistances = new float[maxBlocks * BLOCK_VOXELS];
+        mWeights = new short[maxBlocks * BLOCK_VOXELS];
+        mVisibleBlocks = new int[maxBlocks];
+        mGrid = new OrganizedGrid();
+        mDepth = new float[0];
+        mWorldToCamera = new float[12];
+        mVertices = new float[0];
+        mTriangles = new int[0];
+        clear();
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    public float getTruncation() {
+        return mTruncation;
+    }
+
+    public int getMaxBlocks() {
+        return mMaxBlocks;
+    }
+
+    /**
+     * @param bytes
+     *            the memory the volume can take.
+     * @return the largest number of blocks fitting in it, at least 1.
+     * @see #BYTES_PER_BLOCK
+     */
+    public static int getMaxBlocks(long bytes) {
+        return (int) Math.max(1,
+                Math.min(bytes / BYTES_PER_BLOCK, MAX_BLOCKS));
+    }
+
+    /**
+     * @param maxWeight
+     *            the weight past which the voxels stop accumulating the
+     *            frames, so that they can still follow changes.
+     */
+    public void setMaxWeight(int maxWeight) {
+        mMaxWeight = Math.max(1, Math.min(maxWeight, Short.MAX_VALUE));
+    }
+
+    public int getMaxWeight() {
+        return mMaxWeight;
+    }
+
+    /**
+     * Sets the depth camera model used to rebuild the depth image of the
+     * frames, which is needed before integrating them.
+     */
+    public void setIntrinsics(int width, int height, double fx, double fy,
+            double cx, double cy) {
+        mWidth = width;
+        mHeight = height;
+        mFx = fx;
+        mFy = fy;
+        mCx = cx;
+        mCy = cy;
+        if (mDepth.length < width * height) {
+            mDepth = new float[width * height];
+        }
+        mHasIntrinsics = true;
+    }
+
+    /**
+     * Forgets all the blocks and the statistics.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, VoxelKeys.EMPTY_KEY);
+        mBlockCount = 0;
+        mStamp = 0;
+        mVisibleCount = 0;
+        mLastTimestamp = 0;
+        mVertexCount = 0;
+        mTriangleCount = 0;
+        resetStatistics();
+    }
+
+    /**
+     * Integrates a frame.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, in the depth camera frame,
+     *            from its position, which is left unchanged.
+     * @param modelMatrix
+     *            column-major 4x4 matrix from the depth camera to the world.
+     */
+    public void integrate(ByteBuffer xyz, int pointCount, double timestamp,
+            float[] modelMatrix) {
+        if (!mHasIntrinsics) {
+            throw new IllegalStateException("No depth camera intrinsics");
+        }
+        long start = System.nanoTime();
+        mGrid.setFromProjection(xyz, pointCount, mWidth, mHeight, mFx, mFy,
+                mCx, mCy);
+        FloatBuffer points = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        int[] indices = mGrid.getIndices();
+        for (int i = 0; i < mWidth * mHeight; i++) {
+            int point = indices[i];
+            mDepth[i] = point < 0 ? 0 : points.get(point * POINT_TO_XYZ + 2);
+        }
+        invertRigid(modelMatrix);
+        allocateBlocks(points, indices, modelMatrix);
+        updateBlocks();
+
+        mLastTimestamp = timestamp;
+        mFrameCount++;
+        mPointCount += mGrid.getValidCount();
+        mVoxelUpdateCount += (long) mVisibleCount * BLOCK_VOXELS;
+        mLastIntegrateNanos = System.nanoTime() - start;
+        mIntegrateNanos += mLastIntegrateNanos;
+    }
+
+    /**
+     * Keeps the rows of the inverse of a rigid transform, whose rotation part
+     * is orthonormal.
+     */
+    private void invertRigid(float[] m) {
+        float[] inverse = mWorldToCamera;
+        for (int row = 0; row < 3; row++) {
+            // Transposed rotation
+            inverse[row * 4] = m[row * 4];
+            inverse[row * 4 + 1] = m[row * 4 + 1];
+            inverse[row * 4 + 2] = m[row * 4 + 2];
+            inverse[row * 4 + 3] = -(m[row * 4] * m[12] + m[row * 4 + 1]
+                    * m[13] + m[row * 4 + 2] * m[14]);
+        }
+    }
+
+    /**
+     * Allocates the blocks within the truncation distance of the points of
+     * the depth image, and lists the ones seen by the frame.
+     */
+    private void allocateBlocks(FloatBuffer points, int[] indices,
+            float[] m) {
+        mStamp++;
+        if (mStamp == 0) {
+            // Wrapped around, forget the old stamps
+            Arrays.fill(mBlockStamps, 0);
+            mStamp = 1;
+        }
+        mVisibleCount = 0;
+        float inverseBlock = 1 / (mVoxelSize * BLOCK_EDGE);
+        float truncation = mTruncation;
+        for (int i = 0; i < mWidth * mHeight; i++) {
+            int o = indices[i] * POINT_TO_XYZ;
+            if (o < 0) {
+                continue;
+            }
+            float x = points.get(o);
+            float y = points.get(o + 1);
+            float z = points.get(o + 2);
+            float wx = m[0] * x + m[4] * y + m[8] * z + m[12];
+            float wy = m[1] * x + m[5] * y + m[9] * z + m[13];
+            float wz = m[2] * x + m[6] * y + m[10] * z + m[14];
+            if (wx != wx || wy != wy || wz != wz) {
+                continue;
+            }
+            int minX = (int) Math.floor((wx - truncation) * inverseBlock);
+            int maxX = (int) Math.floor((wx + truncation) * inverseBlock);
+            int minY = (int) Math.floor((wy - truncation) * inverseBlock);
+            int maxY = (int) Math.floor((wy + truncation) * inverseBlock);
+            int minZ = (int) Math.floor((wz - truncation) * inverseBlock);
+            int maxZ = (int) Math.floor((wz + truncation) * inverseBlock);
+            for (int bz = minZ; bz <= maxZ; bz++) {
+                for (int by = minY; by <= maxY; by++) {
+                    for (int bx = minX; bx <= maxX; bx++) {
+                        int block = findBlock(bx, by, bz, true);
+                        if (block < 0) {
+                            mDroppedBlockCount++;
+                        } else if (mBlockStamps[block] != mStamp) {
+                            mBlockStamps[block] = mStamp;
+                            mVisibleBlocks[mVisibleCount++] = block;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the index of the block, or -1 if it does not exist and either
+     *         create is false or the volume is full.
+     */
+    private int findBlock(int bx, int by, int bz, boolean create) {
+        long key = VoxelKeys.pack(bx, by, bz);
+        int slot = VoxelKeys.hash(key) & mMask;
+        long slotKey;
+        while ((slotKey = mKeys[slot]) != VoxelKeys.EMPTY_KEY) {
+            if (slotKey == key) {
+                return mSlotBlocks[slot];
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (!create || mBlockCount == mMaxBlocks) {
+            return -1;
+        }
+        int block = mBlockCount++;
+        mKeys[slot] = key;
+        mSlotBlocks[slot] = block;
+        mBlockCoordinates[block * POINT_TO_XYZ] = bx;
+        mBlockCoordinates[block * POINT_TO_XYZ + 1] = by;
+        mBlockCoordinates[block * POINT_TO_XYZ + 2] = bz;
+        mBlockStamps[block] = 0;
+        int first = block * BLOCK_VOXELS;
+        Arrays.fill(mDistances, first, first + BLOCK_VOXELS, 0);
+        Arrays.fill(mWeights, first, first + BLOCK_VOXELS, (short) 0);
+        return block;
+    }
+
+    private void updateBlocks() {
+        int partitionCount = Math.min(mPartitions.size(), mVisibleCount);
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            Partition partition = mPartitions.get(i);
+            partition.mStart = ParallelFor.start(mVisibleCount, i,
+                    partitionCount);
+            partition.mEnd = ParallelFor.start(mVisibleCount, i + 1,
+                    partitionCount);
+            tasks.add(partition);
+        }
+        mParallelFor.run(tasks);
+    }
+
+    /**
+     * Updates the voxels of a range of the visible blocks.
+     */
+    private class Partition implements Callable<Void> {
+        int mStart;
+        int mEnd;
+
+        @Override
+        public Void call() {
+            for (int i = mStart; i < mEnd; i++) {
+                updateBlock(mVisibleBlocks[i]);
+            }
+            return null;
+        }
+    }
+
+    private void updateBlock(int block) {
+        float[] m = mWorldToCamera;
+        float voxelSize = mVoxelSize;
+        float inverseTruncation = 1 / mTruncation;
+        float fx = (float) mFx, fy = (float) mFy;
+        float cx = (float) mCx + 0.5f, cy = (float) mCy + 0.5f;
+        int width = mWidth, height = mHeight;
+        float[] depth = mDepth;
+        float[] distances = mDistances;
+        short[] weights = mWeights;
+        int maxWeight = mMaxWeight;
+        int voxel = block * BLOCK_VOXELS;
+        float originX = mBlockCoordinates[block * POINT_TO_XYZ] * BLOCK_EDGE
+                * voxelSize;
+        float originY = mBlockCoordinates[block * POINT_TO_XYZ + 1]
+                * BLOCK_EDGE * voxelSize;
+        float originZ = mBlockCoordinates[block * POINT_TO_XYZ + 2]
+                * BLOCK_EDGE * voxelSize;
+        // Step of the camera coordinates along the x of the world
+        float stepX = m[0] * voxelSize;
+        float stepY = m[4] * voxelSize;
+        float stepZ = m[8] * voxelSize;
+        for (int z = 0; z < BLOCK_EDGE; z++) {
+            float wz = originZ + z * voxelSize;
+            for (int y = 0; y < BLOCK_EDGE; y++) {
+                float wy = originY + y * voxelSize;
+                float px = m[0] * originX + m[1] * wy + m[2] * wz + m[3];
+                float py = m[4] * originX + m[5] * wy + m[6] * wz + m[7];
+                float pz = m[8] * originX + m[9] * wy + m[10] * wz + m[11];
+                for (int x = 0; x < BLOCK_EDGE; x++, voxel++, px += stepX,
+                        py += stepY, pz += stepZ) {
+                    if (!(pz > 0)) {
+                        continue;
+                    }
+                    int u = (int) Math.floor(fx * px / pz + cx);
+                    int v = (int) Math.floor(fy * py / pz + cy);
+                    if (u < 0 || u >= width || v < 0 || v >= height) {
+                        continue;
+                    }
+                    float observed = depth[v * width + u];
+                    if (observed == 0) {
+                        continue;
+                    }
+                    float distance = (observed - pz) * inverseTruncation;
+                    if (distance < -1) {
+                        // Hidden behind the surface
+                        continue;
+                    }
+                    if (distance > 1) {
+                        distance = 1;
+                    }
+                    int weight = weights[voxel];
+                    distances[voxel] = (distances[voxel] * weight + distance)
+                            / (weight + 1);
+                    if (weight < maxWeight) {
+                        weights[voxel] = (short) (weight + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracts the zero crossing of the volume.
+     *
+     * @return the number of triangles, see {@link #getMeshVertices()} and
+     *         {@link #getMeshTriangles()}.
+     */
+    public int extractMesh() {
+        long start = System.nanoTime();
+        mVertexCount = 0;
+        mTriangleCount = 0;
+        int edgeCapacity = Integer.highestOneBit(Math.max(mBlockCount, 1)
+                * BLOCK_VOXELS / 4) * 2;
+        if (mEdgeKeys == null || mEdgeKeys.length != edgeCapacity) {
+            mEdgeKeys = new long[edgeCapacity];
+            mEdgeVertices = new int[edgeCapacity];
+        }
+        Arrays.fill(mEdgeKeys, VoxelKeys.EMPTY_KEY);
+        mEdgeMask = edgeCapacity - 1;
+
+        int[] neighbors = new int[8];
+        float[] values = new float[8];
+        // Corners of the tetrahedra inside and outside the surface
+        int[] inside = new int[4];
+        int[] outside = new int[4];
+        int[] triangle = new int[3];
+        for (int block = 0; block < mBlockCount; block++) {
+            int bx = mBlockCoordinates[block * POINT_TO_XYZ];
+            int by = mBlockCoordinates[block * POINT_TO_XYZ + 1];
+            int bz = mBlockCoordinates[block * POINT_TO_XYZ + 2];
+            for (int n = 0; n < 8; n++) {
+                neighbors[n] = n == 0 ? block : findBlock(bx + (n & 1), by
+                        + (n >> 1 & 1), bz + (n >> 2 & 1), false);
+            }
+            for (int z = 0; z < BLOCK_EDGE; z++) {
+                for (int y = 0; y < BLOCK_EDGE; y++) {
+                    for (int x = 0; x < BLOCK_EDGE; x++) {
+                        if (!loadCube(neighbors, x, y, z, values)) {
+                            continue;
+                        }
+                        float min = values[0];
+                        float max = values[0];
+                        for (int c = 1; c < 8; c++) {
+                            min = Math.min(min, values[c]);
+                            max = Math.max(max, values[c]);
+                        }
+                        if (min >= 0 || max < 0) {
+                            continue;
+                        }
+                        int ox = (bx << BLOCK_BITS) + x;
+                        int oy = (by << BLOCK_BITS) + y;
+                        int oz = (bz << BLOCK_BITS) + z;
+                        for (int[] tetrahedron : TETRAHEDRA) {
+                            int insideCount = 0;
+                            int outsideCount = 0;
+                            for (int corner : tetrahedron) {
+                                if (values[corner] < 0) {
+                                    inside[insideCount++] = corner;
+                                } else {
+                                    outside[outsideCount++] = corner;
+                                }
+                            }
+                            if (insideCount == 0 || outsideCount == 0) {
+                                continue;
+                            }
+                            if (insideCount == 1 || outsideCount == 1) {
+                                // The lone corner is cut off by one triangle
+                                boolean loneInside = insideCount == 1;
+                                int lone = loneInside ? inside[0] : outside[0];
+                                int[] others = loneInside ? outside : inside;
+                                for (int i = 0; i < 3; i++) {
+                                    triangle[i] = edgeVertex(ox, oy, oz,
+                                            lone, others[i], values);
+                                }
+                                addTriangle(triangle, inside, insideCount,
+                                        outside, outsideCount);
+                            } else {
+                                // Two on each side, the crossings make a quad
+                                int a = edgeVertex(ox, oy, oz, inside[0],
+                                        outside[0], values);
+                                int b = edgeVertex(ox, oy, oz, inside[0],
+                                        outside[1], values);
+                                int c = edgeVertex(ox, oy, oz, inside[1],
+                                        outside[1], values);
+                                int d = edgeVertex(ox, oy, oz, inside[1],
+                                        outside[0], values);
+                                triangle[0] = a;
+                                triangle[1] = b;
+                                triangle[2] = c;
+                                addTriangle(triangle, inside, 2, outside, 2);
+                                triangle[0] = a;
+                                triangle[1] = c;
+                                triangle[2] = d;
+                                addTriangle(triangle, inside, 2, outside, 2);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        mExtractNanos = System.nanoTime() - start;
+        return mTriangleCount;
+    }
+
+    /**
+     * Reads the distances at the corners of the cube at (x, y, z) in the
+     * first of the eight blocks, the others holding its neighbors.
+     *
+     * @return false if a corner was never observed.
+     */
+    private boolean loadCube(int[] neighbors, int x, int y, int z,
+            float[] values) {
+        for (int c = 0; c < 8; c++) {
+            int lx = x + (c & 1);
+            int ly = y + (c >> 1 & 1);
+            int lz = z + (c >> 2 & 1);
+            int neighbor = neighbors[lx >> BLOCK_BITS | (ly >> BLOCK_BITS) << 1
+                    | (lz >> BLOCK_BITS) << 2];
+            if (neighbor < 0) {
+                return false;
+            }
+            int voxel = neighbor * BLOCK_VOXELS
+                    + ((lz & BLOCK_MASK) * BLOCK_EDGE + (ly & BLOCK_MASK))
+                    * BLOCK_EDGE + (lx & BLOCK_MASK);
+            if (mWeights[voxel] == 0) {
+                return false;
+            }
+            values[c] = mDistances[voxel];
+        }
+        return true;
+    }
+
+    /**
+     * @return the vertex where the surface crosses the edge between two
+     *         corners of the cube at (ox, oy, oz), created if needed.
+     */
+    private int edgeVertex(int ox, int oy, int oz, int cornerA, int cornerB,
+            float[] values) {
+        // Along the edges of the tetrahedra, the corner bits only grow
+        int low = Math.min(cornerA, cornerB);
+        int high = Math.max(cornerA, cornerB);
+        int gx = ox + (low & 1);
+        int gy = oy + (low >> 1 & 1);
+        int gz = oz + (low >> 2 & 1);
+        int direction = low ^ high;
+        long key = packEdge(gx) << (2 * EDGE_COORDINATE_BITS + 3)
+                | packEdge(gy) << (EDGE_COORDINATE_BITS + 3)
+                | packEdge(gz) << 3 | direction;
+        int slot = VoxelKeys.hash(key) & mEdgeMask;
+        long slotKey;
+        while ((slotKey = mEdgeKeys[slot]) != VoxelKeys.EMPTY_KEY) {
+            if (slotKey == key) {
+                return mEdgeVertices[slot];
+            }
+            slot = (slot + 1) & mEdgeMask;
+        }
+        float t = values[low] / (values[low] - values[high]);
+        if (mVertices.length < (mVertexCount + 1) * POINT_TO_XYZ) {
+            mVertices = Arrays.copyOf(mVertices,
+                    Math.max(1024, 2 * mVertices.length));
+        }
+        int v = mVertexCount * POINT_TO_XYZ;
+        mVertices[v] = (gx + t * (direction & 1)) * mVoxelSize;
+        mVertices[v + 1] = (gy + t * (direction >> 1 & 1)) * mVoxelSize;
+        mVertices[v + 2] = (gz + t * (direction >> 2 & 1)) * mVoxelSize;
+        mEdgeKeys[slot] = key;
+        mEdgeVertices[slot] = mVertexCount;
+        if (++mVertexCount * 2 > mEdgeKeys.length) {
+            growEdges();
+        }
+        return mVertexCount - 1;
+    }
+
+    private void growEdges() {
+        long[] keys = mEdgeKeys;
+        int[] vertices = mEdgeVertices;
+        mEdgeKeys = new long[2 * keys.length];
+        mEdgeVertices = new int[2 * keys.length];
+        Arrays.fill(mEdgeKeys, VoxelKeys.EMPTY_KEY);
+        mEdgeMask = mEdgeKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == VoxelKeys.EMPTY_KEY) {
+                continue;
+            }
+            int slot = VoxelKeys.hash(keys[i]) & mEdgeMask;
+            while (mEdgeKeys[slot] != VoxelKeys.EMPTY_KEY) {
+                slot = (slot + 1) & mEdgeMask;
+            }
+            mEdgeKeys[slot] = keys[i];
+            mEdgeVertices[slot] = vertices[i];
+        }
+    }
+
+    /**
+     * Adds a triangle of a tetrahedron, wound so that it faces the corners
+     * outside the surface, toward the camera.
+     */
+    private void addTriangle(int[] triangle, int[] inside, int insideCount,
+            int[] outside, int outsideCount) {
+        int a = triangle[0] * POINT_TO_XYZ;
+        int b = triangle[1] * POINT_TO_XYZ;
+        int c = triangle[2] * POINT_TO_XYZ;
+        float[] p = mVertices;
+        float abx = p[b] - p[a], aby = p[b + 1] - p[a + 1], abz = p[b + 2]
+                - p[a + 2];
+        float acx = p[c] - p[a], acy = p[c + 1] - p[a + 1], acz = p[c + 2]
+                - p[a + 2];
+        float nx = aby * acz - abz * acy;
+        float ny = abz * acx - abx * acz;
+        float nz = abx * acy - aby * acx;
+        // From the inside corners to the outside ones, in cube units
+        float dx = 0, dy = 0, dz = 0;
+        for (int i = 0; i < outsideCount; i++) {
+            dx += (outside[i] & 1) / (float) outsideCount;
+            dy += (outside[i] >> 1 & 1) / (float) outsideCount;
+            dz += (outside[i] >> 2 & 1) / (float) outsideCount;
+        }
+        for (int i = 0; i < insideCount; i++) {
+            dx -= (inside[i] & 1) / (float) insideCount;
+            dy -= (inside[i] >> 1 & 1) / (float) insideCount;
+            dz -= (inside[i] >> 2 & 1) / (float) insideCount;
+        }
+        if (mTriangles.length < (mTriangleCount + 1) * POINT_TO_XYZ) {
+            mTriangles = Arrays.copyOf(mTriangles,
+                    Math.max(1024, 2 * mTriangles.length));
+        }
+        int t = mTriangleCount * POINT_TO_XYZ;
+        boolean flip = nx * dx + ny * dy + nz * dz < 0;
+        mTriangles[t] = triangle[0];
+        mTriangles[t + 1] = triangle[flip ? 2 : 1];
+        mTriangles[t + 2] = triangle[flip ? 1 : 2];
+        mTriangleCount++;
+    }
+
+    /**
+     * @return the little-endian xyz floats of the vertices of the last
+     *         extracted mesh, in the world, in a new buffer from position 0
+     *         to the limit.
+     */
+    public ByteBuffer getMeshVertices() {
+        ByteBuffer vertices = ByteBuffer.allocateDirect(
+                mVertexCount * POINT_TO_XYZ * BYTES_PER_FLOAT).order(
+                ByteOrder.LITTLE_ENDIAN);
+        vertices.asFloatBuffer().put(mVertices, 0, mVertexCount * POINT_TO_XYZ);
+        return vertices;
+    }
+
+    /**
+     * @return the little-endian vertex indices of the triangles of the last
+     *         extracted mesh, three per triangle, in a new buffer from
+     *         position 0 to the limit.
+     */
+    public ByteBuffer getMeshTriangles() {
+        ByteBuffer triangles = ByteBuffer.allocateDirect(
+                mTriangleCount * POINT_TO_XYZ * BYTES_PER_INT).order(
+                ByteOrder.LITTLE_ENDIAN);
+        triangles.asIntBuffer().put(mTriangles, 0,
+                mTriangleCount * POINT_TO_XYZ);
+        return triangles;
+    }
+
+    public int getMeshVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getMeshTriangleCount() {
+        return mTriangleCount;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * @return the number of blocks updated by the last frame.
+     */
+    public int getVisibleBlockCount() {
+        return mVisibleCount;
+    }
+
+    /**
+     * @return the timestamp of the last frame integrated.
+     */
+    public double getLastTimestamp() {
+        return mLastTimestamp;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the time taken by the last frame, in milliseconds.
+     */
+    public double getLastIntegrateTimeMs() {
+        return mLastIntegrateNanos / 1000000.0;
+    }
+
+    /**
+     * @return the mean time taken by a frame, in milliseconds.
+     */
+    public double getAverageIntegrateTimeMs() {
+        return mFrameCount == 0 ? 0 : mIntegrateNanos / 1000000.0 / mFrameCount;
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames of %.0f points, %d blocks of %.3f m "
+                + "voxels (max %d), %d blocks dropped, %.2f ms per frame, "
+                + "%.1f M voxel updates/s, %d triangles extracted in %.0f ms",
+                mFrameCount, mFrameCount == 0 ? 0.0 : (double) mPointCount
+                        / mFrameCount, mBlockCount, mVoxelSize, mMaxBlocks,
+                mDroppedBlockCount, getAverageIntegrateTimeMs(),
+                mIntegrateNanos == 0 ? 0.0 : mVoxelUpdateCount * 1000.0
+                        / mIntegrateNanos, mTriangleCount,
+                mExtractNanos / 1000000.0);
+    }
+
+    public void resetStatistics() {
+        mFrameCount = 0;
+        mPointCount = 0;
+        mVoxelUpdateCount = 0;
+        mDroppedBlockCount = 0;
+        mIntegrateNanos = 0;
+        mLastIntegrateNanos = 0;
+        mExtractNanos = 0;
+    }
+
+    /**
+     * Stops the threads, the volume cannot integrate frames afterwards.
+     */
+    public void shutdown() {
+        mParallelFor.shutdown();
+    }
+
+    /**
+     * @return the voxel coordinate, wrapped to EDGE_COORDINATE_BITS bits.
+     */
+    private static long packEdge(int coordinate) {
+        return ((long) coordinate + (1 << (EDGE_COORDINATE_BITS - 1)))
+                & EDGE_COORDINATE_MASK;
+    }
+
+    /**
+     * Fuses the frames of a capture container offline, reporting the time
+     * taken by each, and writes the extracted surface to a .vtk or .vtp
+     * file. The container must hold the intrinsics and the model matrices
+     * of the frames.
+     *
+     * Usage: TsdfVolume file.tgc mesh.vtk|mesh.vtp [voxel size] [truncation]
+     * [max blocks] [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: TsdfVolume file.tgc mesh.vtk|mesh.vtp "
+                    + "[voxel size] [truncation] [max blocks] [threads]");
+            return;
+        }
+        float voxelSize = args.length > 2 ? Float.parseFloat(args[2]) : 0.01f;
+        float truncation = args.length > 3 ? Float.parseFloat(args[3])
+                : 4 * voxelSize;
+        int maxBlocks = args.length > 4 ? Integer.parseInt(args[4]) : 1 << 16;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime
+                .getRuntime().availableProcessors();
+        CaptureContainerReader reader = new CaptureContainerReader(new File(
+                args[0]));
+        TsdfVolume volume = new TsdfVolume(voxelSize, truncation, maxBlocks,
+                threads);
+        try {
+            double[] intrinsics = new double[4];
+            if (!reader.getIntrinsics(intrinsics)) {
+                System.err.println(args[0] + " has no depth camera intrinsics");
+                return;
+            }
+            volume.setIntrinsics(reader.getWidth(), reader.getHeight(),
+                    intrinsics[0], intrinsics[1], intrinsics[2], intrinsics[3]);
+            float[] modelMatrix = new float[16];
+            for (int frame = 0; frame < reader.getFrameCount(); frame++) {
+                if (!reader.getModelMatrix(frame, modelMatrix)) {
+                    System.out.println(String.format("Frame %d: no pose",
+                            frame));
+                    continue;
+                }
+                volume.integrate(reader.getPoints(frame),
+                        reader.getPointCount(frame),
+                        reader.getTimestamp(frame), modelMatrix);
+                System.out.println(String.format(
+                        "Frame %d: %d points, %d blocks updated, %.2f ms",
+                        frame, reader.getPointCount(frame),
+                        volume.getVisibleBlockCount(),
+                        volume.getLastIntegrateTimeMs()));
+            }
+            volume.extractMesh();
+            System.out.println(volume.getStatistics());
+
+            FileOutputStream out = new FileOutputStream(args[1]);
+            try {
+                if (args[1].endsWith(".vtp")) {
+                    new VtpWriter(volume.getMeshVertexCount()).writeMesh(
+                            out.getChannel(), volume.getMeshVertices(), null,
+                            volume.getMeshVertexCount(),
+                            volume.getMeshTriangles(),
+                            volume.getMeshTriangleCount(),
+                            volume.getLastTimestamp());
+                } else {
+                    new VtkPolyDataWriter(volume.getMeshVertexCount())
+                            .writeMesh(out.getChannel(),
+                                    volume.getMeshVertices(), null,
+                                    volume.getMeshVertexCount(),
+                                    volume.getMeshTriangles(),
+                                    volume.getMeshTriangleCount(),
+                                    volume.getLastTimestamp());
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            volume.shutdown();
+            reader.close();
+        }
+    }
+}
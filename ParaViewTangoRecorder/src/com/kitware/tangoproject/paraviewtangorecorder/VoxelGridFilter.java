@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Downsamples a point cloud by keeping one point per cubic voxel of a given
+ * leaf size: either the centroid of the points of the voxel or the first of
+ * them.
+ *
+ * The voxels of a frame are found with an open-addressed hash table of
+ * primitive arrays, keyed on the voxel coordinates packed in a long, 21 bits
+ * each. Slots are marked with the number of the frame that filled them, so
+ * the table is not cleared between frames, and filtering allocates nothing
+ * once the instance is created.
+ *
+ * An instance must only be used from one thread at a time.
+ */
+public class VoxelGridFilter {
+
+    /** Keeps the centroid of the points of each voxel. */
+    public static final int REDUCTION_CENTROID = 0;
+    /** Keeps the first point of each voxel, in the order of the frame. */
+    public static final int REDUCTION_FIRST_POINT = 1;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int POINT_TO_XYZ = 3;
+
+    private float mLeafSize;
+    private int mReduction;
+
+    // Hash table: voxel key, frame that filled the slot, output point
+    private long[] mKeys;
+    private int[] mStamps;
+    private int[] mVoxels;
+    private int mMask;
+    private int mStamp;
+    // Per voxel of the current frame
+    private float[] mSums;
+    private int[] mCounts;
+    private ByteBuffer mOutput;
+    private FloatBuffer mOutputFloats;
+    private int mOutputCount;
+
+    // Statistics
+    private long mFrameCount;
+    private long mInputPointCount;
+    private long mOutputPointCount;
+    private long mFilterNanos;
+
+    /**
+     * @param maxPoints
+     *            the largest number of points of a frame.
+     */
+    public VoxelGridFilter(int maxPoints) {
+        mLeafSize = 0.01f;
+        mReduction = REDUCTION_CENTROID;
+        allocate(maxPoints);
+    }
+
+    /**
+     * @param leafSize
+     *            the edge of the voxels, in meters.
+     */
+    public void setLeafSize(float leafSize) {
+        if (!(leafSize > 0)) {
+            throw new IllegalArgumentException("Invalid leaf size " + leafSize);
+        }
+        mLeafSize = leafSize;
+    }
+
+    public float getLeafSize() {
+        return mLeafSize;
+    }
+
+    /**
+     * @param reduction
+     *            one of the REDUCTION_* modes.
+     */
+    public void setReduction(int reduction) {
+        mReduction = reduction;
+    }
+
+    public int getReduction() {
+        return mReduction;
+    }
+
+    /**
+     * Downsamples a frame.
+     *
+     * @param xyz
+     *            the little-endian xyz floats, from its position, which is
+     *            left unchanged. Points with a NaN coordinate are dropped.
+     * @return the little-endian xyz floats of the kept points, from position
+     *         0 to the limit, valid until the next call. See
+     *         {@link #getOutputCount()}.
+     */
+    public ByteBuffer filter(ByteBuffer xyz, int pointCount) {
+        long start = System.nanoTime();
+        if (pointCount > mCounts.length) {
+            allocate(pointCount);
+        }
+        nextStamp();
+        FloatBuffer points = xyz.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        float inverseLeaf = 1 / mLeafSize;
+        boolean centroid = mReduction == REDUCTION_CENTROID;
+        float[] sums = mSums;
+        int[] counts = mCounts;
+        int voxelCount = 0;
+        for (int p = 0; p < pointCount; p++) {
+            int o = p * POINT_TO_XYZ;
+            float x = points.get(o);
+            float y = points.get(o + 1);
+            float z = points.get(o + 2);
+            if (x != x || y != y || z != z) {
+                continue;
+            }
+            long key = VoxelKeys.pack(x * inverseLeaf, y * inverseLeaf,
+                    z * inverseLeaf);
+            int slot = VoxelKeys.hash(key) & mMask;
+            while (mStamps[slot] == mStamp && mKeys[slot] != key) {
+                slot = (slot + 1) & mMask;
+            }
+            int voxel;
+            if (mStamps[slot] != mStamp) {
+                mStamps[slot] = mStamp;
+                mKeys[slot] = key;
+                voxel = voxelCount++;
+                mVoxels[slot] = voxel;
+                counts[voxel] = 0;
+                int v = voxel * POINT_TO_XYZ;
+                sums[v] = x;
+                sums[v + 1] = y;
+                sums[v + 2] = z;
+            } else if (centroid) {
+                voxel = mVoxels[slot];
+                int v = voxel * POINT_TO_XYZ;
+                sums[v] += x;
+                sums[v + 1] += y;
+                sums[v + 2] += z;
+            } else {
+                voxel = mVoxels[slot];
+            }
+            counts[voxel]++;
+        }
+
+        mOutputFloats.clear();
+        for (int voxel = 0; voxel < voxelCount; voxel++) {
+            int v = voxel * POINT_TO_XYZ;
+            float scale = centroid ? 1.0f / counts[voxel] : 1;
+            mOutputFloats.put(sums[v] * scale);
+            mOutputFloats.put(sums[v + 1] * scale);
+            mOutputFloats.put(sums[v + 2] * scale);
+        }
+        mOutputCount = voxelCount;
+        mOutput.clear();
+        mOutput.limit(voxelCount * POINT_TO_XYZ * BYTES_PER_FLOAT);
+
+        mFrameCount++;
+        mInputPointCount += pointCount;
+        mOutputPointCount += voxelCount;
+        mFilterNanos += System.nanoTime() - start;
+        return mOutput;
+    }
+
+    /**
+     * @return the number of points returned by the last call to
+     *         {@link #filter(ByteBuffer, int)}.
+     */
+    public int getOutputCount() {
+        return mOutputCount;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the number of points kept over the number of points filtered.
+     */
+    public double getReductionRatio() {
+        return mInputPointCount == 0 ? 1 : (double) mOutputPointCount
+                / mInputPointCount;
+    }
+
+    /**
+     * @return the mean time taken by a frame, in milliseconds.
+     */
+    public double getAverageFilterTimeMs() {
+        return mFrameCount == 0 ? 0 : mFilterNanos / 1000000.0 / mFrameCount;
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames, %d of %d points kept (%.1f%%) with "
+                + "%.3f m voxels, %.2f ms per frame", mFrameCount,
+                mOutputPointCount, mInputPointCount,
+                100 * getReductionRatio(), mLeafSize,
+                getAverageFilterTimeMs());
+    }
+
+    public void resetStatistics() {
+        mFrameCount = 0;
+        mInputPointCount = 0;
+        mOutputPointCount = 0;
+        mFilterNanos = 0;
+    }
+
+    private void allocate(int maxPoints) {
+        // At most half full, so that probes stay short
+        int capacity = Integer.highestOneBit(Math.max(maxPoints, 1) * 2) * 2;
+        mKeys = new long[capacity];
+        mStamps = new int[capacity];
+        mVoxels = new int[capacity];
+        mMask = capacity - 1;
+        mStamp = 0;
+        mSums = new float[maxPoints * POINT_TO_XYZ];
+        mCounts = new int[maxPoints];
+        mOutput = ByteBuffer.allocateDirect(
+                maxPoints * POINT_TO_XYZ * BYTES_PER_FLOAT).order(
+                ByteOrder.LITTLE_ENDIAN);
+        mOutputFloats = mOutput.asFloatBuffer();
+    }
+
+    private void nextStamp() {
+        mStamp++;
+        if (mStamp == 0) {
+            // Wrapped around, forget the old stamps
+            for (int i = 0; i < mStamps.length; i++) {
+                mStamps[i] = 0;
+            }
+            mStamp = 1;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+/**
+ * Keys of the open-addressed hash tables of primitive arrays of
+ * {@link VoxelGridFilter}, {@link FusedMapAccumulator} and
+ * {@link TsdfVolume}: the three integer coordinates of a voxel or a block,
+ * packed in a long, 21 bits each.
+ */
+final class VoxelKeys {
+
+    static final int COORDINATE_BITS = 21;
+    static final int COORDINATE_OFFSET = 1 << (COORDINATE_BITS - 1);
+    static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    /** Packed keys never have the sign bit set, so it marks empty slots. */
+    static final long EMPTY_KEY = -1;
+
+    private VoxelKeys() {
+    }
+
+    /**
+     * @return the key of the voxel, each coordinate wrapped to
+     *         COORDINATE_BITS bits.
+     */
+    static long pack(int x, int y, int z) {
+        return packCoordinate(x) << (2 * COORDINATE_BITS)
+                | packCoordinate(y) << COORDINATE_BITS | packCoordinate(z);
+    }
+
+    /**
+     * @return the key of the voxel holding a point, whose coordinates are
+     *         divided by the edge of the voxels.
+     */
+    static long pack(float scaledX, float scaledY, float scaledZ) {
+        return packCoordinate((long) Math.floor(scaledX))
+                << (2 * COORDINATE_BITS)
+                | packCoordinate((long) Math.floor(scaledY)) << COORDINATE_BITS
+                | packCoordinate((long) Math.floor(scaledZ));
+    }
+
+    private static long packCoordinate(long coordinate) {
+        return (coordinate + COORDINATE_OFFSET) & COORDINATE_MASK;
+    }
+
+    /**
+     * @return the bits of the key mixed so that neighboring voxels are
+     *         spread over the table.
+     */
+    static int hash(long key) {
+        // Finalizer of MurmurHash3
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb33fe1a85ec5L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * Writes Tango XyzIj point clouds as binary legacy VTK PolyData files.
+ *
+ * Legacy VTK binary data is big-endian while Tango delivers little-endian
+ * floats, so the points are swapped in bulk from the raw Tango byte array into
+ * a reusable direct buffer instead of going through a DataOutputStream one
+ * float at a time. The 0..N-1 VERTICES index list never changes between
+ * frames, so it is built once and only its leading count is patched per frame.
+ *
+ * An instance keeps mutable scratch buffers and must only be used from one
+ * thread at a time.
+ */
+public class VtkPolyDataWriter {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BYTES_PER_INT = 4;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int QUATERNION_SIZE = 4;
+    // Point count and indices of a triangle cell
+    private static final int TRIANGLE_CELL_SIZE = 4;
+
+    private ByteBuffer mPointBuffer;
+    private IntBuffer mPointIntBuffer;
+    private ByteBuffer mVertexBuffer;
+    private ByteBuffer mNormalBuffer;
+    private IntBuffer mNormalIntBuffer;
+    private ByteBuffer mPolygonBuffer;
+    private IntBuffer mPolygonIntBuffer;
+    private boolean mWriteVertices;
+    private boolean mHasFramePose;
+    private final float[] mFramePosition;
+    private final float[] mFrameOrientation;
+
+    /**
+     * @param maxPoints
+     *            the largest number of points a frame can hold, usually the
+     *            "max_point_cloud_elements" value of the Tango config.
+     */
+    public VtkPolyDataWriter(int maxPoints) {
+        mWriteVertices = true;
+        mFramePosition = new float[POINT_TO_XYZ];
+        mFrameOrientation = new float[QUATERNION_SIZE];
+        allocate(maxPoints);
+    }
+
+    /**
+     * Enables or disables the VERTICES section. Without it the file only
+     * contains the points, which ParaView can still display with a Glyph or
+     * "Points" representation, and every frame is a third smaller.
+     */
+    public void setWriteVertices(boolean writeVertices) {
+        mWriteVertices = writeVertices;
+    }
+
+    public boolean getWriteVertices() {
+        return mWriteVertices;
+    }
+
+    /**
+     * Sets the device pose stored as the position and orientation arrays of
+     * the FieldData of the next frames, next to their timestamp.
+     *
+     * @param translation
+     *            x, y, z, or null to store no pose.
+     * @param rotation
+     *            x, y, z, w quaternion.
+     */
+    public void setFramePose(float[] translation, float[] rotation) {
+        mHasFramePose = translation != null;
+        if (mHasFramePose) {
+            System.arraycopy(translation, 0, mFramePosition, 0, POINT_TO_XYZ);
+            System.arraycopy(rotation, 0, mFrameOrientation, 0,
+                    QUATERNION_SIZE);
+        }
+    }
+
+    /**
+     * Writes a point cloud read from a buffer, starting at its position. The
+     * position of the buffer is left unchanged. The channel is left open so
+     * that several datasets can be appended to the same stream.
+     *
+     * @param xyz
+     *            the raw little-endian xyz floats as read from the Tango
+     *            service.
+     * @param pointCount
+     *            number of points to write.
+     * @param timestamp
+     *            timestamp of the frame, stored in the FieldData.
+     */
+    public void writePointCloud(WritableByteChannel channel, ByteBuffer xyz,
+            int pointCount, double timestamp) throws IOException {
+        writePointCloud(channel, xyz, null, pointCount, timestamp);
+    }
+
+    /**
+     * Writes a point cloud and the normals of its points, as a NORMALS point
+     * data array.
+     *
+     * @param normals
+     *            little-endian xyz normals, one per point, from its
+     *            position, which is left unchanged. Can be null.
+     */
+    public void writePointCloud(WritableByteChannel channel, ByteBuffer xyz,
+            ByteBuffer normals, int pointCount, double timestamp)
+            throws IOException {
+        writeDataset(channel, xyz, normals, pointCount, null, 0, timestamp);
+    }
+
+    /**
+     * Writes a triangle mesh whose vertices are the points of a frame, as
+     * POLYGONS. The VERTICES section is not written.
+     *
+     * @param normals
+     *            little-endian xyz normals, one per point, or null.
+     * @param triangles
+     *            little-endian point indices, three per triangle, from its
+     *            position, which is left unchanged.
+     */
+    public void writeMesh(WritableByteChannel channel, ByteBuffer xyz,
+            ByteBuffer normals, int pointCount, ByteBuffer triangles,
+            int triangleCount, double timestamp) throws IOException {
+        writeDataset(channel, xyz, normals, pointCount, triangles,
+                triangleCount, timestamp);
+    }
+
+    private void writeDataset(WritableByteChannel channel, ByteBuffer xyz,
+            ByteBuffer normals, int pointCount, ByteBuffer triangles,
+            int triangleCount, double timestamp) throws IOException {
+        if (pointCount > mPointIntBuffer.capacity() / POINT_TO_XYZ) {
+            allocate(pointCount);
+        }
+
+        // Swap the whole frame from little to big endian in one bulk put
+        swap(xyz, pointCount, mPointBuffer, mPointIntBuffer);
+        if (normals != null) {
+            if (mNormalBuffer == null
+                    || mNormalBuffer.capacity() < mPointBuffer.capacity()) {
+                mNormalBuffer = ByteBuffer.allocateDirect(
+                        mPointBuffer.capacity()).order(ByteOrder.BIG_ENDIAN);
+                mNormalIntBuffer = mNormalBuffer.asIntBuffer();
+            }
+            swap(normals, pointCount, mNormalBuffer, mNormalIntBuffer);
+        }
+
+        ByteBuffer header = ascii("# vtk DataFile Version 3.0\n"
+                + "vtk output\n" + "BINARY\n" + "DATASET POLYDATA\n"
+                + "POINTS " + pointCount + " float\n");
+
+        ArrayList<ByteBuffer> sections = new ArrayList<ByteBuffer>(7);
+        sections.add(header);
+        sections.add(mPointBuffer);
+        if (triangles != null) {
+            sections.add(ascii("\nPOLYGONS " + triangleCount + " "
+                    + (TRIANGLE_CELL_SIZE * triangleCount) + "\n"));
+            sections.add(polygons(triangles, triangleCount));
+        } else if (mWriteVertices) {
+            mVertexBuffer.clear();
+            mVertexBuffer.putInt(0, pointCount);
+            mVertexBuffer.limit((pointCount + 1) * BYTES_PER_INT);
+            sections.add(ascii("\nVERTICES 1 " + (pointCount + 1) + "\n"));
+            sections.add(mVertexBuffer);
+        }
+        sections.add(fieldData(timestamp));
+        if (normals != null) {
+            sections.add(ascii("\nPOINT_DATA " + pointCount + "\n"
+                    + "NORMALS Normals float\n"));
+            sections.add(mNormalBuffer);
+        }
+        writeSections(channel, sections.toArray(new ByteBuffer[sections
+                .size()]));
+    }
+
+    /**
+     * @return the triangles as big-endian cells, each a count of 3 followed
+     *         by the point indices.
+     */
+    private ByteBuffer polygons(ByteBuffer triangles, int triangleCount) {
+        int length = triangleCount * TRIANGLE_CELL_SIZE * BYTES_PER_INT;
+        if (mPolygonBuffer == null || mPolygonBuffer.capacity() < length) {
+            mPolygonBuffer = ByteBuffer.allocateDirect(length).order(
+                    ByteOrder.BIG_ENDIAN);
+            mPolygonIntBuffer = mPolygonBuffer.asIntBuffer();
+        }
+        IntBuffer source = triangles.duplicate()
+                .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        IntBuffer cells = mPolygonIntBuffer;
+        cells.clear();
+        for (int i = 0; i < triangleCount * POINT_TO_XYZ; i += POINT_TO_XYZ) {
+            cells.put(POINT_TO_XYZ);
+            cells.put(source.get(i));
+            cells.put(source.get(i + 1));
+            cells.put(source.get(i + 2));
+        }
+        mPolygonBuffer.clear();
+        mPolygonBuffer.limit(length);
+        return mPolygonBuffer;
+    }
+
+    /**
+     * Copies pointCount little-endian xyz triplets to a big-endian buffer,
+     * whose limit is set to their end.
+     */
+    private static void swap(ByteBuffer littleEndian, int pointCount,
+            ByteBuffer bigEndian, IntBuffer bigEndianInts) {
+        ByteBuffer frame = littleEndian.duplicate();
+        frame.limit(frame.position() + pointCount * POINT_TO_XYZ
+                * BYTES_PER_FLOAT);
+        IntBuffer source = frame.slice().order(ByteOrder.LITTLE_ENDIAN)
+                .asIntBuffer();
+        bigEndianInts.clear();
+        bigEndianInts.put(source);
+        bigEndian.clear();
+        bigEndian.limit(bigEndianInts.position() * BYTES_PER_FLOAT);
+    }
+
+    private void allocate(int maxPoints) {
+        mPointBuffer = ByteBuffer
+                .allocateDirect(maxPoints * POINT_TO_XYZ * BYTES_PER_FLOAT)
+                .order(ByteOrder.BIG_ENDIAN);
+        mPointIntBuffer = mPointBuffer.asIntBuffer();
+
+        // Leading count followed by the constant 0..N-1 index list
+        mVertexBuffer = ByteBuffer.allocateDirect((maxPoints + 1)
+                * BYTES_PER_INT).order(ByteOrder.BIG_ENDIAN);
+        IntBuffer indices = mVertexBuffer.asIntBuffer();
+        indices.put(0, maxPoints);
+        for (int i = 0; i < maxPoints; i++) {
+            indices.put(i + 1, i);
+        }
+    }
+
+    private ByteBuffer fieldData(double timestamp) {
+        byte[] text = ("\nFIELD FieldData " + (mHasFramePose ? 3 : 1) + "\n"
+                + "timestamp 1 1 float\n").getBytes();
+        byte[] positionText = "\nposition 3 1 float\n".getBytes();
+        byte[] orientationText = "\norientation 4 1 float\n".getBytes();
+        ByteBuffer field = ByteBuffer.allocate(text.length + BYTES_PER_FLOAT
+                + positionText.length + orientationText.length
+                + (POINT_TO_XYZ + QUATERNION_SIZE) * BYTES_PER_FLOAT).order(
+                ByteOrder.BIG_ENDIAN);
+        field.put(text);
+        field.putFloat((float) timestamp);
+        if (mHasFramePose) {
+            field.put(positionText);
+            for (float value : mFramePosition) {
+                field.putFloat(value);
+            }
+            field.put(orientationText);
+            for (float value : mFrameOrientation) {
+                field.putFloat(value);
+            }
+        }
+        field.flip();
+        return field;
+    }
+
+    static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes());
+    }
+
+    /**
+     * Writes all the sections, with a single gathering write when the channel
+     * supports it (e.g. a FileChannel).
+     */
+    static void writeSections(WritableByteChannel channel,
+            ByteBuffer[] sections) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            long remaining = 0;
+            for (ByteBuffer section : sections) {
+                remaining += section.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= gathering.write(sections);
+            }
+        } else {
+            for (ByteBuffer section : sections) {
+                writeFully(channel, section);
+            }
+        }
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+/**
+ * Writes VTK XML PolyData (.vtp) files with all the arrays in a raw appended
+ * section.
+ *
+ * The files are little-endian, like the data delivered by Tango, so the point
+ * payload is written straight from the Tango byte array without any swap or
+ * copy. Optionally every array is split in blocks compressed with zlib, in
+ * the layout expected by vtkZLibDataCompressor.
+ *
+ * An instance keeps mutable scratch buffers and must only be used from one
+ * thread at a time.
+ */
+public class VtpWriter {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BYTES_PER_INT = 4;
+    private static final int BYTES_PER_DOUBLE = 8;
+    private static final int POINT_TO_XYZ = 3;
+    private static final int QUATERNION_SIZE = 4;
+    private static final int TRIANGLE_SIZE = 3;
+    /** Uncompressed size of a zlib block, the vtkZLibDataCompressor default. */
+    private static final int BLOCK_SIZE = 32 * 1024;
+
+    private ByteBuffer mConnectivityBuffer;
+    private ByteBuffer mTriangleOffsetBuffer;
+    private final ByteBuffer mOffsetBuffer;
+    private final ByteBuffer mTimestampBuffer;
+    private final ByteBuffer mPoseBuffer;
+    private boolean mHasFramePose;
+    private final ArrayList<AppendedArray> mArrays;
+    private ByteBuffer mCompressedBuffer;
+    private byte[] mBlock;
+    private byte[] mDeflateOutput;
+    private Deflater mDeflater;
+    private boolean mCompressed;
+    private boolean mWriteVertices;
+
+    /**
+     * @param maxPoints
+     *            the largest number of points a frame can hold, usually the
+     *            "max_point_cloud_elements" value of the Tango config.
+     */
+    public VtpWriter(int maxPoints) {
+        mWriteVertices = true;
+        mCompressed = false;
+        mOffsetBuffer = ByteBuffer.allocate(BYTES_PER_INT).order(
+                ByteOrder.LITTLE_ENDIAN);
+        mTimestampBuffer = ByteBuffer.allocate(BYTES_PER_DOUBLE).order(
+                ByteOrder.LITTLE_ENDIAN);
+        mPoseBuffer = ByteBuffer.allocate(
+                (POINT_TO_XYZ + QUATERNION_SIZE) * BYTES_PER_FLOAT).order(
+                ByteOrder.LITTLE_ENDIAN);
+        mArrays = new ArrayList<AppendedArray>();
+        allocateConnectivity(maxPoints);
+    }
+
+    /**
+     * Enables zlib compression of the appended arrays.
+     */
+    public void setCompressed(boolean compressed) {
+        mCompressed = compressed;
+        if (compressed && mDeflater == null) {
+            mDeflater = new Deflater(Deflater.BEST_SPEED);
+            mBlock = new byte[BLOCK_SIZE];
+            mDeflateOutput = new byte[BLOCK_SIZE];
+        }
+    }
+
+    public boolean getCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * Enables or disables the Verts cell array, see
+     * {@link VtkPolyDataWriter#setWriteVertices(boolean)}.
+     */
+    public void setWriteVertices(boolean writeVertices) {
+        mWriteVertices = writeVertices;
+    }
+
+    public boolean getWriteVertices() {
+        return mWriteVertices;
+    }
+
+    /**
+     * Sets the device pose stored in the FieldData of the next frames, see
+     * {@link VtkPolyDataWriter#setFramePose(float[], float[])}.
+     */
+    public void setFramePose(float[] translation, float[] rotation) {
+        mHasFramePose = translation != null;
+        if (mHasFramePose) {
+            for (int i = 0; i < POINT_TO_XYZ; i++) {
+                mPoseBuffer.putFloat(i * BYTES_PER_FLOAT, translation[i]);
+            }
+            for (int i = 0; i < QUATERNION_SIZE; i++) {
+                mPoseBuffer.putFloat((POINT_TO_XYZ + i) * BYTES_PER_FLOAT,
+                        rotation[i]);
+            }
+        }
+    }
+
+    /**
+     * Releases the native memory of the compressor.
+     */
+    public void release() {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+    }
+
+    /**
+     * Writes a point cloud read from a buffer, starting at its position. The
+     * position of the buffer is left unchanged. The channel is left open so
+     * that several datasets can be appended to the same stream.
+     *
+     * @param xyz
+     *            the raw little-endian xyz floats as read from the Tango
+     *            service.
+     * @param pointCount
+     *            number of points to write.
+     * @param timestamp
+     *            timestamp of the frame, stored in the FieldData.
+     */
+    public void writePointCloud(WritableByteChannel channel, ByteBuffer xyz,
+            int pointCount, double timestamp) throws IOException {
+        writePointCloud(channel, xyz, null, pointCount, timestamp);
+    }
+
+    /**
+     * Writes a point cloud and the normals of its points, as the Normals
+     * array of the point data.
+     *
+     * @param normals
+     *            little-endian xyz normals, one per point, from its
+     *            position, which is left unchanged. Can be null.
+     */
+    public void writePointCloud(WritableByteChannel channel, ByteBuffer xyz,
+            ByteBuffer normals, int pointCount, double timestamp)
+            throws IOException {
+        writeMesh(channel, xyz, normals, pointCount, null, 0, timestamp);
+    }
+
+    /**
+     * Writes a triangle mesh whose vertices are the points of a frame, as
+     * Polys. The Verts cell array is not written.
+     *
+     * @param normals
+     *            little-endian xyz normals, one per point, or null.
+     * @param triangles
+     *            little-endian point indices, three per triangle, from its
+     *            position, which is left unchanged. Null to write the points
+     *            only.
+     */
+    public void writeMesh(WritableByteChannel channel, ByteBuffer xyz,
+            ByteBuffer normals, int pointCount, ByteBuffer triangles,
+            int triangleCount, double timestamp) throws IOException {
+        if (pointCount + 1 > mConnectivityBuffer.capacity() / BYTES_PER_INT) {
+            allocateConnectivity(pointCount);
+        }
+        ByteBuffer points = xyz.duplicate();
+        points.limit(points.position() + pointCount * POINT_TO_XYZ
+                * BYTES_PER_FLOAT);
+        beginDataset();
+        addTimestampField(timestamp);
+        addArray("Points", "<DataArray type=\"Float32\" NumberOfComponents=\"3\"",
+                points.slice());
+        int vertCount = 0;
+        int polyCount = 0;
+        if (triangles != null) {
+            if (triangleCount > 0) {
+                addTriangles(triangles, triangleCount);
+                polyCount = triangleCount;
+            }
+        } else if (mWriteVertices && pointCount > 0) {
+            addVertexCell(pointCount);
+            vertCount = 1;
+        }
+        if (normals != null) {
+            addArray("PointData", " Normals=\"Normals\"",
+                    "<DataArray type=\"Float32\" Name=\"Normals\" NumberOfComponents=\"3\"",
+                    slice(normals, pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT));
+        }
+        writeDataset(channel, pointCount, vertCount, polyCount);
+    }
+
+    private void allocateConnectivity(int maxPoints) {
+        mConnectivityBuffer = ByteBuffer.allocateDirect(
+                (maxPoints + 1) * BYTES_PER_INT).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer indices = mConnectivityBuffer.asIntBuffer();
+        for (int i = 0; i <= maxPoints; i++) {
+            indices.put(i, i);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + length);
+        return slice;
+    }
+
+    private void beginDataset() {
+        mArrays.clear();
+        if (mCompressedBuffer != null) {
+            mCompressedBuffer.clear();
+        }
+    }
+
+    private void addTimestampField(double timestamp) throws IOException {
+        mTimestampBuffer.clear();
+        mTimestampBuffer.putDouble(0, timestamp);
+        addArray("FieldData", "<DataArray type=\"Float64\" Name=\"timestamp\""
+                + " NumberOfTuples=\"1\"", mTimestampBuffer);
+        if (mHasFramePose) {
+            mPoseBuffer.clear();
+            addArray("FieldData", "<DataArray type=\"Float32\" Name=\"position\""
+                    + " NumberOfComponents=\"3\" NumberOfTuples=\"1\"",
+                    slice(mPoseBuffer, POINT_TO_XYZ * BYTES_PER_FLOAT));
+            mPoseBuffer.position(POINT_TO_XYZ * BYTES_PER_FLOAT);
+            addArray("FieldData", "<DataArray type=\"Float32\""
+                    + " Name=\"orientation\" NumberOfComponents=\"4\""
+                    + " NumberOfTuples=\"1\"",
+                    slice(mPoseBuffer, QUATERNION_SIZE * BYTES_PER_FLOAT));
+        }
+    }
+
+    private void addVertexCell(int pointCount) throws IOException {
+        addCell("Verts", pointCount);
+    }
+
+    private void addTriangles(ByteBuffer triangles, int triangleCount)
+            throws IOException {
+        int offsetLength = triangleCount * BYTES_PER_INT;
+        if (mTriangleOffsetBuffer == null
+                || mTriangleOffsetBuffer.capacity() < offsetLength) {
+            // The offsets 3, 6, 9... only depend on the count
+            mTriangleOffsetBuffer = ByteBuffer.allocateDirect(offsetLength)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            IntBuffer offsets = mTriangleOffsetBuffer.asIntBuffer();
+            for (int i = 0; i < triangleCount; i++) {
+                offsets.put(i, TRIANGLE_SIZE * (i + 1));
+            }
+        }
+        ByteBuffer offsets = mTriangleOffsetBuffer.duplicate();
+        offsets.clear();
+        offsets.limit(offsetLength);
+        addArray("Polys", "<DataArray type=\"Int32\" Name=\"connectivity\"",
+                slice(triangles, triangleCount * TRIANGLE_SIZE * BYTES_PER_INT));
+        addArray("Polys", "<DataArray type=\"Int32\" Name=\"offsets\"",
+                offsets);
+    }
+
+    // A single cell using all the points in order
+    private void addCell(String section, int pointCount) throws IOException {
+        ByteBuffer connectivity = mConnectivityBuffer.duplicate();
+        connectivity.clear();
+        connectivity.limit(pointCount * BYTES_PER_INT);
+        mOffsetBuffer.clear();
+        mOffsetBuffer.putInt(0, pointCount);
+        addArray(section, "<DataArray type=\"Int32\" Name=\"connectivity\"",
+                connectivity);
+        addArray(section, "<DataArray type=\"Int32\" Name=\"offsets\"",
+                mOffsetBuffer);
+    }
+
+    private void addArray(String section, String xmlStart, ByteBuffer data)
+            throws IOException {
+        addArray(section, "", xmlStart, data);
+    }
+
+    /**
+     * @param sectionAttributes
+     *            attributes of the section element, with a leading space,
+     *            used when the array opens the section.
+     */
+    private void addArray(String section, String sectionAttributes,
+            String xmlStart, ByteBuffer data) throws IOException {
+        AppendedArray array = new AppendedArray(section, sectionAttributes,
+                xmlStart);
+        if (mCompressed) {
+            compress(array, data);
+        } else {
+            array.mHeader = ByteBuffer.allocate(BYTES_PER_INT).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            array.mHeader.putInt(0, data.remaining());
+            array.mData = data.slice();
+        }
+        mArrays.add(array);
+    }
+
+    /**
+     * Compresses an array into the shared scratch buffer, as a header
+     * [nblocks, blocksize, lastblocksize, compressed sizes...] followed by
+     * the zlib streams of each block.
+     */
+    private void compress(AppendedArray array, ByteBuffer data) {
+        int length = data.remaining();
+        int blockCount = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int lastBlockSize = length - (blockCount - 1) * BLOCK_SIZE;
+        if (blockCount == 0) {
+            lastBlockSize = 0;
+        }
+        array.mHeader = ByteBuffer.allocate((3 + blockCount) * BYTES_PER_INT)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        array.mHeader.putInt(blockCount);
+        array.mHeader.putInt(BLOCK_SIZE);
+        array.mHeader.putInt(lastBlockSize);
+
+        ensureCompressedCapacity(length + blockCount * 64);
+        int start = mCompressedBuffer.position();
+        ByteBuffer source = data.duplicate();
+        for (int i = 0; i < blockCount; i++) {
+            int size = Math.min(BLOCK_SIZE, source.remaining());
+            source.get(mBlock, 0, size);
+            mDeflater.reset();
+            mDeflater.setInput(mBlock, 0, size);
+            mDeflater.finish();
+            int compressedSize = 0;
+            while (!mDeflater.finished()) {
+                int count = mDeflater.deflate(mDeflateOutput);
+                mCompressedBuffer.put(mDeflateOutput, 0, count);
+                compressedSize += count;
+            }
+            array.mHeader.putInt(compressedSize);
+        }
+        array.mHeader.flip();
+
+        ByteBuffer compressed = mCompressedBuffer.duplicate();
+        compressed.limit(mCompressedBuffer.position());
+        compressed.position(start);
+        array.mData = compressed.slice();
+    }
+
+    private void ensureCompressedCapacity(int extra) {
+        if (mCompressedBuffer == null
+                || mCompressedBuffer.remaining() < extra) {
+            // Earlier arrays of this dataset keep slices of the old buffer
+            mCompressedBuffer = ByteBuffer.allocateDirect(Math.max(extra,
+                    mCompressedBuffer == null ? 0
+                            : 2 * mCompressedBuffer.capacity()));
+        }
+    }
+
+    private void writeDataset(WritableByteChannel channel, int pointCount,
+            int vertCount, int polyCount) throws IOException {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\"?>\n");
+        xml.append("<VTKFile type=\"PolyData\" version=\"0.1\""
+                + " byte_order=\"LittleEndian\"");
+        if (mCompressed) {
+            xml.append(" compressor=\"vtkZLibDataCompressor\"");
+        }
+        xml.append(">\n<PolyData>\n");
+
+        long offset = 0;
+        String openSection = null;
+        boolean inPiece = false;
+        for (AppendedArray array : mArrays) {
+            if (!array.mSection.equals(openSection)) {
+                if (openSection != null) {
+                    xml.append("</").append(openSection).append(">\n");
+                }
+                if (!inPiece && !array.mSection.equals("FieldData")) {
+                    xml.append("<Piece NumberOfPoints=\"").append(pointCount)
+                            .append("\" NumberOfVerts=\"").append(vertCount)
+                            .append("\" NumberOfLines=\"0\" NumberOfStrips=\"0\"")
+                            .append(" NumberOfPolys=\"")
+                            .append(polyCount).append("\">\n");
+                    inPiece = true;
+                }
+                xml.append("<").append(array.mSection)
+                        .append(array.mSectionAttributes).append(">\n");
+                openSection = array.mSection;
+            }
+            xml.append(array.mXmlStart)
+                    .append(" format=\"appended\" offset=\"").append(offset)
+                    .append("\"/>\n");
+            offset += array.mHeader.remaining() + array.mData.remaining();
+        }
+        if (openSection != null) {
+            xml.append("</").append(openSection).append(">\n");
+        }
+        if (inPiece) {
+            xml.append("</Piece>\n");
+        }
+        xml.append("</PolyData>\n<AppendedData encoding=\"raw\">\n_");
+
+        ByteBuffer[] sections = new ByteBuffer[2 * mArrays.size() + 2];
+        sections[0] = VtkPolyDataWriter.ascii(xml.toString());
+        int i = 1;
+        for (AppendedArray array : mArrays) {
+            sections[i++] = array.mHeader;
+            sections[i++] = array.mData;
+        }
+        sections[i] = VtkPolyDataWriter
+                .ascii("\n</AppendedData>\n</VTKFile>\n");
+        VtkPolyDataWriter.writeSections(channel, sections);
+    }
+
+    private static class AppendedArray {
+        final String mSection;
+        final String mSectionAttributes;
+        final String mXmlStart;
+        ByteBuffer mHeader;
+        ByteBuffer mData;
+
+        AppendedArray(String section, String sectionAttributes,
+                String xmlStart) {
+            mSection = section;
+            mSectionAttributes = sectionAttributes;
+            mXmlStart = xmlStart;
+        }
+    }
+}
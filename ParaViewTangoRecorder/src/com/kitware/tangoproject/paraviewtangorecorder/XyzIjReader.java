@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Reads the xyz floats of the depth frames from the file descriptor given by
+ * the Tango service, with a FileChannel, straight into direct buffers.
+ *
+ * The destination is either a buffer of the caller, such as a slot of the
+ * {@link FrameRingBuffer} reserved by {@link CapturePipeline#beginOffer()},
+ * or a buffer of a pool sized to the largest frame and recycled with
+ * {@link #release(ByteBuffer)}. The reads are repeated until the frame is
+ * complete. The channel is kept while the service hands the same
+ * descriptor, so a frame allocates nothing once the pool is warm.
+ *
+ * Any file works as a descriptor, for instance a raw recording. An instance
+ * reads from one thread at a time; buffers can be released from any thread.
+ */
+public class XyzIjReader {
+
+    private static final int BYTES_PER_POINT = 12;
+
+    private final int mMaxPoints;
+    private final ArrayDeque<ByteBuffer> mPool;
+
+    private FileDescriptor mDescriptor;
+    private FileInputStream mStream;
+    private FileChannel mChannel;
+
+    // Statistics
+    private long mFrameCount;
+    private long mByteCount;
+    private long mReadCount;
+    private long mShortReadCount;
+    private long mTruncatedCount;
+    private long mOpenCount;
+    private int mAllocatedCount;
+    private long mReadNanos;
+
+    /**
+     * @param maxPoints
+     *            the largest number of points of a frame, the
+     *            max_point_cloud_elements of the depth camera.
+     * @param poolSize
+     *            number of buffers made up front.
+     */
+    public XyzIjReader(int maxPoints, int poolSize) {
+        mMaxPoints = maxPoints;
+        mPool = new ArrayDeque<ByteBuffer>(Math.max(1, poolSize));
+        for (int i = 0; i < poolSize; i++) {
+            mPool.push(allocate());
+        }
+    }
+
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+
+    private ByteBuffer allocate() {
+        mAllocatedCount++;
+        return ByteBuffer.allocateDirect(mMaxPoints * BYTES_PER_POINT).order(
+                ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return a buffer of the pool, cleared, holding up to the largest
+     *         frame. A new one is made if they are all taken.
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = mPool.poll();
+        if (buffer == null) {
+            buffer = allocate();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer of {@link #acquire()} back to the pool.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        mPool.push(buffer);
+    }
+
+    /**
+     * Reads a frame into a buffer of the pool.
+     *
+     * @return the little-endian xyz floats, from position 0 to the limit,
+     *         to be given back with {@link #release(ByteBuffer)}.
+     * @see #read(FileDescriptor, long, int, ByteBuffer)
+     */
+    public ByteBuffer read(FileDescriptor descriptor, long offset,
+            int pointCount) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            read(descriptor, offset, pointCount, buffer);
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a frame into a buffer, from its position. Points past the room
+     * left in the buffer or past the largest frame are skipped.
+     *
+     * @param descriptor
+     *            the xyzParcelFileDescriptor of the frame.
+     * @param offset
+     *            where the frame starts in the file, the
+     *            xyzParcelFileDescriptorOffset.
+     * @return the number of points read, the position of dst being moved
+     *         past them.
+     * @throws EOFException
+     *             if the file ends before the frame.
+     */
+    public int read(FileDescriptor descriptor, long offset, int pointCount,
+            ByteBuffer dst) throws IOException {
+        long start = System.nanoTime();
+        int points = Math.min(Math.min(pointCount, mMaxPoints),
+                dst.remaining() / BYTES_PER_POINT);
+        if (points < pointCount) {
+            mTruncatedCount++;
+        }
+        FileChannel channel = open(descriptor);
+        int limit = dst.limit();
+        dst.limit(dst.position() + points * BYTES_PER_POINT);
+        try {
+            long position = offset;
+            int reads = 0;
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, position);
+                if (read < 0) {
+                    throw new EOFException("Depth frame cut after "
+                            + (position - offset) + " of " + points
+                            * BYTES_PER_POINT + " bytes");
+                }
+                position += read;
+                reads++;
+            }
+            mReadCount += reads;
+            if (reads > 1) {
+                mShortReadCount++;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        mFrameCount++;
+        mByteCount += points * BYTES_PER_POINT;
+        mReadNanos += System.nanoTime() - start;
+        return points;
+    }
+
+    /**
+     * @return the channel of the descriptor, made when the service hands a
+     *         new one, the previous one being closed.
+     */
+    private FileChannel open(FileDescriptor descriptor) throws IOException {
+        if (descriptor != mDescriptor) {
+            close();
+            mStream = new FileInputStream(descriptor);
+            mChannel = mStream.getChannel();
+            mDescriptor = descriptor;
+            mOpenCount++;
+        }
+        return mChannel;
+    }
+
+    /**
+     * Closes the descriptor last read. The pool is kept.
+     */
+    public void close() throws IOException {
+        FileInputStream stream = mStream;
+        mStream = null;
+        mChannel = null;
+        mDescriptor = null;
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return the number of MB read per second.
+     */
+    public double getThroughput() {
+        return mReadNanos == 0 ? 0 : mByteCount * 1e3 / mReadNanos;
+    }
+
+    public String getStatistics() {
+        return String.format("%d frames, %.1f MB, %.2f reads per frame, "
+                + "%d short reads, %d truncated, %d descriptors, "
+                + "%d buffers, %.1f MB/s", mFrameCount, mByteCount / 1e6,
+                mFrameCount == 0 ? 0.0 : (double) mReadCount / mFrameCount,
+                mShortReadCount, mTruncatedCount, mOpenCount, mAllocatedCount,
+                getThroughput());
+    }
+
+    public void resetStatistics() {
+        mFrameCount = 0;
+        mByteCount = 0;
+        mReadCount = 0;
+        mShortReadCount = 0;
+        mTruncatedCount = 0;
+        mOpenCount = 0;
+        mReadNanos = 0;
+    }
+}
@@ -23,50 +23,445 @@ package com.kitware.tangoproject.paraviewtangorecorder;
 
 
 import android.util.Log;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
+/**
+ * Zip archive writer compressing independent entries concurrently.
+ *
+ * Each entry added with {@link #addEntry} is deflated (or just checksummed
+ * when stored) on a bounded thread pool, while the calling thread appends the
+ * finished entries to the archive in the order they were added. At most
+ * {@link #getMaxPendingEntries()} entries are in flight, so memory stays
+ * bounded and addEntry blocks when the pool falls behind.
+ *
+ * The compression mode is chosen per entry. Raw float data barely deflates,
+ * so {@link #COMPRESSION_STORED} or {@link #COMPRESSION_FAST} are usually the
+ * right choice for point entries. A deflated entry that ends up larger than
+ * its input is stored instead.
+ *
+ * Only the 32-bit zip format is written: at most 65535 entries and 4 GB.
+ */
 public class ZipWriter {
 
-    private static final int BUFFER = 2048;
-    private String[] _files;
-    private String _zipFile;
+    private static final String TAG = ZipWriter.class.getSimpleName();
+
+    /** No compression, the entry data is copied as is. */
+    public static final int COMPRESSION_STORED = 0;
+    /** Fastest deflate level. */
+    public static final int COMPRESSION_FAST = 1;
+    /** zlib's default deflate level, a balance of speed and size. */
+    public static final int COMPRESSION_DEFAULT = 2;
+    /** Smallest output, slowest deflate level. */
+    public static final int COMPRESSION_BEST = 3;
+
+    /** Default chunk size, a multiple of the usual 4 KB flash page. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final int FLASH_PAGE_SIZE = 4096;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int ZIP_VERSION = 20;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int MAX_ENTRIES = 0xffff;
+    private static final long MAX_OFFSET = 0xffffffffL;
+
+    /**
+     * Receives the data arrays given to {@link ZipWriter#addEntry} once they
+     * have been written to the archive, so that they can be reused.
+     */
+    public interface BufferRecycler {
+        void recycle(byte[] buffer);
+    }
+
+    private final String mZipFile;
+    private final OutputStream mOut;
+    private final int mChunkSize;
+    private final int mMaxPendingEntries;
+    private final ExecutorService mExecutor;
+    private final ConcurrentLinkedQueue<Deflater> mDeflaters;
+    private final ConcurrentLinkedQueue<byte[]> mOutputBuffers;
+    private final ArrayList<Deflater> mAllDeflaters;
+    private final ArrayDeque<Future<Entry>> mPending;
+    private final ArrayList<Entry> mWritten;
+    private BufferRecycler mRecycler;
+    private long mOffset;
+    private boolean mIsClosed;
+
+    // Throughput counters
+    private final AtomicLong mUncompressedBytes = new AtomicLong();
+    private final AtomicLong mCompressedBytes = new AtomicLong();
+    private final AtomicLong mCompressionNanos = new AtomicLong();
+    private long mStartNanos;
+    private long mElapsedNanos;
+
+    /**
+     * Creates a new archive, ready for {@link #addEntry}.
+     *
+     * @param zipFile
+     *            path of the archive, overwritten if it exists.
+     * @param threadCount
+     *            number of compression threads, 0 to use one per core.
+     * @param chunkSize
+     *            size of the blocks written to flash and fed to the
+     *            compressor, rounded up to a multiple of 4 KB.
+     */
+    public ZipWriter(String zipFile, int threadCount, int chunkSize)
+            throws IOException {
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        mZipFile = zipFile;
+        mChunkSize = Math.max(FLASH_PAGE_SIZE,
+                (chunkSize + FLASH_PAGE_SIZE - 1) / FLASH_PAGE_SIZE
+                        * FLASH_PAGE_SIZE);
+        mOut = new BufferedOutputStream(new FileOutputStream(zipFile),
+                mChunkSize);
+        mMaxPendingEntries = 2 * threadCount;
+        mExecutor = Executors.newFixedThreadPool(threadCount,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG + "-"
+                                + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mDeflaters = new ConcurrentLinkedQueue<Deflater>();
+        mOutputBuffers = new ConcurrentLinkedQueue<byte[]>();
+        mAllDeflaters = new ArrayList<Deflater>();
+        mPending = new ArrayDeque<Future<Entry>>();
+        mWritten = new ArrayList<Entry>();
+        mOffset = 0;
+        mIsClosed = false;
+    }
+
+    /**
+     * Sets the recycler the entry data arrays are handed back to once they
+     * are no longer needed.
+     */
+    public void setBufferRecycler(BufferRecycler recycler) {
+        mRecycler = recycler;
+    }
+
+    /**
+     * Schedules an entry for compression and writes the entries that are
+     * already compressed. The data array belongs to the writer until it is
+     * recycled and must not be modified by the caller.
+     *
+     * @param name
+     *            the name of the file inside the archive.
+     * @param data
+     *            the content of the entry.
+     * @param length
+     *            number of valid bytes at the start of data.
+     * @param compression
+     *            one of the COMPRESSION_* modes.
+     */
+    public synchronized void addEntry(String name, byte[] data, int length,
+            int compression) throws IOException {
+        if (mIsClosed) {
+            throw new IOException("Archive " + mZipFile + " is closed");
+        }
+        if (mWritten.size() + mPending.size() >= MAX_ENTRIES) {
+            throw new IOException("Too many entries in " + mZipFile);
+        }
+        if (mStartNanos == 0) {
+            mStartNanos = System.nanoTime();
+        }
+        final Entry entry = new Entry(name, data, length, compression);
+        mPending.addLast(mExecutor.submit(new Callable<Entry>() {
+            @Override
+            public Entry call() {
+                compress(entry);
+                return entry;
+            }
+        }));
+        writeFinishedEntries(mMaxPendingEntries);
+    }
+
+    /**
+     * Waits for the pending entries and writes the central directory.
+     */
+    public synchronized void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        try {
+            writeFinishedEntries(0);
+            writeCentralDirectory();
+        } finally {
+            mOut.close();
+            mExecutor.shutdownNow();
+            for (Deflater deflater : mAllDeflaters) {
+                deflater.end();
+            }
+            if (mStartNanos != 0) {
+                mElapsedNanos = System.nanoTime() - mStartNanos;
+            }
+        }
+        Log.i(TAG, "Archived " + mWritten.size() + " entries, "
+                + mUncompressedBytes.get() + " bytes to "
+                + mCompressedBytes.get() + " bytes, "
+                + String.format("%.1f", getThroughput()) + " MB/s");
+    }
+
+    public int getMaxPendingEntries() {
+        return mMaxPendingEntries;
+    }
 
-    public ZipWriter(String[] files, String zipFile) {
-        _files = files;
-        _zipFile = zipFile;
+    public int getChunkSize() {
+        return mChunkSize;
     }
 
-    public void zip() {
-        try  {
-            BufferedInputStream origin = null;
-            FileOutputStream dest = new FileOutputStream(_zipFile);
+    public long getUncompressedBytes() {
+        return mUncompressedBytes.get();
+    }
 
-            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
+    public long getCompressedBytes() {
+        return mCompressedBytes.get();
+    }
 
-            byte data[] = new byte[BUFFER];
+    /**
+     * @return the CPU time spent compressing, summed over all threads, in
+     *         milliseconds.
+     */
+    public long getCompressionTimeMs() {
+        return mCompressionNanos.get() / 1000000;
+    }
 
-            for (String _file : _files) {
-//                Log.i("Compress", "Adding: " + _file.substring(_file.lastIndexOf("/") + 1));
-                FileInputStream fi = new FileInputStream(_file);
-                origin = new BufferedInputStream(fi, BUFFER);
-                ZipEntry entry = new ZipEntry(_file.substring(_file.lastIndexOf("/") + 1));
-                out.putNextEntry(entry);
-                int count;
-                while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                    out.write(data, 0, count);
+    /**
+     * @return the uncompressed megabytes archived per second, from the first
+     *         entry added to the archive being closed (or now if it is still
+     *         open).
+     */
+    public double getThroughput() {
+        long elapsed = mIsClosed ? mElapsedNanos : System.nanoTime()
+                - mStartNanos;
+        if (mStartNanos == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mUncompressedBytes.get() / (1024.0 * 1024.0)
+                / (elapsed / 1e9);
+    }
+
+    // Runs on the pool threads
+    private void compress(Entry entry) {
+        long start = System.nanoTime();
+        CRC32 crc = new CRC32();
+        crc.update(entry.mData, 0, entry.mLength);
+        entry.mCrc = crc.getValue();
+        entry.mMethod = METHOD_STORED;
+        entry.mCompressed = entry.mData;
+        entry.mCompressedLength = entry.mLength;
+
+        if (entry.mCompression != COMPRESSION_STORED) {
+            Deflater deflater = mDeflaters.poll();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                synchronized (mAllDeflaters) {
+                    mAllDeflaters.add(deflater);
                 }
-                origin.close();
             }
+            deflater.reset();
+            deflater.setLevel(deflateLevel(entry.mCompression));
+
+            // Anything larger than the input is useless, it will be stored
+            byte[] output = obtainOutputBuffer(entry.mLength);
+            int outputLength = 0;
+            int in = 0;
+            while (!deflater.finished() && outputLength < entry.mLength) {
+                if (deflater.needsInput() && in < entry.mLength) {
+                    int count = Math.min(mChunkSize, entry.mLength - in);
+                    deflater.setInput(entry.mData, in, count);
+                    in += count;
+                    if (in == entry.mLength) {
+                        deflater.finish();
+                    }
+                }
+                outputLength += deflater.deflate(output, outputLength,
+                        entry.mLength - outputLength);
+            }
+            if (deflater.finished() && outputLength < entry.mLength) {
+                entry.mMethod = METHOD_DEFLATED;
+                entry.mCompressed = output;
+                entry.mCompressedLength = outputLength;
+            } else {
+                mOutputBuffers.offer(output);
+            }
+            mDeflaters.offer(deflater);
+        }
+        mCompressionNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private byte[] obtainOutputBuffer(int minLength) {
+        byte[] buffer = mOutputBuffers.poll();
+        if (buffer == null || buffer.length < minLength) {
+            buffer = new byte[minLength];
+        }
+        return buffer;
+    }
+
+    static int deflateLevel(int compression) {
+        switch (compression) {
+        case COMPRESSION_FAST:
+            return Deflater.BEST_SPEED;
+        case COMPRESSION_BEST:
+            return Deflater.BEST_COMPRESSION;
+        default:
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+    }
+
+    /**
+     * Writes the compressed entries at the head of the queue, waiting for
+     * them until no more than maxPending entries are left in flight.
+     */
+    private void writeFinishedEntries(int maxPending) throws IOException {
+        while (!mPending.isEmpty()
+                && (mPending.size() > maxPending || mPending.peekFirst()
+                        .isDone())) {
+            Entry entry;
+            try {
+                entry = mPending.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing "
+                        + mZipFile);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress an entry of "
+                        + mZipFile + ": " + e.getCause());
+            }
+            writeEntry(entry);
+        }
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        entry.mOffset = mOffset;
+        if (mOffset + 30 + entry.mName.length + entry.mCompressedLength > MAX_OFFSET) {
+            throw new IOException("Archive " + mZipFile + " exceeds 4 GB");
+        }
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(ZIP_VERSION);
+        writeShort(0);
+        writeShort(entry.mMethod);
+        writeInt(entry.mDosTime);
+        writeInt((int) entry.mCrc);
+        writeInt(entry.mCompressedLength);
+        writeInt(entry.mLength);
+        writeShort(entry.mName.length);
+        writeShort(0);
+        mOut.write(entry.mName);
+        mOut.write(entry.mCompressed, 0, entry.mCompressedLength);
+        mOffset += 30 + entry.mName.length + entry.mCompressedLength;
+
+        mUncompressedBytes.addAndGet(entry.mLength);
+        mCompressedBytes.addAndGet(entry.mCompressedLength);
+        if (mRecycler != null) {
+            mRecycler.recycle(entry.mData);
+        }
+        if (entry.mCompressed != entry.mData
+                && mOutputBuffers.size() < mMaxPendingEntries) {
+            mOutputBuffers.offer(entry.mCompressed);
+        }
+        entry.mData = null;
+        entry.mCompressed = null;
+        mWritten.add(entry);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = mOffset;
+        for (Entry entry : mWritten) {
+            writeInt(CENTRAL_HEADER_SIGNATURE);
+            writeShort(ZIP_VERSION);
+            writeShort(ZIP_VERSION);
+            writeShort(0);
+            writeShort(entry.mMethod);
+            writeInt(entry.mDosTime);
+            writeInt((int) entry.mCrc);
+            writeInt(entry.mCompressedLength);
+            writeInt(entry.mLength);
+            writeShort(entry.mName.length);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt((int) entry.mOffset);
+            mOut.write(entry.mName);
+            mOffset += 46 + entry.mName.length;
+        }
+        writeInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(mWritten.size());
+        writeShort(mWritten.size());
+        writeInt((int) (mOffset - start));
+        writeInt((int) start);
+        writeShort(0);
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOut.write(value & 0xff);
+        mOut.write((value >>> 8) & 0xff);
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value & 0xffff);
+        writeShort((value >>> 16) & 0xffff);
+    }
+
+    private static int dosTime(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return (calendar.get(Calendar.YEAR) - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        final byte[] mName;
+        final int mLength;
+        final int mCompression;
+        final int mDosTime;
+        byte[] mData;
+        byte[] mCompressed;
+        int mCompressedLength;
+        int mMethod;
+        long mCrc;
+        long mOffset;
 
-            out.close();
-        } catch(Exception e) {
-            e.printStackTrace();
+        Entry(String name, byte[] data, int length, int compression) {
+            mName = name.getBytes();
+            mData = data;
+            mLength = length;
+            mCompression = compression;
+            mDosTime = dosTime(System.currentTimeMillis());
         }
     }
 }
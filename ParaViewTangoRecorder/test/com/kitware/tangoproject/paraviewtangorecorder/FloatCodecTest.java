@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link FloatCodec} gives back the exact bits of the frames it
+ * encodes, including those no depth camera produces.
+ */
+public class FloatCodecTest {
+
+    private static final int MAX_POINTS = 1000;
+
+    private FloatCodec mCodec;
+
+    @Before
+    public void setUp() {
+        mCodec = new FloatCodec(MAX_POINTS, ZipWriter.COMPRESSION_DEFAULT);
+    }
+
+    @After
+    public void tearDown() {
+        mCodec.release();
+    }
+
+    @Test
+    public void roundTripsNaNs() throws IOException {
+        int[] bits = new int[] { Float.floatToRawIntBits(Float.NaN),
+                0x7fc00001, 0xffffffff, 0x7f800001, 0xff800000, 0x7f800000 };
+        assertRoundTrip(repeat(bits, 30), 2.5);
+    }
+
+    @Test
+    public void roundTripsNegativeZeros() throws IOException {
+        int[] bits = new int[] { Float.floatToRawIntBits(-0.0f),
+                Float.floatToRawIntBits(0.0f), Float.floatToRawIntBits(-0.0f) };
+        assertRoundTrip(repeat(bits, 50), -1);
+    }
+
+    @Test
+    public void roundTripsZeros() throws IOException {
+        ByteBuffer encoded = assertRoundTrip(new int[3 * MAX_POINTS], 0);
+        // Zero residuals deflate to almost nothing
+        assertTrue(encoded.remaining() < 100 + FloatCodec.HEADER_SIZE);
+    }
+
+    @Test
+    public void roundTripsRandomBits() throws IOException {
+        Random random = new Random(42);
+        int[] bits = new int[3 * MAX_POINTS];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = random.nextInt();
+        }
+        assertRoundTrip(bits, 1e9);
+    }
+
+    @Test
+    public void roundTripsScanOrderedPoints() throws IOException {
+        int[] bits = new int[3 * MAX_POINTS];
+        for (int p = 0; p < MAX_POINTS; p++) {
+            bits[3 * p] = Float.floatToRawIntBits((p % 40 - 20) * 0.01f);
+            bits[3 * p + 1] = Float.floatToRawIntBits((p / 40 - 12) * 0.01f);
+            bits[3 * p + 2] = Float.floatToRawIntBits(1.5f + p * 1e-4f);
+        }
+        ByteBuffer encoded = assertRoundTrip(bits, 3);
+        assertTrue(encoded.remaining() < bits.length * 4);
+    }
+
+    @Test
+    public void growsPastTheLargestFrame() throws IOException {
+        Random random = new Random(7);
+        int[] bits = new int[3 * 2 * MAX_POINTS];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = Float.floatToRawIntBits(random.nextFloat());
+        }
+        assertRoundTrip(bits, 4);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        ByteBuffer xyz = ByteBuffer.allocate(12);
+        mCodec.decode(ByteBuffer.allocate(FloatCodec.HEADER_SIZE), xyz);
+    }
+
+    private static int[] repeat(int[] bits, int count) {
+        int[] repeated = new int[bits.length * count];
+        for (int i = 0; i < repeated.length; i++) {
+            repeated[i] = bits[i % bits.length];
+        }
+        return repeated;
+    }
+
+    /**
+     * Encodes the floats of the bits, decodes them and compares the bits.
+     *
+     * @return a copy of the encoded frame.
+     */
+    private ByteBuffer assertRoundTrip(int[] bits, double timestamp)
+            throws IOException {
+        int pointCount = bits.length / 3;
+        ByteBuffer xyz = ByteBuffer.allocateDirect(bits.length * 4).order(
+                ByteOrder.LITTLE_ENDIAN);
+        xyz.asIntBuffer().put(bits);
+        ByteBuffer encoded = mCodec.encode(xyz, pointCount, timestamp);
+        ByteBuffer copy = ByteBuffer.allocate(encoded.remaining());
+        copy.put(encoded.duplicate());
+        copy.flip();
+
+        ByteBuffer decoded = ByteBuffer.allocateDirect(bits.length * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(pointCount, mCodec.decode(copy.duplicate(), decoded));
+        assertEquals(bits.length * 4, decoded.position());
+        assertEquals(timestamp, mCodec.getDecodedTimestamp(), 0);
+        for (int i = 0; i < bits.length; i++) {
+            assertEquals("value " + i, bits[i], decoded.getInt(i * 4));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link StatisticalOutlierFilter} removes the points placed
+ * away from a small grid, and only them, whatever the number of threads.
+ */
+public class StatisticalOutlierFilterTest {
+
+    private static final int GRID_EDGE = 20;
+    private static final float SPACING = 0.01f;
+    private static final float[] OUTLIERS = new float[] { 0.5f, 0.5f, 2f,
+            -0.4f, 0.3f, 1.5f, 0.1f, -0.6f, 0.2f };
+
+    private StatisticalOutlierFilter mFilter;
+
+    @Before
+    public void setUp() {
+        mFilter = new StatisticalOutlierFilter(4);
+    }
+
+    @After
+    public void tearDown() {
+        mFilter.shutdown();
+    }
+
+    @Test
+    public void removesTheKnownOutliers() {
+        // The outliers are mixed in the grid, the order must be kept
+        float[] points = new float[3 * GRID_EDGE * GRID_EDGE + OUTLIERS.length];
+        int o = 0;
+        int outlier = 0;
+        for (int i = 0; i < GRID_EDGE * GRID_EDGE; i++) {
+            if (i % 150 == 75) {
+                System.arraycopy(OUTLIERS, 3 * outlier++, points, o, 3);
+                o += 3;
+            }
+            o = putGridPoint(points, o, i);
+        }
+        assertEquals(OUTLIERS.length / 3, outlier);
+
+        FloatBuffer kept = filter(points);
+        assertEquals(GRID_EDGE * GRID_EDGE, mFilter.getOutputCount());
+        float[] grid = new float[3];
+        for (int i = 0; i < GRID_EDGE * GRID_EDGE; i++) {
+            putGridPoint(grid, 0, i);
+            for (int c = 0; c < 3; c++) {
+                assertEquals(grid[c], kept.get(3 * i + c), 0);
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheSamePointsWithOneThread() {
+        float[] points = new float[3 * GRID_EDGE * GRID_EDGE + OUTLIERS.length];
+        int o = 0;
+        for (int i = 0; i < GRID_EDGE * GRID_EDGE; i++) {
+            o = putGridPoint(points, o, i);
+        }
+        System.arraycopy(OUTLIERS, 0, points, o, OUTLIERS.length);
+        FloatBuffer parallel = filter(points);
+        float[] expected = new float[parallel.remaining()];
+        parallel.get(expected);
+
+        StatisticalOutlierFilter serial = new StatisticalOutlierFilter(1);
+        try {
+            ByteBuffer xyz = toBuffer(points);
+            FloatBuffer kept = serial.filter(xyz, points.length / 3)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            assertEquals(mFilter.getOutputCount(), serial.getOutputCount());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], kept.get(i), 0);
+            }
+        } finally {
+            serial.shutdown();
+        }
+    }
+
+    @Test
+    public void removesTheInvalidPoints() {
+        float[] points = new float[3 * GRID_EDGE * GRID_EDGE + 3];
+        int o = 0;
+        for (int i = 0; i < GRID_EDGE * GRID_EDGE; i++) {
+            o = putGridPoint(points, o, i);
+        }
+        points[o] = Float.NaN;
+        points[o + 1] = 0;
+        points[o + 2] = 1;
+        // Without outliers, the edges of the grid are the farthest points
+        mFilter.setStddevMultiplier(100);
+        filter(points);
+        assertEquals(GRID_EDGE * GRID_EDGE, mFilter.getOutputCount());
+    }
+
+    @Test
+    public void keepsTooFewPoints() {
+        mFilter.setMeanK(8);
+        filter(OUTLIERS);
+        assertEquals(OUTLIERS.length / 3, mFilter.getOutputCount());
+    }
+
+    /**
+     * Puts point i of the grid, one centimeter apart at one meter.
+     *
+     * @return the offset past the point.
+     */
+    private static int putGridPoint(float[] points, int offset, int i) {
+        points[offset] = (i % GRID_EDGE) * SPACING;
+        points[offset + 1] = (i / GRID_EDGE) * SPACING;
+        points[offset + 2] = 1;
+        return offset + 3;
+    }
+
+    private static ByteBuffer toBuffer(float[] points) {
+        ByteBuffer xyz = ByteBuffer.allocateDirect(points.length * 4).order(
+                ByteOrder.LITTLE_ENDIAN);
+        xyz.asFloatBuffer().put(points);
+        return xyz;
+    }
+
+    private FloatBuffer filter(float[] points) {
+        return mFilter.filter(toBuffer(points), points.length / 3)
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+}
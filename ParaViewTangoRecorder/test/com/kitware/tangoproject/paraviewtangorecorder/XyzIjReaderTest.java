@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoproject.paraviewtangorecorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the positional reads of {@link XyzIjReader} on a file of frames
+ * standing for the descriptor of the service, and the reuse of its pool.
+ */
+public class XyzIjReaderTest {
+
+    private static final int POINTS_PER_FRAME = 100;
+    private static final int FRAME_COUNT = 3;
+    private static final int FRAME_SIZE = POINTS_PER_FRAME * 12;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FileInputStream mStream;
+    private XyzIjReader mReader;
+
+    @Before
+    public void setUp() throws IOException {
+        // Float i of frame f is f * 1000 + i
+        ByteBuffer frames = ByteBuffer.allocate(FRAME_COUNT * FRAME_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int f = 0; f < FRAME_COUNT; f++) {
+            for (int i = 0; i < POINTS_PER_FRAME * 3; i++) {
+                frames.putFloat(f * 1000 + i);
+            }
+        }
+        File file = mFolder.newFile("frames.xyz");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(frames.array());
+        } finally {
+            out.close();
+        }
+        mStream = new FileInputStream(file);
+        mReader = new XyzIjReader(POINTS_PER_FRAME, 1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mReader.close();
+        mStream.close();
+    }
+
+    @Test
+    public void readsTheFramesAtTheirOffsets() throws IOException {
+        // Out of order, the position of the descriptor is not used
+        int[] frames = new int[] { 2, 0, 1, 2 };
+        for (int f : frames) {
+            ByteBuffer points = mReader.read(mStream.getFD(),
+                    (long) f * FRAME_SIZE, POINTS_PER_FRAME);
+            assertEquals(0, points.position());
+            assertEquals(FRAME_SIZE, points.limit());
+            assertFrame(points, f, POINTS_PER_FRAME);
+            mReader.release(points);
+        }
+    }
+
+    @Test
+    public void readsIntoTheCallerBufferAtItsPosition() throws IOException {
+        ByteBuffer dst = ByteBuffer.allocateDirect(FRAME_SIZE + 24).order(
+                ByteOrder.LITTLE_ENDIAN);
+        dst.position(24);
+        assertEquals(POINTS_PER_FRAME, mReader.read(mStream.getFD(),
+                FRAME_SIZE, POINTS_PER_FRAME, dst));
+        assertEquals(FRAME_SIZE + 24, dst.position());
+        dst.position(24);
+        assertFrame(dst.slice().order(ByteOrder.LITTLE_ENDIAN), 1,
+                POINTS_PER_FRAME);
+    }
+
+    @Test
+    public void skipsThePointsPastTheRoomLeft() throws IOException {
+        ByteBuffer dst = ByteBuffer.allocateDirect(10 * 12 + 5).order(
+                ByteOrder.LITTLE_ENDIAN);
+        assertEquals(10, mReader.read(mStream.getFD(), 2 * FRAME_SIZE,
+                POINTS_PER_FRAME, dst));
+        assertEquals(10 * 12, dst.position());
+        dst.flip();
+        assertFrame(dst, 2, 10);
+        // Nor more than the largest frame
+        ByteBuffer large = ByteBuffer.allocateDirect(2 * FRAME_SIZE);
+        assertEquals(POINTS_PER_FRAME, mReader.read(mStream.getFD(), 0,
+                2 * POINTS_PER_FRAME, large));
+    }
+
+    @Test
+    public void failsPastTheEndOfTheFile() throws IOException {
+        ByteBuffer pooled = mReader.acquire();
+        mReader.release(pooled);
+        try {
+            mReader.read(mStream.getFD(), 2 * FRAME_SIZE + 12,
+                    POINTS_PER_FRAME);
+            fail("The last frame is one point short");
+        } catch (EOFException e) {
+            // Expected
+        }
+        // The buffer of the failed read went back to the pool
+        assertSame(pooled, mReader.acquire());
+    }
+
+    @Test
+    public void reusesTheBuffersOfThePool() throws IOException {
+        ByteBuffer first = mReader.read(mStream.getFD(), 0, POINTS_PER_FRAME);
+        // The pool is empty, a new buffer is made
+        ByteBuffer second = mReader.acquire();
+        assertNotSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(FRAME_SIZE, second.capacity());
+        mReader.release(second);
+        mReader.release(first);
+        // Last released, first reused, and cleared
+        ByteBuffer reused = mReader.acquire();
+        assertSame(first, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertSame(second, mReader.acquire());
+    }
+
+    /**
+     * Checks the points of a frame from the position of the buffer.
+     */
+    private static void assertFrame(ByteBuffer points, int frame,
+            int pointCount) {
+        int start = points.position();
+        for (int i = 0; i < pointCount * 3; i++) {
+            assertEquals(frame * 1000 + i,
+                    points.getFloat(start + i * 4), 0);
+        }
+    }
+}
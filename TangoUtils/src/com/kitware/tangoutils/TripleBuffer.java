@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoutils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands buffers from one producer thread to one consumer thread without
+ * locks or copies, the consumer always getting the newest complete one.
+ *
+ * Of the three buffers, the producer fills the back one and the consumer
+ * reads the front one; {@link #publish()} swaps the back buffer with the
+ * middle one and {@link #update()} swaps the middle one with the front one
+ * when it was published since. Each swap is a single atomic exchange, so
+ * neither side ever waits for the other, and a frame the consumer had no
+ * time to take is simply replaced by the next one.
+ *
+ * Nothing here depends on OpenGL.
+ *
+ * @param <T>
+ *            the type of the buffers.
+ */
+public class TripleBuffer<T> {
+
+    // Set in the middle index when the producer published since the last
+    // update of the consumer
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final Object[] mBuffers;
+    private final AtomicInteger mMiddle;
+    // Only used by the producer
+    private int mBack;
+    // Only used by the consumer
+    private int mFront;
+    private volatile long mPublishedCount;
+    private volatile long mUpdatedCount;
+
+    /**
+     * @param back
+     *            the buffer first filled by the producer.
+     * @param middle
+     *            the buffer waiting between them.
+     * @param front
+     *            the buffer first read by the consumer, before anything is
+     *            published.
+     */
+    public TripleBuffer(T back, T middle, T front) {
+        mBuffers = new Object[] { back, middle, front };
+        mBack = 0;
+        mMiddle = new AtomicInteger(1);
+        mFront = 2;
+    }
+
+    // Producer side
+
+    /**
+     * @return the buffer the producer fills, owned by it until
+     *         {@link #publish()}.
+     */
+    @SuppressWarnings("unchecked")
+    public T getBack() {
+        return (T) mBuffers[mBack];
+    }
+
+    /**
+     * Hands the back buffer to the consumer, replacing the previous one if
+     * it was not taken, and gives the producer a new back buffer.
+     */
+    public void publish() {
+        // The exchange makes the content of the buffer visible to the
+        // consumer along with its index
+        mBack = mMiddle.getAndSet(mBack | FRESH) & INDEX_MASK;
+        mPublishedCount++;
+    }
+
+    // Consumer side
+
+    /**
+     * Takes the newest published buffer, if any, as the front buffer.
+     *
+     * @return true if the front buffer changed.
+     */
+    public boolean update() {
+        if ((mMiddle.get() & FRESH) == 0) {
+            return false;
+        }
+        mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        mUpdatedCount++;
+        return true;
+    }
+
+    /**
+     * @return the buffer the consumer reads, owned by it until the next
+     *         {@link #update()}.
+     */
+    @SuppressWarnings("unchecked")
+    public T getFront() {
+        return (T) mBuffers[mFront];
+    }
+
+    /**
+     * @return the number of buffers published.
+     */
+    public long getPublishedCount() {
+        return mPublishedCount;
+    }
+
+    /**
+     * @return the number of buffers the consumer took, the others having
+     *         been replaced before it looked.
+     */
+    public long getUpdatedCount() {
+        return mUpdatedCount;
+    }
+}
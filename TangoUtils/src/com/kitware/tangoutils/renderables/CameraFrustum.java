@@ -18,7 +18,6 @@ package com.kitware.tangoutils.renderables;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 
 import android.opengl.GLES20;
 import android.opengl.Matrix;
@@ -41,7 +40,7 @@ public class CameraFrustum extends Renderable {
             + "void main() {"
             + "gl_FragColor = vec4(0.8,0.5,0.8,1);" + "}";
 
-    private FloatBuffer mVertexBuffer, mColorBuffer;
+    private final VertexBuffer mVertexBuffer, mColorBuffer;
 
     private float mVertices[] = { 0.0f, 0.0f, 0.0f, -0.4f, 0.3f, -0.5f,
 
@@ -80,37 +79,42 @@ public class CameraFrustum extends Renderable {
     private int mMVPMatrixHandle;
 
     public CameraFrustum() {
+        this(Gles20Api.INSTANCE);
+    }
+
+    public CameraFrustum(GlApi gl) {
+        super(gl);
         // Reset the model matrix to the identity
         Matrix.setIdentityM(getModelMatrix(), 0);
 
         // Load the vertices into a vertex buffer
         ByteBuffer byteBuf = ByteBuffer.allocateDirect(mVertices.length * 4);
         byteBuf.order(ByteOrder.nativeOrder());
-        mVertexBuffer = byteBuf.asFloatBuffer();
-        mVertexBuffer.put(mVertices);
-        mVertexBuffer.position(0);
+        byteBuf.asFloatBuffer().put(mVertices);
+        mVertexBuffer = new VertexBuffer(gl);
+        mVertexBuffer.upload(byteBuf, byteBuf.capacity());
 
         // Load the colors into a color buffer
         ByteBuffer cByteBuff = ByteBuffer.allocateDirect(mColors.length * 4);
         cByteBuff.order(ByteOrder.nativeOrder());
-        mColorBuffer = cByteBuff.asFloatBuffer();
-        mColorBuffer.put(mColors);
-        mColorBuffer.position(0);
-
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                sVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                sFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        cByteBuff.asFloatBuffer().put(mColors);
+        mColorBuffer = new VertexBuffer(gl);
+        mColorBuffer.upload(cByteBuff, cByteBuff.capacity());
+
+        // Get the program, shared with the other instances, and its locations
+        ShaderProgram program = RenderUtils.getProgram(gl, sVertexShaderCode,
+                sFragmentShaderCode, new String[] { "vPosition", "aColor" },
+                new String[] { "uMVPMatrix" });
+        mProgram = program.getProgram();
+        mPosHandle = program.getAttribLocation("vPosition");
+        mColorHandle = program.getAttribLocation("aColor");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
     }
 
     @Override
     public void draw(float[] viewMatrix, float[] projectionMatrix) {
-        GLES20.glUseProgram(mProgram);
+        GlApi gl = getGl();
+        gl.glUseProgram(mProgram);
         // updateViewMatrix(viewMatrix);
 
         // Compose the model, view, and projection matrices into a single mvp
@@ -118,21 +122,14 @@ public class CameraFrustum extends Renderable {
         updateMvpMatrix(viewMatrix, projectionMatrix);
 
         // Load vertex attribute data
-        mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-        GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, 0, mVertexBuffer);
-        GLES20.glEnableVertexAttribArray(mPosHandle);
+        mVertexBuffer.setAttribute(mPosHandle, COORDS_PER_VERTEX);
 
         // Load color attribute data
-        mColorHandle = GLES20.glGetAttribLocation(mProgram, "aColor");
-        GLES20.glVertexAttribPointer(mColorHandle, 4, GLES20.GL_FLOAT, false,
-                0, mColorBuffer);
-        GLES20.glEnableVertexAttribArray(mColorHandle);
+        mColorBuffer.setAttribute(mColorHandle, 4);
 
         // Draw the CameraFrustum
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
-        GLES20.glLineWidth(1);
-        GLES20.glDrawArrays(GLES20.GL_LINES, 0, 16);
+        gl.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
+        gl.glLineWidth(1);
+        gl.glDrawArrays(GLES20.GL_LINES, 0, 16);
     }
 }
\ No newline at end of file
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoutils.renderables;
+
+import java.nio.Buffer;
+import java.util.HashMap;
+
+import android.opengl.GLES20;
+
+/**
+ * {@link GlApi} drawing nothing, but counting what a real context would be
+ * asked to do: draw calls and vertices, state changes, uniform uploads,
+ * location lookups and the bytes of vertex data sent to the GPU.
+ *
+ * Vertex arrays given from client memory are sent again at each draw call,
+ * so their bytes are counted there, for the vertices drawn and the
+ * attributes of the program in use. The bytes given to buffer objects are
+ * counted when they are given. Names and locations are made up, the
+ * same location being returned for the same name of the same program.
+ * Vertex attribute calls with a location out of range, such as the -1 of an
+ * attribute the shaders do not use, change nothing, as in GL where they
+ * raise GL_INVALID_VALUE, and are counted apart.
+ * Call {@link #endFrame()} after each frame to get averages per frame.
+ */
+public class CountingGlApi implements GlApi {
+
+    private static final int MAX_VERTEX_ATTRIBS = 16;
+
+    private final HashMap<String, Integer> mLocations;
+    // Attribute locations looked up in each program, one bit each
+    private final HashMap<Integer, Integer> mProgramAttribs;
+    private int mNextName;
+    private int mCurrentProgram;
+    private final boolean[] mAttribEnabled;
+    private final int[] mAttribStrides;
+    private final boolean[] mAttribClient;
+
+    private long mFrameCount;
+    private long mCallCount;
+    private long mDrawCallCount;
+    private long mVertexCount;
+    private long mStateChangeCount;
+    private long mRedundantProgramCount;
+    private long mUniformUploadCount;
+    private long mLocationLookupCount;
+    private long mCompileCount;
+    private long mBufferUploadCount;
+    private long mUploadedBytes;
+    private long mInvalidCallCount;
+
+    public CountingGlApi() {
+        mLocations = new HashMap<String, Integer>();
+        mProgramAttribs = new HashMap<Integer, Integer>();
+        mNextName = 1;
+        mAttribEnabled = new boolean[MAX_VERTEX_ATTRIBS];
+        mAttribStrides = new int[MAX_VERTEX_ATTRIBS];
+        mAttribClient = new boolean[MAX_VERTEX_ATTRIBS];
+    }
+
+    /**
+     * Marks the end of a frame, for the averages per frame.
+     */
+    public void endFrame() {
+        mFrameCount++;
+    }
+
+    /**
+     * Clears the counters, the made up names and the state are kept.
+     */
+    public void reset() {
+        mFrameCount = 0;
+        mCallCount = 0;
+        mDrawCallCount = 0;
+        mVertexCount = 0;
+        mStateChangeCount = 0;
+        mRedundantProgramCount = 0;
+        mUniformUploadCount = 0;
+        mLocationLookupCount = 0;
+        mCompileCount = 0;
+        mBufferUploadCount = 0;
+        mUploadedBytes = 0;
+        mInvalidCallCount = 0;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getCallCount() {
+        return mCallCount;
+    }
+
+    public long getDrawCallCount() {
+        return mDrawCallCount;
+    }
+
+    public long getVertexCount() {
+        return mVertexCount;
+    }
+
+    /**
+     * @return the number of calls changing the state of the context:
+     *         program, capabilities, line width, viewport, clear color and
+     *         vertex attributes.
+     */
+    public long getStateChangeCount() {
+        return mStateChangeCount;
+    }
+
+    /**
+     * @return the number of glUseProgram calls with the program already in
+     *         use.
+     */
+    public long getRedundantProgramCount() {
+        return mRedundantProgramCount;
+    }
+
+    public long getUniformUploadCount() {
+        return mUniformUploadCount;
+    }
+
+    public long getLocationLookupCount() {
+        return mLocationLookupCount;
+    }
+
+    public long getCompileCount() {
+        return mCompileCount;
+    }
+
+    /**
+     * @return the number of glBufferData and glBufferSubData calls.
+     */
+    public long getBufferUploadCount() {
+        return mBufferUploadCount;
+    }
+
+    /**
+     * @return the bytes of vertex data sent to the GPU.
+     */
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    /**
+     * @return the number of vertex attribute calls with a location out of
+     *         range, ignored.
+     */
+    public long getInvalidCallCount() {
+        return mInvalidCallCount;
+    }
+
+    public String getStatistics() {
+        double frames = Math.max(1, mFrameCount);
+        return String.format("%d frames, per frame: %.1f calls, %.1f draws, "
+                + "%.0f vertices, %.1f state changes (%.1f redundant "
+                + "programs), %.1f uniforms, %.1f lookups, %.1f buffer "
+                + "uploads, %.0f bytes uploaded; %d shaders compiled",
+                mFrameCount, mCallCount / frames, mDrawCallCount / frames,
+                mVertexCount / frames, mStateChangeCount / frames,
+                mRedundantProgramCount / frames, mUniformUploadCount / frames,
+                mLocationLookupCount / frames, mBufferUploadCount / frames,
+                mUploadedBytes / frames, mCompileCount);
+    }
+
+    private static int typeSize(int type) {
+        switch (type) {
+        case GLES20.GL_BYTE:
+        case GLES20.GL_UNSIGNED_BYTE:
+            return 1;
+        case GLES20.GL_SHORT:
+        case GLES20.GL_UNSIGNED_SHORT:
+            return 2;
+        default:
+            return 4;
+        }
+    }
+
+    private void stateChange() {
+        mCallCount++;
+        mStateChangeCount++;
+    }
+
+    /**
+     * Counts the call if the index is out of range.
+     *
+     * @return false if the index is out of range.
+     */
+    private boolean isAttribIndex(int index) {
+        if (index >= 0 && index < MAX_VERTEX_ATTRIBS) {
+            return true;
+        }
+        mCallCount++;
+        mInvalidCallCount++;
+        return false;
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        mCallCount++;
+        return mNextName++;
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        mCallCount++;
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        mCallCount++;
+        mCompileCount++;
+    }
+
+    /**
+     * Every shader compiles and every program links.
+     */
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        mCallCount++;
+        params[offset] = GLES20.GL_TRUE;
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        mCallCount++;
+        return "";
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        mCallCount++;
+    }
+
+    @Override
+    public int glCreateProgram() {
+        mCallCount++;
+        return mNextName++;
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        mCallCount++;
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        mCallCount++;
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params,
+            int offset) {
+        mCallCount++;
+        params[offset] = GLES20.GL_TRUE;
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        mCallCount++;
+        return "";
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        stateChange();
+        if (program == mCurrentProgram) {
+            mRedundantProgramCount++;
+        }
+        mCurrentProgram = program;
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        mCallCount++;
+        mLocationLookupCount++;
+        String key = "attribute " + program + " " + name;
+        Integer location = mLocations.get(key);
+        if (location == null) {
+            int attribs = programAttribs(program);
+            location = Integer.bitCount(attribs);
+            mLocations.put(key, location);
+            mProgramAttribs.put(program, attribs | 1 << location);
+        }
+        return location;
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        mCallCount++;
+        mLocationLookupCount++;
+        String key = "uniform " + program + " " + name;
+        Integer location = mLocations.get(key);
+        if (location == null) {
+            location = mLocations.size();
+            mLocations.put(key, location);
+        }
+        return location;
+    }
+
+    private int programAttribs(int program) {
+        Integer attribs = mProgramAttribs.get(program);
+        return attribs != null ? attribs : 0;
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        if (!isAttribIndex(index)) {
+            return;
+        }
+        stateChange();
+        mAttribEnabled[index] = true;
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type,
+            boolean normalized, int stride, Buffer pointer) {
+        if (!isAttribIndex(index)) {
+            return;
+        }
+        stateChange();
+        mAttribStrides[index] = stride != 0 ? stride : size * typeSize(type);
+        mAttribClient[index] = pointer != null;
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type,
+            boolean normalized, int stride, int offset) {
+        if (!isAttribIndex(index)) {
+            return;
+        }
+        stateChange();
+        mAttribStrides[index] = stride != 0 ? stride : size * typeSize(type);
+        mAttribClient[index] = false;
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        mCallCount++;
+        for (int i = 0; i < n; i++) {
+            buffers[offset + i] = mNextName++;
+        }
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        mCallCount++;
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        stateChange();
+    }
+
+    /**
+     * Counts the bytes of the data, none when the storage is only
+     * allocated.
+     */
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        mCallCount++;
+        mBufferUploadCount++;
+        if (data != null) {
+            mUploadedBytes += size;
+        }
+    }
+
+    @Override
+    public void glBufferSubData(int target, int offset, int size, Buffer data) {
+        mCallCount++;
+        mBufferUploadCount++;
+        mUploadedBytes += size;
+    }
+
+    @Override
+    public void glUniform4f(int location, float x, float y, float z, float w) {
+        mCallCount++;
+        mUniformUploadCount++;
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose,
+            float[] value, int offset) {
+        mCallCount++;
+        mUniformUploadCount++;
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        mCallCount++;
+        mDrawCallCount++;
+        mVertexCount += count;
+        int attribs = programAttribs(mCurrentProgram);
+        for (int i = 0; i < MAX_VERTEX_ATTRIBS; i++) {
+            if ((attribs & 1 << i) != 0 && mAttribEnabled[i]
+                    && mAttribClient[i]) {
+                mUploadedBytes += (long) (first + count) * mAttribStrides[i];
+            }
+        }
+    }
+
+    @Override
+    public void glLineWidth(float width) {
+        stateChange();
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        stateChange();
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        stateChange();
+    }
+
+    @Override
+    public void glClear(int mask) {
+        mCallCount++;
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        stateChange();
+    }
+}
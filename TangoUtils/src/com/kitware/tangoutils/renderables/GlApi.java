@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.kitware.tangoutils.renderables;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES 2.0 calls made by the renderables, so that they can be
+ * drawn without a GPU. {@link Gles20Api} calls the GLES20 functions, while
+ * {@link CountingGlApi} records the calls to put numbers on the render path
+ * in plain JVM tests and benchmarks.
+ *
+ * The methods take the same arguments as their GLES20 counterparts.
+ */
+public interface GlApi {
+
+    int glCreateShader(int type);
+
+    void glShaderSource(int shader, String string);
+
+    void glCompileShader(int shader);
+
+    void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+    String glGetShaderInfoLog(int shader);
+
+    void glDeleteShader(int shader);
+
+    int glCreateProgram();
+
+    void glAttachShader(int program, int shader);
+
+    void glLinkProgram(int program);
+
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+
+    String glGetProgramInfoLog(int program);
+
+    void glUseProgram(int program);
+
+    int glGetAttribLocation(int program, String name);
+
+    int glGetUniformLocation(int program, String name);
+
+    void glEnableVertexAttribArray(int index);
+
+    void glVertexAttribPointer(int index, int size, int type,
+            boolean normalized, int stride, Buffer pointer);
+
+    void glVertexAttribPointer(int index, int size, int type,
+            boolean normalized, int stride, int offset);
+
+    void glGenBuffers(int n, int[] buffers, int offset);
+
+    void glDeleteBuffers(int n, int[] buffers, int offset);
+
+    void glBindBuffer(int target, int buffer);
+
+    void glBufferData(int target, int size, Buffer data, int usage);
+
+    void glBufferSubData(int target, int offset, int size, Buffer data);
+
+    void glUniform4f(int location, float x, float y, float z, float w);
+
+    void glUniformMatrix4fv(int location, int count, boolean transpose,
+            float[] value, int offset);
+
+    void glDrawArrays(int mode, int first, int count);
+
+    void glLineWidth(float width);
+
+    void glEnable(int cap);
+
+    void glClearColor(float red, float green, float blue, float alpha);
+
+    void glClear(int mask);
+
+    void glViewport(int x, int y, int width, int height);
+}
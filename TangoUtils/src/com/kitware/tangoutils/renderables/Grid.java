@@ -42,65 +42,69 @@ public class Grid extends Renderable {
             + "void main() {"
             + " gl_FragColor = vec4(0.8,0.8,0.8,1.0);" + "}";
 
-    private FloatBuffer mVertexBuffer;
+    private static final int VERTEX_COUNT = (GRID_RANGE_M * 2 + 1) * 4;
+
+    private final VertexBuffer mVertexBuffer;
     private final int mProgram;
     private int mPosHandle;
     private int mMVPMatrixHandle;
 
     public Grid() {
+        this(Gles20Api.INSTANCE);
+    }
+
+    public Grid(GlApi gl) {
+        super(gl);
         // Reset the model matrix to the identity
         Matrix.setIdentityM(getModelMatrix(), 0);
 
-        // Allocate a vertex buffer
-        ByteBuffer vertexByteBuffer = ByteBuffer
-                .allocateDirect((GRID_RANGE_M * 2 + 1) * 4 * 3
-                        * BYTES_PER_FLOAT);
+        // Fill a temporary vertex buffer
+        ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(VERTEX_COUNT
+                * COORDS_PER_VERTEX * BYTES_PER_FLOAT);
         vertexByteBuffer.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vertexByteBuffer.asFloatBuffer();
+        FloatBuffer vertices = vertexByteBuffer.asFloatBuffer();
 
         // Load the vertices for the z-axis grid lines into the vertex buffer
         for (int x = -GRID_RANGE_M; x <= GRID_RANGE_M; x++) {
-            mVertexBuffer.put(new float[] { x, -1.3f, (float) -GRID_RANGE_M });
-            mVertexBuffer.put(new float[] { x, -1.3f, (float) GRID_RANGE_M });
+            vertices.put(x).put(-1.3f).put(-GRID_RANGE_M);
+            vertices.put(x).put(-1.3f).put(GRID_RANGE_M);
         }
 
         // Load the vertices for the x-axis grid lines into the vertex buffer
         for (int z = -GRID_RANGE_M; z <= GRID_RANGE_M; z++) {
-            mVertexBuffer.put(new float[] { (float) -GRID_RANGE_M, -1.3f, z });
-            mVertexBuffer.put(new float[] { (float) GRID_RANGE_M, -1.3f, z });
+            vertices.put(-GRID_RANGE_M).put(-1.3f).put(z);
+            vertices.put(GRID_RANGE_M).put(-1.3f).put(z);
         }
 
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                sVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                sFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        // The grid never changes, send it to the GPU once
+        mVertexBuffer = new VertexBuffer(gl);
+        mVertexBuffer.upload(vertices, vertexByteBuffer.capacity());
+
+        // Get the program, shared with the other instances, and its locations
+        ShaderProgram program = RenderUtils.getProgram(gl, sVertexShaderCode,
+                sFragmentShaderCode, new String[] { "vPosition" },
+                new String[] { "uMVPMatrix" });
+        mProgram = program.getProgram();
+        mPosHandle = program.getAttribLocation("vPosition");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
     }
 
     @Override
     public void draw(float[] viewMatrix, float[] projectionMatrix) {
-        GLES20.glUseProgram(mProgram);
-        mVertexBuffer.position(0);
+        GlApi gl = getGl();
+        gl.glUseProgram(mProgram);
 
         // Compose the model, view, and projection matrices into a single m-v-p
         // matrix
         updateMvpMatrix(viewMatrix, projectionMatrix);
 
         // Load vertex attribute data
-        mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-        GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, 0, mVertexBuffer);
-        GLES20.glEnableVertexAttribArray(mPosHandle);
+        mVertexBuffer.setAttribute(mPosHandle, COORDS_PER_VERTEX);
 
         // Draw the Grid
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
-        GLES20.glLineWidth(1);
-        GLES20.glDrawArrays(GLES20.GL_LINES, 0, (GRID_RANGE_M * 2 + 1) * 4);
+        gl.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
+        gl.glLineWidth(1);
+        gl.glDrawArrays(GLES20.GL_LINES, 0, VERTEX_COUNT);
     }
 
 }
\ No newline at end of file
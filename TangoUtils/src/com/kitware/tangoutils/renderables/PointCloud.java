@@ -23,9 +23,17 @@ import java.nio.FloatBuffer;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 
+import com.kitware.tangoutils.TripleBuffer;
+
 /**
  * {@link Renderable} OpenGL showing a PointCloud obtained from Tango XyzIj
  * data. The point count can vary over as the information is updated.
+ *
+ * The points go through a {@link TripleBuffer}: the depth callback fills a
+ * back buffer and publishes it, and {@link #draw(float[], float[])} picks
+ * the newest published one, so the GL thread never waits for a frame being
+ * copied. A new frame is streamed to a {@link VertexBuffer} once, the draws
+ * in between reusing it. The points must be updated from a single thread.
  */
 public class PointCloud extends Renderable {
 
@@ -43,59 +51,114 @@ public class PointCloud extends Renderable {
 
     private static final int BYTES_PER_FLOAT = 4;
     private static final int POINT_TO_XYZ = 3;
-    private FloatBuffer mVertexBuffer;
+    private final TripleBuffer<Frame> mFrames;
+    private final VertexBuffer mVbo;
     private final int mProgram;
     private int mPosHandle;
     private int mMVPMatrixHandle;
-    private int mPointCount;
-    private float mAverageZ;
+    // Of the last frame published
+    private volatile int mPointCount;
+    private volatile float mAverageZ;
+
+    /**
+     * Points of a frame, in one of the three buffers.
+     */
+    private static class Frame {
+        final ByteBuffer mBytes;
+        final FloatBuffer mVertices;
+        int mPointCount;
+
+        Frame(int maxDepthPoints) {
+            mBytes = ByteBuffer.allocateDirect(
+                    maxDepthPoints * BYTES_PER_FLOAT * POINT_TO_XYZ).order(
+                    ByteOrder.nativeOrder());
+            mVertices = mBytes.asFloatBuffer();
+        }
+
+        float averageZ() {
+            float totalZ = 0;
+            for (int i = 2; i < mPointCount * POINT_TO_XYZ; i += POINT_TO_XYZ) {
+                totalZ += mVertices.get(i);
+            }
+            return mPointCount == 0 ? 0 : totalZ / mPointCount;
+        }
+    }
 
     public PointCloud(int maxDepthPoints) {
+        this(Gles20Api.INSTANCE, maxDepthPoints);
+    }
+
+    public PointCloud(GlApi gl, int maxDepthPoints) {
+        super(gl);
         mAverageZ = 0;
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                sVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                sFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        ShaderProgram program = RenderUtils.getProgram(gl, sVertexShaderCode,
+                sFragmentShaderCode, new String[] { "vPosition" },
+                new String[] { "uMVPMatrix" });
+        mProgram = program.getProgram();
+        mPosHandle = program.getAttribLocation("vPosition");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
         Matrix.setIdentityM(getModelMatrix(), 0);
-        mVertexBuffer = ByteBuffer
-                .allocateDirect(maxDepthPoints * BYTES_PER_FLOAT * POINT_TO_XYZ)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mFrames = new TripleBuffer<Frame>(new Frame(maxDepthPoints),
+                new Frame(maxDepthPoints), new Frame(maxDepthPoints));
+        mVbo = new VertexBuffer(gl);
+    }
+
+    /**
+     * Copies the points of a frame without allocating.
+     *
+     * @param points
+     *            the xyz floats in native order, as read from the Tango
+     *            service, from their position, which is left unchanged.
+     */
+    public void UpdatePoints(ByteBuffer points, int pointCount) {
+        Frame frame = mFrames.getBack();
+        int position = points.position();
+        int limit = points.limit();
+        pointCount = Math.min(pointCount, frame.mVertices.capacity()
+                / POINT_TO_XYZ);
+        points.limit(position + pointCount * POINT_TO_XYZ * BYTES_PER_FLOAT);
+        frame.mBytes.clear();
+        frame.mBytes.put(points);
+        points.limit(limit);
+        points.position(position);
+        publish(frame, pointCount);
     }
 
-    public synchronized void UpdatePoints(byte[] byteArray, int pointCount) {
-        FloatBuffer mPointCloudFloatBuffer;
-        mPointCloudFloatBuffer = ByteBuffer.wrap(byteArray)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    public void UpdatePoints(byte[] byteArray, int pointCount) {
+        Frame frame = mFrames.getBack();
+        pointCount = Math.min(Math.min(pointCount, byteArray.length
+                / (POINT_TO_XYZ * BYTES_PER_FLOAT)), frame.mVertices.capacity()
+                / POINT_TO_XYZ);
+        frame.mBytes.clear();
+        frame.mBytes.put(byteArray, 0, pointCount * POINT_TO_XYZ
+                * BYTES_PER_FLOAT);
+        publish(frame, pointCount);
+    }
+
+    private void publish(Frame frame, int pointCount) {
+        frame.mPointCount = pointCount;
+        float averageZ = frame.averageZ();
+        mFrames.publish();
         mPointCount = pointCount;
-        mVertexBuffer.clear();
-        mVertexBuffer.position(0);
-        mVertexBuffer.put(mPointCloudFloatBuffer);
-        float totalZ = 0;
-        for (int i = 0; i < mPointCloudFloatBuffer.capacity() - 3; i = i + 3) {
-            totalZ = totalZ + mPointCloudFloatBuffer.get(i + 2);
-        }
-        mAverageZ = totalZ / mPointCount;
+        mAverageZ = averageZ;
     }
 
     @Override
-    public synchronized void draw(float[] viewMatrix, float[] projectionMatrix) {
-        if (mPointCount > 0) {
-            mVertexBuffer.position(0);
-            GLES20.glUseProgram(mProgram);
+    public void draw(float[] viewMatrix, float[] projectionMatrix) {
+        GlApi gl = getGl();
+        boolean fresh = mFrames.update();
+        Frame frame = mFrames.getFront();
+        if (fresh) {
+            mVbo.stream(frame.mBytes, frame.mPointCount * POINT_TO_XYZ
+                    * BYTES_PER_FLOAT);
+        }
+        if (frame.mPointCount > 0) {
+            gl.glUseProgram(mProgram);
             updateMvpMatrix(viewMatrix, projectionMatrix);
-            mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-            GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
-                    GLES20.GL_FLOAT, false, 0, mVertexBuffer);
-            GLES20.glEnableVertexAttribArray(mPosHandle);
-            mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram,
-                    "uMVPMatrix");
-            GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false,
+            mVbo.setAttribute(mPosHandle, COORDS_PER_VERTEX);
+            gl.glUniformMatrix4fv(mMVPMatrixHandle, 1, false,
                     getMvpMatrix(), 0);
-            GLES20.glDrawArrays(GLES20.GL_POINTS, 0, mPointCount);
+            gl.glDrawArrays(GLES20.GL_POINTS, 0, frame.mPointCount);
         }
     }
 
@@ -16,13 +16,26 @@
 
 package com.kitware.tangoutils.renderables;
 
+import java.util.HashMap;
+
 import android.opengl.GLES20;
 
 /**
  * Static functions used by Renderer classes in Tango Java samples.
+ *
+ * The programs are kept in a registry per GL context, so that the
+ * renderables drawn with the same shaders share one program, compiled and
+ * linked once, see
+ * {@link #getProgram(GlApi, String, String, String[], String[])}.
  */
 public class RenderUtils {
 
+    // Compiled shaders and linked programs of each context, by source
+    private static final HashMap<GlApi, HashMap<String, Integer>> sShaders =
+            new HashMap<GlApi, HashMap<String, Integer>>();
+    private static final HashMap<GlApi, HashMap<String, ShaderProgram>> sPrograms =
+            new HashMap<GlApi, HashMap<String, ShaderProgram>>();
+
     /**
      * Creates a vertex or fragment shader.
      * 
@@ -31,16 +44,104 @@ public class RenderUtils {
      * @param shaderCode
      *            GLSL code for the shader as a String
      * @return a compiled shader.
+     * @throws RuntimeException
+     *             with the info log if the shader does not compile.
      */
     public static int loadShader(int type, String shaderCode) {
+        return loadShader(Gles20Api.INSTANCE, type, shaderCode);
+    }
+
+    /**
+     * Creates a vertex or fragment shader with the given OpenGL calls.
+     *
+     * @see #loadShader(int, String)
+     */
+    public static int loadShader(GlApi gl, int type, String shaderCode) {
         // Create a shader of the correct type
-        int shader = GLES20.glCreateShader(type);
+        int shader = gl.glCreateShader(type);
 
         // Compile the shader from source code
-        GLES20.glShaderSource(shader, shaderCode);
-        GLES20.glCompileShader(shader);
+        gl.glShaderSource(shader, shaderCode);
+        gl.glCompileShader(shader);
+
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = gl.glGetShaderInfoLog(shader);
+            gl.glDeleteShader(shader);
+            throw new RuntimeException("Could not compile the "
+                    + (type == GLES20.GL_VERTEX_SHADER ? "vertex" : "fragment")
+                    + " shader: " + log);
+        }
+        return shader;
+    }
+
+    /**
+     * Gets the program made of two shaders, compiling and linking it the
+     * first time it is asked for in the context. The shaders themselves are
+     * compiled once and shared by all the programs using them.
+     *
+     * @param attributes
+     *            the attributes whose location is looked up.
+     * @param uniforms
+     *            the uniforms whose location is looked up.
+     * @throws RuntimeException
+     *             with the info log if a shader does not compile or the
+     *             program does not link.
+     */
+    public static synchronized ShaderProgram getProgram(GlApi gl,
+            String vertexShaderCode, String fragmentShaderCode,
+            String[] attributes, String[] uniforms) {
+        HashMap<String, ShaderProgram> programs = sPrograms.get(gl);
+        if (programs == null) {
+            programs = new HashMap<String, ShaderProgram>();
+            sPrograms.put(gl, programs);
+        }
+        String key = vertexShaderCode + '\0' + fragmentShaderCode;
+        ShaderProgram program = programs.get(key);
+        if (program == null) {
+            int name = gl.glCreateProgram();
+            gl.glAttachShader(name, getShader(gl, GLES20.GL_VERTEX_SHADER,
+                    vertexShaderCode));
+            gl.glAttachShader(name, getShader(gl, GLES20.GL_FRAGMENT_SHADER,
+                    fragmentShaderCode));
+            gl.glLinkProgram(name);
+            int[] status = new int[1];
+            gl.glGetProgramiv(name, GLES20.GL_LINK_STATUS, status, 0);
+            if (status[0] != GLES20.GL_TRUE) {
+                throw new RuntimeException("Could not link the program: "
+                        + gl.glGetProgramInfoLog(name));
+            }
+            program = new ShaderProgram(name);
+            programs.put(key, program);
+        }
+        program.lookUp(gl, attributes, uniforms);
+        return program;
+    }
 
+    private static int getShader(GlApi gl, int type, String shaderCode) {
+        HashMap<String, Integer> shaders = sShaders.get(gl);
+        if (shaders == null) {
+            shaders = new HashMap<String, Integer>();
+            sShaders.put(gl, shaders);
+        }
+        String key = type + ":" + shaderCode;
+        Integer shader = shaders.get(key);
+        if (shader == null) {
+            shader = loadShader(gl, type, shaderCode);
+            shaders.put(key, shader);
+        }
         return shader;
     }
 
-}
+    /**
+     * Forgets the shaders and programs of a context, to call when it is
+     * created again, for instance from onSurfaceCreated. They are not
+     * deleted, the context they belonged to being gone.
+     */
+    public static synchronized void releasePrograms(GlApi gl) {
+        sShaders.remove(gl);
+        sPrograms.remove(gl);
+    }
+
+}
\ No newline at end of file
@@ -24,10 +24,31 @@ import android.opengl.Matrix;
  */
 public abstract class Renderable {
 
+    private final GlApi mGl;
     private float[] mModelMatrix = new float[16];
     private float[] mMvMatrix = new float[16];
     private float[] mMvpMatrix = new float[16];
 
+    /**
+     * Draws with the GLES20 functions.
+     */
+    protected Renderable() {
+        this(Gles20Api.INSTANCE);
+    }
+
+    /**
+     * @param gl
+     *            the OpenGL calls to draw with, for instance a
+     *            {@link CountingGlApi} to draw without a GPU.
+     */
+    protected Renderable(GlApi gl) {
+        mGl = gl;
+    }
+
+    protected GlApi getGl() {
+        return mGl;
+    }
+
     /**
      * Applies the view and projection matrices and draws the Renderable.
      * 
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoutils.renderables;
+
+import java.util.HashMap;
+
+/**
+ * A linked program with the locations of its attributes and uniforms,
+ * looked up once when the program is asked for. Made and shared by
+ * {@link RenderUtils#getProgram(GlApi, String, String, String[], String[])},
+ * the renderables keep the locations they need in their fields.
+ */
+public class ShaderProgram {
+
+    private final int mProgram;
+    private final HashMap<String, Integer> mAttribLocations;
+    private final HashMap<String, Integer> mUniformLocations;
+
+    ShaderProgram(int program) {
+        mProgram = program;
+        mAttribLocations = new HashMap<String, Integer>();
+        mUniformLocations = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Looks up the locations not known yet.
+     */
+    void lookUp(GlApi gl, String[] attributes, String[] uniforms) {
+        for (String name : attributes) {
+            if (!mAttribLocations.containsKey(name)) {
+                mAttribLocations.put(name,
+                        gl.glGetAttribLocation(mProgram, name));
+            }
+        }
+        for (String name : uniforms) {
+            if (!mUniformLocations.containsKey(name)) {
+                mUniformLocations.put(name,
+                        gl.glGetUniformLocation(mProgram, name));
+            }
+        }
+    }
+
+    /**
+     * @return the name of the program, for glUseProgram.
+     */
+    public int getProgram() {
+        return mProgram;
+    }
+
+    /**
+     * @return the location of an attribute, -1 if it is not used by the
+     *         shaders.
+     * @throws IllegalArgumentException
+     *             if the attribute was not named at link time.
+     */
+    public int getAttribLocation(String name) {
+        return location(mAttribLocations, name);
+    }
+
+    /**
+     * @return the location of a uniform, -1 if it is not used by the
+     *         shaders.
+     * @throws IllegalArgumentException
+     *             if the uniform was not named at link time.
+     */
+    public int getUniformLocation(String name) {
+        return location(mUniformLocations, name);
+    }
+
+    private static int location(HashMap<String, Integer> locations,
+            String name) {
+        Integer location = locations.get(name);
+        if (location == null) {
+            throw new IllegalArgumentException("No location looked up for "
+                    + name);
+        }
+        return location;
+    }
+}
@@ -48,6 +48,9 @@ public class Trajectory extends Renderable {
             + "varying vec4 vColor;" + "void main() {"
             + "gl_FragColor = vColor;" + "}";
     private FloatBuffer mVertexBuffer;
+    private final VertexBuffer mVbo;
+    // Set when the path changed since it was last sent to the GPU
+    private volatile boolean mDirty;
     private float[] mColor = { 0.22f, 0.28f, 0.67f, 1.0f };
     private final int mProgram;
     private int mPosHandle;
@@ -56,6 +59,11 @@ public class Trajectory extends Renderable {
     private int mLineWidth;
 
     public Trajectory(int lineWidth) {
+        this(Gles20Api.INSTANCE, lineWidth);
+    }
+
+    public Trajectory(GlApi gl, int lineWidth) {
+        super(gl);
         mLineWidth = lineWidth;
         // Reset the model matrix to the identity
         Matrix.setIdentityM(getModelMatrix(), 0);
@@ -65,20 +73,26 @@ public class Trajectory extends Renderable {
                 * BYTES_PER_FLOAT);
         vertexByteBuffer.order(ByteOrder.nativeOrder());
         mVertexBuffer = vertexByteBuffer.asFloatBuffer();
-
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                mVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                mFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        mVbo = new VertexBuffer(gl);
+
+        // Get the program, shared with the other instances, and its locations
+        ShaderProgram program = RenderUtils.getProgram(gl, mVertexShaderCode,
+                mFragmentShaderCode, new String[] { "vPosition" },
+                new String[] { "uMVPMatrix", "aColor" });
+        mProgram = program.getProgram();
+        mPosHandle = program.getAttribLocation("vPosition");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
+        mColorHandle = program.getUniformLocation("aColor");
     }
 
     // float[] color should contain only 4 elements.
     public Trajectory(int lineWidth, float[] color) {
+        this(Gles20Api.INSTANCE, lineWidth, color);
+    }
+
+    // float[] color should contain only 4 elements.
+    public Trajectory(GlApi gl, int lineWidth, float[] color) {
+        super(gl);
         mLineWidth = lineWidth;
         mColor = color;
         // Reset the model matrix to the identity
@@ -89,16 +103,16 @@ public class Trajectory extends Renderable {
                 * BYTES_PER_FLOAT);
         vertexByteBuffer.order(ByteOrder.nativeOrder());
         mVertexBuffer = vertexByteBuffer.asFloatBuffer();
-
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                mVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                mFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        mVbo = new VertexBuffer(gl);
+
+        // Get the program, shared with the other instances, and its locations
+        ShaderProgram program = RenderUtils.getProgram(gl, mVertexShaderCode,
+                mFragmentShaderCode, new String[] { "vPosition" },
+                new String[] { "uMVPMatrix", "aColor" });
+        mProgram = program.getProgram();
+        mPosHandle = program.getAttribLocation("vPosition");
+        mMVPMatrixHandle = program.getUniformLocation("uMVPMatrix");
+        mColorHandle = program.getUniformLocation("aColor");
     }
 
     public void updateTrajectory(float[] translation) {
@@ -126,6 +140,7 @@ public class Trajectory extends Renderable {
                     -translation[1] });
             mTrajectoryCount++;
         }
+        mDirty = true;
     }
 
     public void resetPath() {
@@ -140,6 +155,7 @@ public class Trajectory extends Renderable {
         mVertexBuffer.put(tail);
 
         mTrajectoryCount = pointsToGet / 3;
+        mDirty = true;
     }
 
     public void clearPath() {
@@ -147,31 +163,35 @@ public class Trajectory extends Renderable {
                 * BYTES_PER_FLOAT);
         vertexByteBuffer.order(ByteOrder.nativeOrder());
         mVertexBuffer = vertexByteBuffer.asFloatBuffer();
+        mDirty = true;
     }
 
     @Override
     public void draw(float[] viewMatrix, float[] projectionMatrix) {
-        GLES20.glUseProgram(mProgram);
-        mVertexBuffer.position(0);
+        GlApi gl = getGl();
+        gl.glUseProgram(mProgram);
 
         // Compose the model, view, and projection matrices into a single m-v-p
         // matrix
         updateMvpMatrix(viewMatrix, projectionMatrix);
 
+        // Send the path again only when it changed, clearing the flag first
+        // so that a point added meanwhile is sent at the next draw
+        if (mDirty) {
+            mDirty = false;
+            mVbo.stream(mVertexBuffer, mTrajectoryCount * COORDS_PER_VERTEX
+                    * BYTES_PER_FLOAT);
+        }
+
         // Load vertex attribute data
-        mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-        GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, 0, mVertexBuffer);
-        GLES20.glEnableVertexAttribArray(mPosHandle);
+        mVbo.setAttribute(mPosHandle, COORDS_PER_VERTEX);
 
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
+        gl.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
 
-        mColorHandle = GLES20.glGetUniformLocation(mProgram, "aColor");
-        GLES20.glUniform4f(mColorHandle, mColor[0], mColor[1], mColor[2],
+        gl.glUniform4f(mColorHandle, mColor[0], mColor[1], mColor[2],
                 mColor[3]);
-        GLES20.glLineWidth(mLineWidth);
-        GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, 0, mTrajectoryCount);
+        gl.glLineWidth(mLineWidth);
+        gl.glDrawArrays(GLES20.GL_LINE_STRIP, 0, mTrajectoryCount);
     }
 
     public void setColor(float[] color) {
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoutils.renderables;
+
+import java.nio.Buffer;
+
+import android.opengl.GLES20;
+
+/**
+ * Vertex attribute data kept in a GPU buffer object, so that it is not sent
+ * again at every draw call as client-side arrays are.
+ *
+ * Constant geometry is given once with {@link #upload(Buffer, int)}.
+ * Geometry changing over time is given with {@link #stream(Buffer, int)}
+ * when it changes: the storage is orphaned before being written, so the
+ * driver does not wait for the draws still reading the previous content.
+ *
+ * The buffer belongs to the GL context it was made in and is only used on
+ * its thread.
+ */
+public class VertexBuffer {
+
+    private final GlApi mGl;
+    private final int mName;
+    private int mCapacity;
+
+    public VertexBuffer(GlApi gl) {
+        mGl = gl;
+        int[] names = new int[1];
+        gl.glGenBuffers(1, names, 0);
+        mName = names[0];
+    }
+
+    public int getName() {
+        return mName;
+    }
+
+    /**
+     * Replaces the content of the buffer, for data drawn many times.
+     *
+     * @param data
+     *            the bytes to send, from position 0.
+     */
+    public void upload(Buffer data, int bytes) {
+        data.position(0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mName);
+        mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, bytes, data,
+                GLES20.GL_STATIC_DRAW);
+        mCapacity = bytes;
+    }
+
+    /**
+     * Replaces the content of the buffer, for data changing often. The
+     * storage only grows.
+     *
+     * @param data
+     *            the bytes to send, from position 0.
+     */
+    public void stream(Buffer data, int bytes) {
+        data.position(0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mName);
+        // Orphan the storage, allocating a larger one if needed
+        mCapacity = Math.max(mCapacity, bytes);
+        mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, mCapacity, null,
+                GLES20.GL_STREAM_DRAW);
+        if (bytes > 0) {
+            mGl.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, bytes, data);
+        }
+    }
+
+    /**
+     * Makes the buffer the source of a float vertex attribute.
+     *
+     * @param size
+     *            number of floats per vertex.
+     */
+    public void setAttribute(int location, int size) {
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mName);
+        mGl.glVertexAttribPointer(location, size, GLES20.GL_FLOAT, false, 0,
+                0);
+        mGl.glEnableVertexAttribArray(location);
+    }
+
+    /**
+     * Deletes the buffer. It must not be used afterwards.
+     */
+    public void release() {
+        mGl.glDeleteBuffers(1, new int[] { mName }, 0);
+        mCapacity = 0;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link TripleBuffer} hands the newest published buffer to the
+ * consumer, in order, and never a buffer the producer still owns.
+ */
+public class TripleBufferTest {
+
+    /** A buffer holding the number of the frame written into it. */
+    private static class Frame {
+        long mNumber = -1;
+        // Written after the number, to catch a buffer read while filled
+        long mCheck = -1;
+    }
+
+    private static TripleBuffer<Frame> newBuffer() {
+        return new TripleBuffer<Frame>(new Frame(), new Frame(), new Frame());
+    }
+
+    @Test
+    public void startsWithTheFrontBuffer() {
+        Frame back = new Frame();
+        Frame front = new Frame();
+        TripleBuffer<Frame> buffer = new TripleBuffer<Frame>(back,
+                new Frame(), front);
+        assertSame(back, buffer.getBack());
+        assertSame(front, buffer.getFront());
+        assertFalse(buffer.update());
+        assertSame(front, buffer.getFront());
+    }
+
+    @Test
+    public void handsThePublishedBuffer() {
+        TripleBuffer<Frame> buffer = newBuffer();
+        Frame published = buffer.getBack();
+        published.mNumber = 1;
+        buffer.publish();
+        assertTrue(buffer.getBack() != published);
+        assertTrue(buffer.update());
+        assertSame(published, buffer.getFront());
+        // Nothing new since
+        assertFalse(buffer.update());
+        assertSame(published, buffer.getFront());
+        assertEquals(1, buffer.getPublishedCount());
+        assertEquals(1, buffer.getUpdatedCount());
+    }
+
+    @Test
+    public void keepsOnlyTheLatestPublishedBuffer() {
+        TripleBuffer<Frame> buffer = newBuffer();
+        for (int i = 1; i <= 5; i++) {
+            buffer.getBack().mNumber = i;
+            buffer.publish();
+        }
+        assertTrue(buffer.update());
+        assertEquals(5, buffer.getFront().mNumber);
+        assertFalse(buffer.update());
+        assertEquals(5, buffer.getPublishedCount());
+        assertEquals(1, buffer.getUpdatedCount());
+    }
+
+    @Test
+    public void neverSharesABufferBetweenTheTwoSides() {
+        TripleBuffer<Frame> buffer = newBuffer();
+        for (int i = 0; i < 100; i++) {
+            buffer.getBack().mNumber = i;
+            buffer.publish();
+            assertTrue(buffer.getBack() != buffer.getFront());
+            if (i % 3 == 0) {
+                assertTrue(buffer.update());
+                assertEquals(i, buffer.getFront().mNumber);
+                assertTrue(buffer.getBack() != buffer.getFront());
+            }
+        }
+    }
+
+    @Test
+    public void deliversIncreasingCompleteFramesAcrossThreads()
+            throws InterruptedException {
+        final TripleBuffer<Frame> buffer = newBuffer();
+        final long frameCount = 200000;
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long last = -1;
+                    while (last < frameCount - 1) {
+                        if (!buffer.update()) {
+                            continue;
+                        }
+                        Frame frame = buffer.getFront();
+                        assertTrue("Frame " + frame.mNumber + " after "
+                                + last, frame.mNumber > last);
+                        assertEquals(frame.mNumber, frame.mCheck);
+                        last = frame.mNumber;
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        consumer.start();
+        for (long i = 0; i < frameCount; i++) {
+            Frame frame = buffer.getBack();
+            frame.mNumber = i;
+            frame.mCheck = i;
+            buffer.publish();
+        }
+        consumer.join(10000);
+        assertFalse("The last frame was not delivered", consumer.isAlive());
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(frameCount, buffer.getPublishedCount());
+        assertTrue(buffer.getUpdatedCount() <= frameCount);
+    }
+}
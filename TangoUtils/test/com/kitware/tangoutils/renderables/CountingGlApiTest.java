@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Kitware Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.kitware.tangoutils.renderables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.opengl.GLES20;
+
+/**
+ * Checks the counts of {@link CountingGlApi} for the calls made by the
+ * shared programs of {@link RenderUtils} and by {@link VertexBuffer}, on the
+ * JVM, without a GL context.
+ */
+public class CountingGlApiTest {
+
+    private static final String VERTEX_SHADER = "attribute vec4 vPosition;"
+            + "uniform mat4 uMVPMatrix;"
+            + "void main() { gl_Position = uMVPMatrix * vPosition; }";
+    private static final String FRAGMENT_SHADER = "precision mediump float;"
+            + "void main() { gl_FragColor = vec4(1.0); }";
+    private static final String OTHER_FRAGMENT_SHADER =
+            "precision mediump float;"
+            + "void main() { gl_FragColor = vec4(0.5); }";
+    private static final String[] ATTRIBUTES = new String[] { "vPosition" };
+    private static final String[] UNIFORMS = new String[] { "uMVPMatrix" };
+
+    private CountingGlApi mGl;
+
+    @Before
+    public void setUp() {
+        mGl = new CountingGlApi();
+    }
+
+    @After
+    public void tearDown() {
+        RenderUtils.releasePrograms(mGl);
+    }
+
+    @Test
+    public void compilesAndLooksUpAProgramOnce() {
+        ShaderProgram program = RenderUtils.getProgram(mGl, VERTEX_SHADER,
+                FRAGMENT_SHADER, ATTRIBUTES, UNIFORMS);
+        assertEquals(2, mGl.getCompileCount());
+        assertEquals(2, mGl.getLocationLookupCount());
+
+        assertSame(program, RenderUtils.getProgram(mGl, VERTEX_SHADER,
+                FRAGMENT_SHADER, ATTRIBUTES, UNIFORMS));
+        assertEquals(2, mGl.getCompileCount());
+        assertEquals(2, mGl.getLocationLookupCount());
+    }
+
+    @Test
+    public void sharesTheShadersBetweenPrograms() {
+        ShaderProgram program = RenderUtils.getProgram(mGl, VERTEX_SHADER,
+                FRAGMENT_SHADER, ATTRIBUTES, UNIFORMS);
+        ShaderProgram other = RenderUtils.getProgram(mGl, VERTEX_SHADER,
+                OTHER_FRAGMENT_SHADER, ATTRIBUTES, UNIFORMS);
+        assertNotSame(program, other);
+        // The vertex shader is compiled once
+        assertEquals(3, mGl.getCompileCount());
+    }
+
+    @Test
+    public void keepsTheProgramsOfEachContext() {
+        ShaderProgram program = RenderUtils.getProgram(mGl, VERTEX_SHADER,
+                FRAGMENT_SHADER, ATTRIBUTES, UNIFORMS);
+        CountingGlApi otherContext = new CountingGlApi();
+        try {
+            assertNotSame(program, RenderUtils.getProgram(otherContext,
+                    VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES, UNIFORMS));
+            assertEquals(2, otherContext.getCompileCount());
+        } finally {
+            RenderUtils.releasePrograms(otherContext);
+        }
+    }
+
+    @Test
+    public void sendsClientArraysAtEachDraw() {
+        ShaderProgram program = RenderUtils.getProgram(mGl, VERTEX_SHADER,
+                FRAGMENT_SHADER, ATTRIBUTES, UNIFORMS);
+        int position = program.getAttribLocation("vPosition");
+        FloatBuffer vertices = FloatBuffer.allocate(3 * 10);
+        mGl.reset();
+        for (int frame = 0; frame < 2; frame++) {
+            mGl.glUseProgram(program.getProgram());
+            mGl.glVertexAttribPointer(position, 3, GLES20.GL_FLOAT, false, 0,
+                    vertices);
+            mGl.glEnableVertexAttribArray(position);
+            mGl.glDrawArrays(GLES20.GL_POINTS, 0, 10);
+            mGl.endFrame();
+        }
+        assertEquals(2, mGl.getFrameCount());
+        assertEquals(2, mGl.getDrawCallCount());
+        assertEquals(20, mGl.getVertexCount());
+        assertEquals(2 * 10 * 3 * 4, mGl.getUploadedBytes());
+        assertEquals(6, mGl.getStateChangeCount());
+        assertEquals(1, mGl.getRedundantProgramCount());
+    }
+
+    @Test
+    public void sendsBufferObjectsOnce() {
+        ShaderProgram program = RenderUtils.getProgram(mGl, VERTEX_SHADER,
+                FRAGMENT_SHADER, ATTRIBUTES, UNIFORMS);
+        int position = program.getAttribLocation("vPosition");
+        VertexBuffer buffer = new VertexBuffer(mGl);
+        mGl.reset();
+        buffer.upload(ByteBuffer.allocate(120), 120);
+        assertEquals(1, mGl.getBufferUploadCount());
+        assertEquals(120, mGl.getUploadedBytes());
+
+        mGl.glUseProgram(program.getProgram());
+        buffer.setAttribute(position, 3);
+        for (int frame = 0; frame < 3; frame++) {
+            mGl.glDrawArrays(GLES20.GL_POINTS, 0, 10);
+        }
+        assertEquals(3, mGl.getDrawCallCount());
+        assertEquals(120, mGl.getUploadedBytes());
+        buffer.release();
+    }
+
+    @Test
+    public void streamsIntoOrphanedStorage() {
+        VertexBuffer buffer = new VertexBuffer(mGl);
+        mGl.reset();
+        buffer.stream(ByteBuffer.allocate(240), 240);
+        buffer.stream(ByteBuffer.allocate(120), 120);
+        // An orphaning glBufferData and a glBufferSubData each, only the
+        // data being sent
+        assertEquals(4, mGl.getBufferUploadCount());
+        assertEquals(360, mGl.getUploadedBytes());
+        buffer.stream(ByteBuffer.allocate(0), 0);
+        assertEquals(5, mGl.getBufferUploadCount());
+        assertEquals(360, mGl.getUploadedBytes());
+        buffer.release();
+    }
+
+    @Test
+    public void ignoresTheAttributesTheShadersDoNotUse() {
+        FloatBuffer vertices = FloatBuffer.allocate(3);
+        mGl.glEnableVertexAttribArray(-1);
+        mGl.glVertexAttribPointer(-1, 3, GLES20.GL_FLOAT, false, 0, vertices);
+        mGl.glVertexAttribPointer(-1, 3, GLES20.GL_FLOAT, false, 0, 0);
+        assertEquals(3, mGl.getInvalidCallCount());
+        assertEquals(3, mGl.getCallCount());
+        assertEquals(0, mGl.getStateChangeCount());
+    }
+}